@@ -0,0 +1,96 @@
+package com.sr2.flopbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.parser.UnixFTPEntryParser;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sr2.flopbox.model.ListingEntry;
+import com.sr2.flopbox.service.ListingWriter;
+
+/**
+ * Compares the JSON of a directory listing written from the FTPFile objects by
+ * reflection (what the list endpoint used to send) with the ListingEntry
+ * written by ListingWriter. The bytes counter gives the payload size of one
+ * listing. Run with: mvn -P benchmark test-compile exec:exec
+ *
+ * @author Adrien Holvoet
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingSerializationBenchmark {
+	@Param({ "100", "10000" })
+	public int entries;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private FTPFile[] files;
+	private ListingEntry[] listing;
+	private ByteArrayOutputStream output;
+
+	/**
+	 * Payload size of the last listing written
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Payload {
+		public long bytes;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		UnixFTPEntryParser parser = new UnixFTPEntryParser();
+		files = new FTPFile[entries];
+		listing = new ListingEntry[entries];
+		for (int i = 0; i < entries; i++) {
+			files[i] = parser.parseFTPEntry(
+					"-rw-r--r--    1 1000     1000      " + (1000L * i) + " Oct 21  2015 file-" + i + ".txt");
+			listing[i] = ListingEntry.of(files[i]);
+		}
+		output = new ByteArrayOutputStream(entries * 512);
+	}
+
+	@Benchmark
+	public int ftpFileReflection(Payload payload) throws IOException {
+		output.reset();
+		mapper.writeValue(output, files);
+		payload.bytes = output.size();
+		return output.size();
+	}
+
+	@Benchmark
+	public int listingWriter(Payload payload) throws IOException {
+		output.reset();
+		new ListingWriter(listing, ListingWriter.DEFAULT_FIELDS).write(output);
+		payload.bytes = output.size();
+		return output.size();
+	}
+
+	@Benchmark
+	public int listingWriterAllFields(Payload payload) throws IOException {
+		output.reset();
+		new ListingWriter(listing, EnumSet.allOf(ListingWriter.Field.class)).write(output);
+		payload.bytes = output.size();
+		return output.size();
+	}
+}
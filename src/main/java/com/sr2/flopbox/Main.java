@@ -8,6 +8,9 @@ import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 
 import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.service.FtpConnectionPool;
+import com.sr2.flopbox.service.FtpExecutor;
+import com.sr2.flopbox.service.JobService;
 
 /**
  * Application entry point
@@ -44,5 +47,8 @@ public class Main {
 				Constant.BASE_URI));
 		System.in.read();
 		server.stop();
+		FtpExecutor.getInstance().close();
+		JobService.getInstance().close();
+		FtpConnectionPool.getInstance().close();
 	}
 }
@@ -0,0 +1,151 @@
+package com.sr2.flopbox.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ByteRange represents one range of bytes of a HTTP Range header (RFC 7233),
+ * the bounds are inclusive and resolved against the size of the file.
+ *
+ * @author Adrien Holvoet
+ */
+public final class ByteRange {
+	// Above this number of ranges the Range header is ignored and the whole file is sent
+	public static final int MAX_RANGES = 16;
+	private static final String BYTES_UNIT = "bytes=";
+
+	// All private final because a range is immutable
+	private final long first;
+	private final long last;
+
+	/**
+	 * Constructor
+	 *
+	 * @param first position of the first byte
+	 * @param last  position of the last byte (included)
+	 */
+	public ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	public long getFirst() {
+		return first;
+	}
+
+	public long getLast() {
+		return last;
+	}
+
+	public long getLength() {
+		return last - first + 1;
+	}
+
+	/**
+	 * Value of the Content-Range header of this range
+	 *
+	 * @param size size of the whole file
+	 * @return bytes first-last/size
+	 */
+	public String toContentRange(long size) {
+		return "bytes " + first + "-" + last + "/" + size;
+	}
+
+	/**
+	 * Parse a Range header. The ranges are sorted and the overlapping or adjacent
+	 * ones are merged so that each byte is read once from the ftp server.
+	 *
+	 * @param header value of the Range header, can be null
+	 * @param size   size of the file
+	 * @return the ranges to send, an empty list if none of them can be satisfied,
+	 *         null if the header is absent, malformed or asks for too many ranges
+	 *         (the whole file is sent in that case)
+	 */
+	public static List<ByteRange> parse(String header, long size) {
+		if (header == null || !header.trim().toLowerCase().startsWith(BYTES_UNIT)) {
+			return null;
+		}
+		String[] specs = header.trim().substring(BYTES_UNIT.length()).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<ByteRange> ranges = new ArrayList<>();
+		for (String spec : specs) {
+			String[] bounds = spec.trim().split("-", -1);
+			if (bounds.length != 2) {
+				return null;
+			}
+			try {
+				String start = bounds[0].trim();
+				String end = bounds[1].trim();
+				if (start.isEmpty()) {
+					// suffix range: the last bytes of the file
+					long suffix = Long.parseLong(end);
+					if (suffix > 0 && size > 0) {
+						ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+					}
+					continue;
+				}
+				long first = Long.parseLong(start);
+				long last = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+				if (first < 0 || last < first) {
+					return null;
+				}
+				if (first < size) {
+					ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return merge(ranges);
+	}
+
+	/**
+	 * Evaluate an If-Range header, the ranges are only sent if the file has not
+	 * changed since the validator was given to the client
+	 *
+	 * @param ifRange      value of the If-Range header, can be null
+	 * @param lastModified last modification of the file in milliseconds, -1 if
+	 *                     unknown
+	 * @param etag         entity tag of the file, null if unknown
+	 * @return true if the ranges can be sent
+	 */
+	public static boolean isIfRangeSatisfied(String ifRange, long lastModified, String etag) {
+		if (ifRange == null) {
+			return true;
+		}
+		String validator = ifRange.trim();
+		if (validator.startsWith("\"") || validator.startsWith("W/")) {
+			// a weak entity tag never matches (strong comparison)
+			return etag != null && !validator.startsWith("W/") && validator.equals(etag);
+		}
+		if (lastModified < 0) {
+			return false;
+		}
+		long date = Validators.parseDate(validator);
+		// HTTP dates have a one second precision
+		return date >= 0 && date / 1000 == lastModified / 1000;
+	}
+
+	private static List<ByteRange> merge(List<ByteRange> ranges) {
+		if (ranges.size() < 2) {
+			return ranges;
+		}
+		Collections.sort(ranges, Comparator.comparingLong(ByteRange::getFirst));
+		List<ByteRange> merged = new ArrayList<>();
+		ByteRange current = ranges.get(0);
+		for (ByteRange next : ranges.subList(1, ranges.size())) {
+			if (next.first <= current.last + 1) {
+				current = new ByteRange(current.first, Math.max(current.last, next.last));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+}
@@ -7,5 +7,5 @@ package com.sr2.flopbox.common;
  * 
  */
 public enum Command {
-	GETD, GETF, PUT, LIST, REN, MKD, RMD
+	GETD, GETF, PUT, STOR, LIST, TREE, INDEX, REN, MKD, RMD, SYNC, COPY
 }
\ No newline at end of file
@@ -17,6 +17,91 @@ public class Constant {
 	public static final String ANONYMOUS = "anonymous";
 	public static final String PASSIVE = "passive";
 
+	// FTP connection pool, every value can be overridden with a system property
+	public static final int POOL_MAX_TOTAL = Integer.getInteger("flopbox.pool.maxTotal", 64);
+	public static final int POOL_MAX_PER_SERVER = Integer.getInteger("flopbox.pool.maxPerServer", 8);
+	public static final long POOL_BORROW_TIMEOUT = Long.getLong("flopbox.pool.borrowTimeout", 30000L);
+	public static final long POOL_MAX_IDLE_TIME = Long.getLong("flopbox.pool.maxIdleTime", 300000L);
+	public static final long POOL_KEEP_ALIVE_INTERVAL = Long.getLong("flopbox.pool.keepAliveInterval", 60000L);
+	public static final long POOL_VALIDATE_AFTER = Long.getLong("flopbox.pool.validateAfter", 1000L);
+	public static final int FTP_CONNECT_TIMEOUT = Integer.getInteger("flopbox.ftp.connectTimeout", 10000);
+	public static final int FTP_CONTROL_TIMEOUT = Integer.getInteger("flopbox.ftp.controlTimeout", 60000);
+	// Read the listings with MLSD when the server announces MLST (FEAT), false to always use LIST
+	public static final boolean FTP_MACHINE_LISTING = Boolean
+			.parseBoolean(System.getProperty("flopbox.ftp.mlsd", "true"));
+
+	// Engine running the ftp commands: "bounded" thread pool or "virtual" threads
+	public static final String EXECUTOR_ENGINE = System.getProperty("flopbox.executor.engine", "bounded");
+	public static final int EXECUTOR_THREADS = Integer.getInteger("flopbox.executor.threads", 64);
+	public static final int EXECUTOR_QUEUE = Integer.getInteger("flopbox.executor.queue", 1024);
+	// Default time in seconds after which a suspended ftp request is answered with a 503
+	public static final long REQUEST_TIMEOUT = Long.getLong("flopbox.request.timeout", 300L);
+	// Size in bytes of the buffer used to copy a data connection to/from an HTTP body
+	public static final int STREAM_BUFFER_SIZE = Integer.getInteger("flopbox.stream.bufferSize", 64 * 1024);
+	// Compression level (0 to 9) of the zip and tar.gz archives of a directory, the
+	// fastest by default so that the compression keeps up with the ftp transfer
+	public static final int ARCHIVE_LEVEL = Integer.getInteger("flopbox.archive.level", 1);
+
+	// Segmented downloads, both can be overridden per server with a ".<alias>" suffix
+	// (-Dflopbox.segment.size.myserver=...). A stream download buffers at most
+	// SEGMENT_PARALLELISM segments in memory
+	public static final long SEGMENT_SIZE = Long.getLong("flopbox.segment.size", 8L * 1024 * 1024);
+	public static final int SEGMENT_PARALLELISM = Integer.getInteger("flopbox.segment.parallelism", 4);
+	// Number of ftp connections used at once by a recursive transfer (GETD, putD, RMD),
+	// can be overridden per server with a ".<alias>" suffix
+	public static final int TRANSFER_PARALLELISM = Integer.getInteger("flopbox.transfer.parallelism", 4);
+	// Directory listings kept in memory (LRU) and their time to live in milliseconds,
+	// 0 for either disables the cache
+	public static final int LISTING_CACHE_SIZE = Integer.getInteger("flopbox.listing.cache.size", 1000);
+	public static final long LISTING_CACHE_TTL = Long.getLong("flopbox.listing.cache.ttl", 30000L);
+	// Number of entries of a listing page when only its offset is given
+	public static final int LISTING_PAGE_SIZE = Integer.getInteger("flopbox.listing.pageSize", 1000);
+	// Levels of a tree listing when its depth is not given, and the deepest one allowed
+	public static final int TREE_DEFAULT_DEPTH = Integer.getInteger("flopbox.tree.defaultDepth", 3);
+	public static final int TREE_MAX_DEPTH = Integer.getInteger("flopbox.tree.maxDepth", 10);
+	// Local copies of the downloaded files: where they are written, the bytes they can
+	// take (0 disables the cache), the largest file copied and the eviction policy (lru
+	// or lfu)
+	public static final String CONTENT_CACHE_DIR = System.getProperty("flopbox.cache.dir",
+			System.getProperty("user.dir") + "/src/main/resources/cache");
+	public static final long CONTENT_CACHE_SIZE = Long.getLong("flopbox.cache.size", 1024L * 1024 * 1024);
+	public static final long CONTENT_CACHE_MAX_FILE = Long.getLong("flopbox.cache.maxFileSize", 256L * 1024 * 1024);
+	public static final String CONTENT_CACHE_POLICY = System.getProperty("flopbox.cache.policy", "lru");
+	// File indexes: where they are written, the time between two crawls of a server (ms)
+	// and the number of servers crawled at once
+	public static final String INDEX_DIR = System.getProperty("flopbox.index.dir",
+			System.getProperty("user.dir") + "/src/main/resources/index");
+	public static final long INDEX_CRAWL_INTERVAL = Long.getLong("flopbox.index.crawlInterval", 600000L);
+	public static final int INDEX_CRAWLERS = Integer.getInteger("flopbox.index.crawlers", 2);
+	// Synchronizations: where the manifests of their previous run are written and the
+	// number of changes listed in their report (all of them are counted)
+	public static final String SYNC_DIR = System.getProperty("flopbox.sync.dir",
+			System.getProperty("user.dir") + "/src/main/resources/sync");
+	public static final int SYNC_REPORT_LIMIT = Integer.getInteger("flopbox.sync.reportLimit", 1000);
+	// Server to server copies: try FXP (the source server sends the data straight to the
+	// target one) before relaying the data connections through FlopBox
+	public static final boolean COPY_FXP = Boolean.parseBoolean(System.getProperty("flopbox.copy.fxp", "true"));
+	// Longest wait for the end of a FXP transfer, whose control connections stay silent
+	// while the servers exchange the data: a fixed delay (ms) plus the time of the file
+	// at a minimum rate (bytes/s). A file which takes longer is relayed.
+	public static final long COPY_FXP_DELAY = Long.getLong("flopbox.copy.fxpDelay", 60000L);
+	public static final long COPY_FXP_MIN_RATE = Long.getLong("flopbox.copy.fxpMinRate", 65536L);
+	// Jobs (transfers run in the background): number run at once, number waiting for a
+	// thread before the submissions are refused, time in milliseconds a finished job
+	// can still be read
+	public static final int JOB_THREADS = Integer.getInteger("flopbox.job.threads", 2);
+	public static final int JOB_QUEUE = Integer.getInteger("flopbox.job.queue", 100);
+	public static final long JOB_RETENTION = Long.getLong("flopbox.job.retention", 3600000L);
+	// Minimum time in milliseconds between two progress events of a job, however fast
+	// its data connections copy
+	public static final long PROGRESS_INTERVAL = Long.getLong("flopbox.progress.interval", 500L);
+	// Number of files answered by a search when its limit is not given
+	public static final int SEARCH_LIMIT = Integer.getInteger("flopbox.search.limit", 1000);
+	// Number of times a file of a recursive transfer is tried again after a transient
+	// failure (I/O error or 4xx reply), the wait before each retry grows linearly (ms)
+	public static final int TRANSFER_RETRIES = Integer.getInteger("flopbox.transfer.retries", 2);
+	public static final long TRANSFER_RETRY_DELAY = Long.getLong("flopbox.transfer.retryDelay", 500L);
+
 	/**
 	 * Prevent instantiation
 	 */
@@ -0,0 +1,243 @@
+package com.sr2.flopbox.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MultipartReader reads a multipart/form-data body part after part while it is
+ * received. The body of each part is exposed as a stream read through a fixed
+ * size buffer, nothing is kept in memory or written on the disk whatever the
+ * size of the part.
+ *
+ * @author Adrien Holvoet
+ */
+public class MultipartReader {
+	// All private because they are only used in this class
+	private final InputStream in;
+	private final byte[] delimiter;
+	private final byte[] buffer;
+	private int pos;
+	private int limit;
+	private boolean eof;
+	private boolean atDelimiter;
+	private boolean finished;
+
+	/**
+	 * Constructor
+	 *
+	 * @param in       the multipart body
+	 * @param boundary the boundary parameter of the content type
+	 */
+	public MultipartReader(InputStream in, String boundary) {
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.buffer = new byte[Constant.STREAM_BUFFER_SIZE + delimiter.length];
+		// the first boundary is not preceded by a line break, pretend it is
+		this.buffer[0] = '\r';
+		this.buffer[1] = '\n';
+		this.limit = 2;
+	}
+
+	/**
+	 * Get a parameter of a header value such as the boundary of a content type or
+	 * the filename of a content disposition
+	 *
+	 * @param header header value, can be null
+	 * @param name   parameter name
+	 * @return the parameter value without its quotes, null if absent
+	 */
+	public static String getParameter(String header, String name) {
+		if (header == null) {
+			return null;
+		}
+		for (String part : header.split(";")) {
+			String[] keyValue = part.trim().split("=", 2);
+			if (keyValue.length == 2 && keyValue[0].trim().equalsIgnoreCase(name)) {
+				String value = keyValue[1].trim();
+				if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Skip what is left of the current part and move to the next one
+	 *
+	 * @return the headers of the next part (lower case names), null if there is no
+	 *         more part
+	 * @throws IOException thrown if any I/O error occurred or if the body is
+	 *                     malformed
+	 */
+	public Map<String, String> nextPart() throws IOException {
+		if (finished) {
+			return null;
+		}
+		InputStream current = partBody();
+		while (current.skip(Long.MAX_VALUE) > 0 || current.read() != -1) {
+			// drain the rest of the current part (or the preamble)
+		}
+
+		pos += delimiter.length;
+		atDelimiter = false;
+		while (limit - pos < 2 && !eof) {
+			fill();
+		}
+		if (limit - pos >= 2 && buffer[pos] == '-' && buffer[pos + 1] == '-') {
+			// closing delimiter, the epilogue is ignored
+			finished = true;
+			return null;
+		}
+		// rest of the delimiter line
+		readLine();
+
+		Map<String, String> headers = new HashMap<>();
+		String line;
+		while (!(line = readLine()).isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * The body of the current part, it ends where the next boundary starts
+	 *
+	 * @return InputStream of the current part, must not be closed
+	 */
+	public InputStream partBody() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				int read = read(single, 0, 1);
+				return read == -1 ? -1 : single[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return readBody(b, off, len);
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = 0;
+				while (skipped < n) {
+					int available = availableBody((int) Math.min(n - skipped, Integer.MAX_VALUE));
+					if (available <= 0) {
+						break;
+					}
+					pos += available;
+					skipped += available;
+				}
+				return skipped;
+			}
+		};
+	}
+
+	private int readBody(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int available = availableBody(len);
+		if (available <= 0) {
+			return -1;
+		}
+		System.arraycopy(buffer, pos, b, off, available);
+		pos += available;
+		return available;
+	}
+
+	/**
+	 * Number of bytes of the current part which can be read from the buffer
+	 * without going past the next delimiter
+	 *
+	 * @return at most max bytes, -1 once the delimiter is reached
+	 */
+	private int availableBody(int max) throws IOException {
+		if (atDelimiter || finished) {
+			return -1;
+		}
+		while (limit - pos < delimiter.length && !eof) {
+			fill();
+		}
+		int index = indexOfDelimiter();
+		if (index == pos) {
+			atDelimiter = true;
+			return -1;
+		}
+		int end;
+		if (index >= 0) {
+			end = index;
+		} else if (eof) {
+			throw new EOFException("The multipart body ends without its closing boundary");
+		} else {
+			// the tail may be the beginning of a delimiter, keep it for later
+			end = limit - delimiter.length + 1;
+		}
+		return Math.min(max, end - pos);
+	}
+
+	private int indexOfDelimiter() {
+		outer: for (int i = pos; i <= limit - delimiter.length; i++) {
+			for (int j = 0; j < delimiter.length; j++) {
+				if (buffer[i + j] != delimiter[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Read a header line (or what follows a delimiter) without its line break
+	 */
+	private String readLine() throws IOException {
+		int start = pos;
+		while (true) {
+			for (int i = start; i < limit - 1; i++) {
+				if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+					String line = new String(buffer, pos, i - pos, StandardCharsets.UTF_8);
+					pos = i + 2;
+					return line;
+				}
+			}
+			if (eof) {
+				throw new EOFException("The multipart body ends in the middle of a part header");
+			}
+			if (pos == 0 && limit == buffer.length) {
+				throw new IOException("Multipart header line too long");
+			}
+			start = Math.max(0, limit - 1 - pos);
+			fill();
+			start += pos;
+		}
+	}
+
+	/**
+	 * Move the unread bytes at the beginning of the buffer and read more bytes
+	 * after them
+	 */
+	private void fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read == -1) {
+			eof = true;
+		} else {
+			limit += read;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.sr2.flopbox.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * StreamUtils contains the methods used to copy the ftp data connections from
+ * and to the HTTP bodies. The copy goes through a fixed size buffer reused by
+ * each thread so that the memory used by a transfer does not depend on the
+ * size of the file.
+ *
+ * @author Adrien Holvoet
+ */
+public final class StreamUtils {
+	// private static because there is one buffer per thread, shared by all its copies
+	private static final ThreadLocal<byte[]> BUFFER = ThreadLocal
+			.withInitial(() -> new byte[Constant.STREAM_BUFFER_SIZE]);
+
+	/**
+	 * Prevent instantiation
+	 */
+	private StreamUtils() {
+	}
+
+	/**
+	 * Copy the whole input stream into the output stream, none of them is closed
+	 *
+	 * @param in  stream to read until its end
+	 * @param out stream to write to
+	 * @return the number of bytes copied
+	 * @throws IOException thrown if any I/O error occurred.
+	 */
+	public static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = BUFFER.get();
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Copy a given number of bytes of the input stream into the output stream,
+	 * what follows is left unread
+	 *
+	 * @param in     stream to read
+	 * @param out    stream to write to
+	 * @param length number of bytes to copy
+	 * @throws IOException thrown if any I/O error occurred or if the input stream
+	 *                     ends before length bytes are read (EOFException)
+	 */
+	public static void copy(InputStream in, OutputStream out, long length) throws IOException {
+		byte[] buffer = BUFFER.get();
+		long remaining = length;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read == -1) {
+				throw new EOFException("The stream ended " + remaining + " bytes too early");
+			}
+			out.write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+}
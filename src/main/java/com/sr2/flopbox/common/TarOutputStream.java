@@ -0,0 +1,199 @@
+package com.sr2.flopbox.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * TarOutputStream writes a tar archive (POSIX ustar) entry by entry to a
+ * stream, nothing is buffered but the 512 bytes header. The size of a file must
+ * be given before its content: the content is cut at that size, or padded with
+ * zeros if it is shorter, so that the archive stays readable. The names longer
+ * than 100 bytes and the files larger than 8 GB are described by a pax extended
+ * header.
+ *
+ * @author Adrien Holvoet
+ */
+public class TarOutputStream extends OutputStream {
+	// All private because they are only used in this class
+	private static final int BLOCK = 512;
+	private static final long MAX_OCTAL_SIZE = 077777777777L;
+	private final OutputStream out;
+	private final byte[] header = new byte[BLOCK];
+	private long remaining;
+	private long written;
+	private boolean finished;
+
+	/**
+	 * Constructor
+	 *
+	 * @param out stream the archive is written to
+	 */
+	public TarOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Add a directory
+	 *
+	 * @param name         path of the directory in the archive, a / is added if
+	 *                     missing
+	 * @param lastModified last modification in milliseconds, -1 if unknown
+	 * @throws IOException thrown if any I/O error occurred.
+	 */
+	public void putDirectory(String name, long lastModified) throws IOException {
+		closeEntry();
+		writeHeader(name.endsWith("/") ? name : name + "/", 0, lastModified, '5', 0755);
+	}
+
+	/**
+	 * Start a file, its content is written next
+	 *
+	 * @param name         path of the file in the archive
+	 * @param size         size of the content in bytes
+	 * @param lastModified last modification in milliseconds, -1 if unknown
+	 * @throws IOException thrown if any I/O error occurred.
+	 */
+	public void putFile(String name, long size, long lastModified) throws IOException {
+		closeEntry();
+		writeHeader(name, size, lastModified, '0', 0644);
+		remaining = size;
+		written = size;
+	}
+
+	/**
+	 * End the current file, padded with zeros up to its size and to the next
+	 * block
+	 *
+	 * @return number of bytes which were missing, 0 if the whole content has been
+	 *         written
+	 * @throws IOException thrown if any I/O error occurred.
+	 */
+	public long closeEntry() throws IOException {
+		long missing = remaining;
+		byte[] zeros = new byte[BLOCK];
+		while (remaining > 0) {
+			int length = (int) Math.min(BLOCK, remaining);
+			out.write(zeros, 0, length);
+			remaining -= length;
+		}
+		int padding = (int) ((BLOCK - written % BLOCK) % BLOCK);
+		out.write(zeros, 0, padding);
+		written = 0;
+		return missing;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (remaining > 0) {
+			out.write(b);
+			remaining--;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		int length = (int) Math.min(len, remaining);
+		if (length > 0) {
+			out.write(b, off, length);
+			remaining -= length;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * End the archive (two zero blocks), the underlying stream is left open
+	 *
+	 * @throws IOException thrown if any I/O error occurred.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		closeEntry();
+		out.write(new byte[2 * BLOCK]);
+		out.flush();
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeHeader(String name, long size, long lastModified, char type, int mode) throws IOException {
+		byte[] path = name.getBytes(StandardCharsets.UTF_8);
+		if (path.length > 100 || size > MAX_OCTAL_SIZE) {
+			writePaxHeader(path.length > 100 ? name : null, size > MAX_OCTAL_SIZE ? size : -1);
+		}
+		Arrays.fill(header, (byte) 0);
+		System.arraycopy(path, 0, header, 0, Math.min(path.length, 100));
+		octal(mode, 100, 8);
+		octal(0, 108, 8);
+		octal(0, 116, 8);
+		// the pax header gives the real size
+		octal(size > MAX_OCTAL_SIZE ? 0 : size, 124, 12);
+		octal(Math.max(0, lastModified) / 1000, 136, 12);
+		header[156] = (byte) type;
+		System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		long checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xFF;
+		}
+		octal(checksum, 148, 7);
+		out.write(header);
+	}
+
+	/**
+	 * Pax extended header (type x) holding the values which do not fit in the
+	 * ustar header
+	 */
+	private void writePaxHeader(String name, long size) throws IOException {
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		if (name != null) {
+			paxRecord(records, "path", name);
+		}
+		if (size >= 0) {
+			paxRecord(records, "size", Long.toString(size));
+		}
+		byte[] content = records.toByteArray();
+		writeHeader("PaxHeader", content.length, -1, 'x', 0644);
+		out.write(content);
+		out.write(new byte[(BLOCK - content.length % BLOCK) % BLOCK]);
+	}
+
+	/**
+	 * A pax record is "length key=value\n" where length counts the whole record,
+	 * itself included
+	 */
+	private static void paxRecord(ByteArrayOutputStream records, String key, String value) throws IOException {
+		int length = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+		int total = length + Integer.toString(length).length();
+		if (Integer.toString(total).length() != Integer.toString(length).length()) {
+			total++;
+		}
+		records.write((total + " " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Octal number padded with zeros and ended by a NUL
+	 */
+	private void octal(long value, int offset, int length) {
+		String digits = Long.toOctalString(value);
+		int start = offset + length - 1 - digits.length();
+		Arrays.fill(header, offset, start, (byte) '0');
+		System.arraycopy(digits.getBytes(StandardCharsets.US_ASCII), 0, header, start, digits.length());
+		header[offset + length - 1] = 0;
+	}
+}
@@ -0,0 +1,169 @@
+package com.sr2.flopbox.common;
+
+import java.io.OutputStream;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Validators contains the methods building the HTTP validators (ETag) of the
+ * files and listings sent to the client and evaluating the conditional request
+ * headers (If-None-Match, If-Modified-Since) against them (RFC 7232).
+ *
+ * @author Adrien Holvoet
+ */
+public final class Validators {
+
+	/**
+	 * Prevent instantiation
+	 */
+	private Validators() {
+	}
+
+	/**
+	 * Entity tag of a file, built from its size and last modification as given
+	 * by the ftp server (MLST or SIZE/MDTM)
+	 *
+	 * @param size         size of the file in bytes
+	 * @param lastModified last modification in milliseconds
+	 * @return the strong entity tag, null if one of them is unknown
+	 */
+	public static String etag(long size, long lastModified) {
+		if (size < 0 || lastModified < 0) {
+			return null;
+		}
+		return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+
+	/**
+	 * Weak version of an entity tag, used for a body which is not the file as
+	 * stored on the ftp server (transferred in ASCII mode): it must not be
+	 * resumed with If-Range
+	 *
+	 * @param etag entity tag, can be null
+	 * @return the weak entity tag, null if etag is null
+	 */
+	public static String weak(String etag) {
+		return etag == null || etag.startsWith("W/") ? etag : "W/" + etag;
+	}
+
+	/**
+	 * Whether a If-None-Match header matches an entity tag (weak comparison)
+	 *
+	 * @param ifNoneMatch value of the If-None-Match header, can be null
+	 * @param etag        entity tag of the resource, null if unknown
+	 * @return true if one of the tags of the header is the entity tag or if the
+	 *         header is *
+	 */
+	public static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null || etag == null) {
+			return false;
+		}
+		String opaque = opaque(etag);
+		for (String tag : ifNoneMatch.split(",")) {
+			String trimmed = tag.trim();
+			if (trimmed.equals("*") || opaque(trimmed).equals(opaque)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Evaluate the conditional headers of a GET, If-Modified-Since is ignored
+	 * when If-None-Match is given
+	 *
+	 * @param ifNoneMatch     value of the If-None-Match header, can be null
+	 * @param ifModifiedSince value of the If-Modified-Since header, can be null
+	 * @param etag            entity tag of the resource, null if unknown
+	 * @param lastModified    last modification of the resource in milliseconds,
+	 *                        -1 if unknown
+	 * @return true if the client already has the current version (304)
+	 */
+	public static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, String etag, long lastModified) {
+		if (ifNoneMatch != null) {
+			return matches(ifNoneMatch, etag);
+		}
+		if (ifModifiedSince == null || lastModified < 0) {
+			return false;
+		}
+		long date = parseDate(ifModifiedSince);
+		// HTTP dates have a one second precision
+		return date >= 0 && lastModified / 1000 <= date / 1000;
+	}
+
+	/**
+	 * @param value HTTP date (RFC 1123)
+	 * @return the date in milliseconds, -1 if it cannot be parsed
+	 */
+	public static long parseDate(String value) {
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	private static String opaque(String tag) {
+		return tag.startsWith("W/") ? tag.substring(2) : tag;
+	}
+
+	/**
+	 * Weak entity tag of a body computed as it is written (64 bits FNV-1a hash of
+	 * its bytes), nothing is kept but the hash. The values the body is made of
+	 * can be hashed instead with update, without encoding the body.
+	 */
+	public static final class Fingerprint extends OutputStream {
+		private long hash = 0xcbf29ce484222325L;
+
+		@Override
+		public void write(int b) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++) {
+				write(b[i]);
+			}
+		}
+
+		/**
+		 * Hash a number
+		 *
+		 * @param value the number
+		 */
+		public void update(long value) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				write((int) (value >>> shift));
+			}
+		}
+
+		/**
+		 * Hash a text, preceded by its length so that two consecutive texts cannot
+		 * be confused with other ones
+		 *
+		 * @param value the text, can be null
+		 */
+		public void update(String value) {
+			if (value == null) {
+				update(-1);
+				return;
+			}
+			update(value.length());
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				write(c >>> 8);
+				write(c);
+			}
+		}
+
+		/**
+		 * @return the weak entity tag of the bytes written so far
+		 */
+		public String toWeakTag() {
+			return "W/\"" + Long.toHexString(hash) + "\"";
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.sr2.flopbox.controller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sr2.flopbox.exception.HandleException;
+import com.sr2.flopbox.filter.Authorize;
+import com.sr2.flopbox.service.ContentCache;
+
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+/**
+ * Cache resource (exposed at "cache" path) which allow to get the counters (GET)
+ * and to empty (DELETE) the local cache of the downloaded files
+ *
+ * @author Adrien Holvoet
+ */
+
+@Path("cache")
+public class CacheResource {
+
+	// All private because they are only used in this class
+	private static final Logger logger = LogManager.getLogger(CacheResource.class);
+	private ContentCache contentCache = ContentCache.getInstance();
+
+	/**
+	 * Method handling HTTP GET requests. The returned object will be sent to the
+	 * client as "application/json" media type.
+	 *
+	 * @return Response will be the counters of the cache (hits, misses, bytes
+	 *         served...) or an error code with a message corresponding to the
+	 *         exception caught.
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getStatistics() {
+		try {
+			return Response.ok(contentCache.getStatistics()).build();
+		} catch (Exception e) {
+			return HandleException.handleException(e, logger);
+		}
+	}
+
+	/**
+	 * Method handling HTTP DELETE requests. Every copy is deleted, the counters are
+	 * kept.
+	 *
+	 * @return Response will be 204 no content if succeed or an error code with a
+	 *         message corresponding to the exception caught.
+	 */
+	@Authorize
+	@DELETE
+	public Response clear() {
+		try {
+			contentCache.clear();
+			return Response.status(Response.Status.NO_CONTENT).build();
+		} catch (Exception e) {
+			return HandleException.handleException(e, logger);
+		}
+	}
+
+}
@@ -1,14 +1,38 @@
 package com.sr2.flopbox.controller;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.sr2.flopbox.common.Command;
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.common.Validators;
 import com.sr2.flopbox.exception.HandleException;
+import com.sr2.flopbox.model.FileMetadata;
+import com.sr2.flopbox.model.JobStatus;
+import com.sr2.flopbox.model.ListingEntry;
+import com.sr2.flopbox.model.TransferReport;
+import com.sr2.flopbox.service.FileIndex;
+import com.sr2.flopbox.service.FtpArchive;
+import com.sr2.flopbox.service.FtpDownload;
 import com.sr2.flopbox.service.FtpService;
+import com.sr2.flopbox.service.IndexService;
+import com.sr2.flopbox.service.JobService;
+import com.sr2.flopbox.service.ListingWriter;
 
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.HeaderParam;
@@ -18,13 +42,26 @@ import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.ServiceUnavailableException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.CompletionCallback;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.GenericEntity;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.ResponseBuilder;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
 
 /**
  * Ftp resource (exposed at "{alias}" path) which allows anyone to access the
  * ftp server registered on the flopBox platform and to perform operations
- * specific to the ftp protocol
+ * specific to the ftp protocol. The requests are suspended while the ftp
+ * command runs on the FtpExecutor so that slow ftp servers do not hold the HTTP
+ * worker threads
  *
  * @author Adrien Holvoet
  */
@@ -43,135 +80,233 @@ public class FtpResource {
 	 * @param path          path of the repository
 	 * @param mode          set passive to enter in passive mode, All other values
 	 *                      let active
+	 * @param offset        number of entries to skip, the page starts at 0 if
+	 *                      only the limit is given
+	 * @param limit         maximum number of entries of the page,
+	 *                      Constant.LISTING_PAGE_SIZE if only the offset is
+	 *                      given
+	 * @param stream        true to write the entries as they are parsed
+	 * @param fields        comma separated fields of the entries (name, type,
+	 *                      size, modified, permissions, user, group, link or
+	 *                      all), name,type,size,modified if not specified
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
+	 * @param ifNoneMatch   HTTP request header if-none-match value
 	 * @param authorization HTTP request header authorization value
-	 *
-	 * @return Response will be the list of files in the specified folder (path) or
-	 *         an error code with a message corresponding to the exception caught.
+	 * @param asyncResponse suspended response, resumed with the list of files
+	 *                      in the specified folder (path), X-Next-Offset giving
+	 *                      the offset of the next page if any, X-Cache telling
+	 *                      whether it comes from the ListingCache and the ETag of
+	 *                      the listing (304 if it matches If-None-Match), or an
+	 *                      error code with a message corresponding to the
+	 *                      exception caught.
 	 *
 	 */
 	@GET
 	@Path("/list/{path: .*}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response GetList(@PathParam("alias") String alias, @PathParam("path") String path,
-			@QueryParam("mode") String mode, @HeaderParam("Authorization") String authorization) {
+	public void GetList(@PathParam("alias") String alias, @PathParam("path") String path,
+			@QueryParam("mode") String mode, @QueryParam("offset") Integer offset,
+			@QueryParam("limit") Integer limit, @QueryParam("stream") boolean stream,
+			@QueryParam("fields") String fields, @QueryParam("timeout") Long timeout,
+			@HeaderParam("If-None-Match") String ifNoneMatch, @HeaderParam("Authorization") String authorization,
+			@Suspended final AsyncResponse asyncResponse) {
 
 		FtpService ftpService = new FtpService(alias, authorization, Command.LIST, path, null, mode);
-
+		EnumSet<ListingWriter.Field> listingFields;
 		try {
-			synchronized (ftpService) {
-				ftpService.start();
-				ftpService.wait();
+			ftpService.setPage(offset, limit);
+			listingFields = ListingWriter.parseFields(fields);
+		} catch (Exception e) {
+			asyncResponse.resume(HandleException.handleException(e, logger));
+			return;
+		}
+		ftpService.setStreamed(stream);
+		ftpService.setFields(listingFields);
+
+		resume(asyncResponse, timeout, ftpService.submit(), result -> {
+			long age = ftpService.getCacheAge();
+			ResponseBuilder response;
+			if (result instanceof ListingEntry[]) {
+				ListingWriter listing = new ListingWriter((ListingEntry[]) result, listingFields);
+				// a streamed listing is written before its tag could be known
+				String etag = listing.getEtag();
+				response = Validators.matches(ifNoneMatch, etag) ? Response.notModified()
+						: Response.ok(listing, MediaType.APPLICATION_JSON);
+				response.header(HttpHeaders.ETAG, etag);
+			} else {
+				response = Response.ok(result, MediaType.APPLICATION_JSON);
 			}
-
-			if (ftpService.getException() != null) {
-				// It means that something went wrong in the thread, need to notice the client
-				throw ftpService.getException();
+			response.header("X-Cache", age >= 0 ? "HIT" : "MISS");
+			if (age >= 0) {
+				response.header("Age", age / 1000);
 			}
-
-			return Response.ok(ftpService.getResultObject()).build();
-		} catch (Exception e) {
-			return HandleException.handleException(e, logger);
-		} finally {
-			// Disconnect server
-			try {
-				ftpService.logout();
-			} catch (IOException e) {
-				// Do nothing server already close
+			if (ftpService.getNextOffset() >= 0) {
+				response.header("X-Next-Offset", ftpService.getNextOffset());
 			}
-		}
+			return response.build();
+		});
 	}
 
 	/**
 	 * Method handling HTTP get requests. The returned object will be sent to the
-	 * client as "application/octet_stream" media type.
+	 * client as "application/json" media type. The directories are listed in
+	 * parallel over several ftp connections and the tree is written as the
+	 * listings arrive.
 	 * 
 	 * @param alias         the ftp server
-	 * @param path          path of the file
+	 * @param path          path of the root repository
 	 * @param mode          set passive to enter in passive mode, All other values
 	 *                      let active
+	 * @param depth         number of levels listed (1 for the entries of the
+	 *                      repository only), Constant.TREE_DEFAULT_DEPTH if not
+	 *                      specified
+	 * @param fields        comma separated fields of the entries (name, type,
+	 *                      size, modified, permissions, user, group, link or
+	 *                      all), name,type,size,modified if not specified
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
 	 * @param authorization HTTP request header authorization value
-	 *
-	 * @return Response will be the download of the specified file (path) or an
-	 *         error code with a message corresponding to the exception caught.
+	 * @param asyncResponse suspended response, resumed with the tree of the
+	 *                      specified folder (path), each directory holding its
+	 *                      entries, or an error code with a message
+	 *                      corresponding to the exception caught.
 	 *
 	 */
 	@GET
-	@Path("files/{path: .*}")
-	public Response getFile(@PathParam("alias") String alias, @PathParam("path") String path,
-			@QueryParam("mode") String mode, @HeaderParam("Authorization") String authorization) {
-
-		FtpService ftpService = new FtpService(alias, authorization, Command.GETF, path, null, mode);
+	@Path("/tree/{path: .*}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void getTree(@PathParam("alias") String alias, @PathParam("path") String path,
+			@QueryParam("mode") String mode, @QueryParam("depth") Integer depth, @QueryParam("fields") String fields,
+			@QueryParam("timeout") Long timeout, @HeaderParam("Authorization") String authorization,
+			@Suspended final AsyncResponse asyncResponse) {
 
+		FtpService ftpService = new FtpService(alias, authorization, Command.TREE, path, null, mode);
 		try {
-			synchronized (ftpService) {
-				ftpService.start();
-
-				ftpService.wait();
-			}
-
-			if (ftpService.getException() != null) {
-				// It means that something went wrong in the thread, need to notice the client
-				throw ftpService.getException();
-			}
-
-			return Response.ok(ftpService.getResultObject(), MediaType.APPLICATION_OCTET_STREAM).build();
-
+			ftpService.setDepth(depth);
+			ftpService.setFields(ListingWriter.parseFields(fields));
 		} catch (Exception e) {
-			return HandleException.handleException(e, logger);
-		} finally {
-			// Disconnect server
-			try {
-				ftpService.logout();
-			} catch (IOException e) {
-				// Do nothing server already close
-			}
+			asyncResponse.resume(HandleException.handleException(e, logger));
+			return;
 		}
+
+		resume(asyncResponse, timeout, ftpService.submit(),
+				result -> Response.ok(result, MediaType.APPLICATION_JSON).build());
 	}
 
 	/**
 	 * Method handling HTTP get requests. The returned object will be sent to the
-	 * client as "application/octet_stream" media type.
+	 * client as "application/octet_stream" media type. The Range and If-Range
+	 * headers are honored: the requested byte ranges are sent with a 206 Partial
+	 * Content, several ranges as a "multipart/byteranges" body. The file is sent
+	 * with its ETag and Last-Modified, a 304 Not Modified answers the
+	 * If-None-Match and If-Modified-Since headers matching the current version of
+	 * the file without retrieving it.
+	 * 
+	 * @param alias           the ftp server
+	 * @param path            path of the file
+	 * @param mode            set passive to enter in passive mode, All other
+	 *                        values let active
+	 * @param segmented       true to download a large file over several ftp
+	 *                        connections at once
+	 * @param timeout         maximum time in seconds to wait for the ftp server,
+	 *                        Constant.REQUEST_TIMEOUT if not specified
+	 * @param range           HTTP request header range value
+	 * @param ifRange         HTTP request header if-range value
+	 * @param ifNoneMatch     HTTP request header if-none-match value
+	 * @param ifModifiedSince HTTP request header if-modified-since value
+	 * @param authorization   HTTP request header authorization value
+	 * @param asyncResponse   suspended response, resumed with the download of
+	 *                        the specified file (path), a 304 or an error code
+	 *                        with a message corresponding to the exception
+	 *                        caught.
+	 *
+	 */
+	@GET
+	@Path("files/{path: .*}")
+	public void getFile(@PathParam("alias") String alias, @PathParam("path") String path,
+			@QueryParam("mode") String mode, @QueryParam("segmented") boolean segmented,
+			@QueryParam("timeout") Long timeout, @HeaderParam("Range") String range,
+			@HeaderParam("If-Range") String ifRange, @HeaderParam("If-None-Match") String ifNoneMatch,
+			@HeaderParam("If-Modified-Since") String ifModifiedSince,
+			@HeaderParam("Authorization") String authorization, @Suspended final AsyncResponse asyncResponse) {
+
+		FtpService ftpService = new FtpService(alias, authorization, Command.GETF, path, null, mode, range,
+				ifRange);
+		ftpService.setSegmented(segmented);
+		ftpService.setConditions(ifNoneMatch, ifModifiedSince);
+
+		resume(asyncResponse, timeout, ftpService.submit(), result -> {
+			ResponseBuilder response = ftpService.isNotModified() ? Response.notModified()
+					: download((FtpDownload) result);
+			response.header(HttpHeaders.ETAG, ftpService.getEtag());
+			if (ftpService.getLastModified() >= 0) {
+				response.lastModified(new Date(ftpService.getLastModified()));
+			}
+			return response.build();
+		});
+	}
+
+	/**
+	 * Method handling HTTP get requests. The remote repository is downloaded in
+	 * parallel over several ftp connections. The returned object will be sent to
+	 * the client as "application/json" media type. With a format, the repository
+	 * is sent to the client as a zip or tar.gz archive instead, written as its
+	 * files are retrieved.
 	 * 
 	 * @param alias         the ftp server
 	 * @param path          path of the remote repository
 	 * @param mode          set passive to enter in passive mode, All other values
 	 *                      let active
+	 * @param segmented     true to download the large files over several ftp
+	 *                      connections at once
+	 * @param format        zip or tar.gz to receive an archive, null to download
+	 *                      to downloadFolder
+	 * @param async         true to run the download as a job, answered right
+	 *                      away with its state (202), not with an archive
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
 	 * @param authorization HTTP request header authorization value
-	 *
-	 * @return Response will be the 204 no content or an error code with a message
-	 *         corresponding to the exception caught.
+	 * @param asyncResponse suspended response, resumed with the report of the
+	 *                      download (files, directories, bytes and entries
+	 *                      which failed), the archive or an error code with a
+	 *                      message corresponding to the exception caught.
 	 *
 	 */
 	@GET
 	@Path("repositories/{path: .*}")
-	public Response getRepository(@PathParam("alias") String alias, @PathParam("path") String path,
+	@Produces({ MediaType.APPLICATION_JSON, "application/zip", "application/gzip" })
+	public void getRepository(@PathParam("alias") String alias, @PathParam("path") String path,
 			@QueryParam("downloadFolder") String downloadFolder, @QueryParam("mode") String mode,
-			@HeaderParam("Authorization") String authorization) {
+			@QueryParam("segmented") boolean segmented, @QueryParam("format") String format,
+			@QueryParam("async") boolean async, @QueryParam("timeout") Long timeout,
+			@HeaderParam("Authorization") String authorization, @Suspended final AsyncResponse asyncResponse) {
 
 		FtpService ftpService = new FtpService(alias, authorization, Command.GETD, path, downloadFolder, mode);
-
+		ftpService.setSegmented(segmented);
 		try {
-
-			synchronized (ftpService) {
-				ftpService.start();
-				ftpService.wait();
-			}
-
-			if (ftpService.getException() != null) {
-				// It means that something went wrong in the thread, need to notice the client
-				throw ftpService.getException();
+			ftpService.setFormat(format);
+			if (async && format != null) {
+				throw new BadRequestException("An archive cannot be sent by a job");
 			}
-			return Response.status(Response.Status.NO_CONTENT).build();
 		} catch (Exception e) {
-			return HandleException.handleException(e, logger);
-		} finally {
-			// Disconnect server
-			try {
-				ftpService.logout();
-			} catch (IOException e) {
-				// Do nothing server already close
-			}
+			asyncResponse.resume(HandleException.handleException(e, logger));
+			return;
 		}
+		if (async) {
+			submitJob(asyncResponse, alias, authorization, Command.GETD, path, ftpService);
+			return;
+		}
+
+		resume(asyncResponse, timeout, ftpService.submit(), result -> {
+			if (result instanceof FtpArchive) {
+				FtpArchive archive = (FtpArchive) result;
+				return Response.ok(archive, archive.getContentType())
+						.header("Content-Disposition", "attachment; filename=\"" + archive.getFileName() + "\"")
+						.build();
+			}
+			return Response.ok(result, MediaType.APPLICATION_JSON).build();
+		});
 	}
 
 	/**
@@ -183,45 +318,66 @@ public class FtpResource {
 	 * @param localPath     path of the file or repository to store
 	 * @param mode          set passive to enter in passive mode, All other values
 	 *                      let active
+	 * @param async         true to run the upload as a job, answered right away
+	 *                      with its state (202)
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
 	 * @param authorization HTTP request header authorization value
-	 *
-	 * @return Response will be 204 no content or an error code with a message
-	 *         corresponding to the exception caught.
+	 * @param asyncResponse suspended response, resumed with the TransferReport
+	 *                      of the upload or an error code with a message
+	 *                      corresponding to the exception caught.
 	 *
 	 */
 	@PUT
 	@Path("/{path: .*}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response uploadFile(@PathParam("alias") String alias, @PathParam("path") String path,
+	public void uploadFile(@PathParam("alias") String alias, @PathParam("path") String path,
 			@QueryParam("localPath") String localPath, @QueryParam("mode") String mode,
-			@HeaderParam("Authorization") String authorization) {
+			@QueryParam("async") boolean async, @QueryParam("timeout") Long timeout,
+			@HeaderParam("Authorization") String authorization, @Suspended final AsyncResponse asyncResponse) {
 
 		FtpService ftpService = new FtpService(alias, authorization, Command.PUT, path, localPath, mode);
+		if (async) {
+			submitJob(asyncResponse, alias, authorization, Command.PUT, path, ftpService);
+			return;
+		}
 
-		try {
-
-			synchronized (ftpService) {
-				ftpService.start();
-				ftpService.wait();
-			}
+		resume(asyncResponse, timeout, ftpService.submit(), result -> Response.ok(result).build());
+	}
 
-			if (ftpService.getException() != null) {
-				// It means that something went wrong in the thread, need to notice the client
-				throw ftpService.getException();
-			}
+	/**
+	 * Method handling HTTP PUT requests. The request body is streamed to the ftp
+	 * server, either as is ("application/octet-stream") or the first file of a
+	 * "multipart/form-data" body. The returned object will be sent to the client
+	 * as "application/json" media type.
+	 * 
+	 * @param alias         the ftp server
+	 * @param path          remote path of the file, for a multipart body a
+	 *                      directory ending with / keeps the uploaded file name
+	 * @param mode          set passive to enter in passive mode, All other values
+	 *                      let active
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
+	 * @param contentType   HTTP request header content type value
+	 * @param authorization HTTP request header authorization value
+	 * @param body          HTTP request body
+	 * @param asyncResponse suspended response, resumed with the path of the file
+	 *                      stored and the number of bytes written or an error
+	 *                      code with a message corresponding to the exception
+	 *                      caught.
+	 */
+	@PUT
+	@Path("files/{path: .*}")
+	@Consumes({ MediaType.APPLICATION_OCTET_STREAM, MediaType.MULTIPART_FORM_DATA })
+	@Produces(MediaType.APPLICATION_JSON)
+	public void uploadBody(@PathParam("alias") String alias, @PathParam("path") String path,
+			@QueryParam("mode") String mode, @QueryParam("timeout") Long timeout,
+			@HeaderParam("Content-Type") String contentType, @HeaderParam("Authorization") String authorization,
+			InputStream body, @Suspended final AsyncResponse asyncResponse) {
 
-			return Response.status(Response.Status.NO_CONTENT).build();
+		FtpService ftpService = new FtpService(alias, authorization, Command.STOR, path, contentType, mode, body);
 
-		} catch (Exception e) {
-			return HandleException.handleException(e, logger);
-		} finally {
-			// Disconnect session
-			try {
-				ftpService.logout();
-			} catch (IOException e) {
-				// Do nothing server already close
-			}
-		}
+		resume(asyncResponse, timeout, ftpService.submit(), result -> Response.ok(result).build());
 	}
 
 	/**
@@ -233,42 +389,25 @@ public class FtpResource {
 	 * @param name          new name of the remote repository/file
 	 * @param mode          set passive to enter in passive mode, All other values
 	 *                      let active
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
 	 * @param authorization HTTP request header authorization value
-	 *
-	 * @return Response will be the new path of the the remote repository/file or an
-	 *         error code with a message corresponding to the exception caught.
+	 * @param asyncResponse suspended response, resumed with the new path of the
+	 *                      the remote repository/file or an error code with a
+	 *                      message corresponding to the exception caught.
 	 *
 	 */
 	@PUT
 	@Path("rename/{path: .*}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response renameFIle(@PathParam("alias") String alias, @PathParam("path") String path,
+	public void renameFIle(@PathParam("alias") String alias, @PathParam("path") String path,
 			@QueryParam("name") String name, @QueryParam("mode") String mode,
-			@HeaderParam("Authorization") String authorization) {
+			@QueryParam("timeout") Long timeout, @HeaderParam("Authorization") String authorization,
+			@Suspended final AsyncResponse asyncResponse) {
 
 		FtpService ftpService = new FtpService(alias, authorization, Command.REN, path, name, mode);
 
-		try {
-			synchronized (ftpService) {
-				ftpService.start();
-				ftpService.wait();
-			}
-
-			if (ftpService.getException() != null) {
-				// It means that something went wrong in the thread, need to notice the client
-				throw ftpService.getException();
-			}
-			return Response.ok(ftpService.getResultObject()).build();
-		} catch (Exception e) {
-			return HandleException.handleException(e, logger);
-		} finally {
-			// Disconnect session
-			try {
-				ftpService.logout();
-			} catch (IOException e) {
-				// Do nothing server already close
-			}
-		}
+		resume(asyncResponse, timeout, ftpService.submit(), result -> Response.ok(result).build());
 	}
 
 	/**
@@ -279,43 +418,123 @@ public class FtpResource {
 	 * @param path          path of the new repository
 	 * @param mode          set passive to enter in passive mode, All other values
 	 *                      let active
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
 	 * @param authorization HTTP request header authorization value
-	 *
-	 * @return Response will be the path of the newly created directory or an error
-	 *         code with a message corresponding to the exception caught.
+	 * @param asyncResponse suspended response, resumed with the path of the
+	 *                      newly created directory or an error code with a
+	 *                      message corresponding to the exception caught.
 	 *
 	 */
 	@POST
 	@Path("repositories/{path: .*}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response createFile(@PathParam("alias") String alias, @PathParam("path") String path,
-			@QueryParam("mode") String mode, @HeaderParam("Authorization") String authorization) {
+	public void createFile(@PathParam("alias") String alias, @PathParam("path") String path,
+			@QueryParam("mode") String mode, @QueryParam("timeout") Long timeout,
+			@HeaderParam("Authorization") String authorization, @Suspended final AsyncResponse asyncResponse) {
 
 		FtpService ftpService = new FtpService(alias, authorization, Command.MKD, path, null, mode);
 
-		try {
-
-			synchronized (ftpService) {
-				ftpService.start();
-				ftpService.wait();
-			}
+		resume(asyncResponse, timeout, ftpService.submit(), result -> Response.ok(result).build());
+	}
 
-			if (ftpService.getException() != null) {
-				// It means that something went wrong in the thread, need to notice the client
-				throw ftpService.getException();
-			}
+	/**
+	 * Method handling HTTP POST requests. The returned object will be sent to the
+	 * client as "application/json" media type. Synchronizes the remote repository
+	 * and a local one: only the files whose size or modification date changed
+	 * since the previous synchronization of the same repositories are
+	 * transferred, in parallel.
+	 * 
+	 * @param alias         the ftp server
+	 * @param path          path of the remote repository
+	 * @param localPath     path of the local repository
+	 * @param direction     download, upload or both (by default)
+	 * @param delete        true to delete the files deleted on the other side,
+	 *                      otherwise they are copied back
+	 * @param async         true to run the synchronization as a job, answered
+	 *                      right away with its state (202)
+	 * @param mode          set passive to enter in passive mode, All other values
+	 *                      let active
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
+	 * @param authorization HTTP request header authorization value
+	 * @param asyncResponse suspended response, resumed with the SyncReport (the
+	 *                      changes applied, the totals and the entries which
+	 *                      failed) or an error code with a message corresponding
+	 *                      to the exception caught.
+	 *
+	 */
+	@POST
+	@Path("sync/{path: .*}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void sync(@PathParam("alias") String alias, @PathParam("path") String path,
+			@QueryParam("localPath") String localPath, @QueryParam("direction") String direction,
+			@QueryParam("delete") boolean delete, @QueryParam("mode") String mode,
+			@QueryParam("async") boolean async, @QueryParam("timeout") Long timeout,
+			@HeaderParam("Authorization") String authorization, @Suspended final AsyncResponse asyncResponse) {
 
-			return Response.ok(ftpService.getResultObject()).build();
+		FtpService ftpService = new FtpService(alias, authorization, Command.SYNC, path, localPath, mode);
+		try {
+			ftpService.setSync(direction, delete);
 		} catch (Exception e) {
-			return HandleException.handleException(e, logger);
-		} finally {
-			// Disconnect session
-			try {
-				ftpService.logout();
-			} catch (IOException e) {
-				// Do nothing server already close
-			}
+			asyncResponse.resume(HandleException.handleException(e, logger));
+			return;
+		}
+		if (async) {
+			submitJob(asyncResponse, alias, authorization, Command.SYNC, path, ftpService);
+			return;
+		}
+
+		resume(asyncResponse, timeout, ftpService.submit(), result -> Response.ok(result).build());
+	}
+
+	/**
+	 * Method handling HTTP POST requests. The returned object will be sent to the
+	 * client as "application/json" media type. Copies a file or a repository to
+	 * another registered ftp server (or to another path of the same one) without
+	 * going through the local disk: straight from server to server (FXP) when
+	 * they allow it, through FlopBox otherwise. The files of a repository are
+	 * copied in parallel.
+	 * 
+	 * @param alias           the ftp server of the source
+	 * @param path            path of the file or repository to copy
+	 * @param toAlias         the ftp server receiving the copy, the source one if
+	 *                        not specified
+	 * @param toPath          path of the copy, the path of the source if not
+	 *                        specified
+	 * @param async           true to run the copy as a job, answered right away
+	 *                        with its state (202)
+	 * @param mode            set passive to enter in passive mode, All other
+	 *                        values let active
+	 * @param timeout         maximum time in seconds to wait for the ftp servers,
+	 *                        Constant.REQUEST_TIMEOUT if not specified
+	 * @param authorization   HTTP request header authorization value
+	 * @param toAuthorization basic authorization of the target server, the
+	 *                        authorization value if not specified
+	 * @param asyncResponse   suspended response, resumed with the CopyReport
+	 *                        (files, directories, bytes, files copied with FXP
+	 *                        or relayed and entries which failed) or an error
+	 *                        code with a message corresponding to the exception
+	 *                        caught.
+	 *
+	 */
+	@POST
+	@Path("copy/{path: .*}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void copy(@PathParam("alias") String alias, @PathParam("path") String path,
+			@QueryParam("toAlias") String toAlias, @QueryParam("toPath") String toPath,
+			@QueryParam("async") boolean async, @QueryParam("mode") String mode, @QueryParam("timeout") Long timeout,
+			@HeaderParam("Authorization") String authorization,
+			@HeaderParam("X-To-Authorization") String toAuthorization, @Suspended final AsyncResponse asyncResponse) {
+
+		FtpService ftpService = new FtpService(alias, authorization, Command.COPY, path, null, mode);
+		ftpService.setCopyTarget(toAlias, toPath, toAuthorization);
+		if (async) {
+			submitJob(asyncResponse, alias, authorization, Command.COPY, path, ftpService);
+			return;
 		}
+
+		resume(asyncResponse, timeout, ftpService.submit(), result -> Response.ok(result).build());
 	}
 
 	/**
@@ -324,40 +543,377 @@ public class FtpResource {
 	 * 
 	 * @param alias         the ftp server
 	 * @param path          path of the repository to delete
+	 * @param async         true to run the deletion as a job, answered right
+	 *                      away with its state (202)
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
 	 * @param authorization HTTP request header authorization value
-	 *
-	 * @return Response will be 204 or an error code with a message
-	 *         corresponding to the exception caught.
+	 * @param asyncResponse suspended response, resumed with 204 if everything
+	 *                      is deleted, 200 with the TransferReport if some
+	 *                      entries could not be deleted or an error code with a
+	 *                      message corresponding to the exception caught.
 	 */
 	@DELETE
 	@Path("repositories/{path: .*}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response deleteRepository(@PathParam("alias") String alias, @PathParam("path") String path,
-			@QueryParam("mode") String mode, @HeaderParam("Authorization") String authorization) {
+	public void deleteRepository(@PathParam("alias") String alias, @PathParam("path") String path,
+			@QueryParam("mode") String mode, @QueryParam("async") boolean async, @QueryParam("timeout") Long timeout,
+			@HeaderParam("Authorization") String authorization, @Suspended final AsyncResponse asyncResponse) {
 
 		FtpService ftpService = new FtpService(alias, authorization, Command.RMD, path, null, mode);
+		if (async) {
+			submitJob(asyncResponse, alias, authorization, Command.RMD, path, ftpService);
+			return;
+		}
+
+		resume(asyncResponse, timeout, ftpService.submit(), result -> {
+			TransferReport report = (TransferReport) result;
+			if (report.getFailures().isEmpty()) {
+				return Response.status(Response.Status.NO_CONTENT).build();
+			}
+			return Response.ok(report).build();
+		});
+	}
+
+	/**
+	 * Method handling HTTP post requests. The returned object will be sent to the
+	 * client as "application/json" media type. Starts indexing the files of the
+	 * server for the user: the index is crawled in the background right away and
+	 * then every Constant.INDEX_CRAWL_INTERVAL. Posting again crawls it again
+	 * right away.
+	 * 
+	 * @param alias         the ftp server
+	 * @param mode          set passive to enter in passive mode, All other values
+	 *                      let active
+	 * @param full          true to list every directory again instead of the
+	 *                      modified ones only
+	 * @param timeout       maximum time in seconds to wait for the ftp server,
+	 *                      Constant.REQUEST_TIMEOUT if not specified
+	 * @param authorization HTTP request header authorization value
+	 * @param asyncResponse suspended response, resumed with a 202 and the state
+	 *                      of the index or an error code with a message
+	 *                      corresponding to the exception caught.
+	 *
+	 */
+	@POST
+	@Path("index")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void startIndex(@PathParam("alias") String alias, @QueryParam("mode") String mode,
+			@QueryParam("full") boolean full, @QueryParam("timeout") Long timeout,
+			@HeaderParam("Authorization") String authorization, @Suspended final AsyncResponse asyncResponse) {
 
+		FtpService ftpService = new FtpService(alias, authorization, Command.INDEX, "", null, mode);
+		ftpService.setFull(full);
+
+		resume(asyncResponse, timeout, ftpService.submit(),
+				result -> Response.status(Response.Status.ACCEPTED).entity(result).build());
+	}
+
+	/**
+	 * Method handling HTTP get requests. The returned object will be sent to the
+	 * client as "application/json" media type.
+	 * 
+	 * @param alias         the ftp server
+	 * @param authorization HTTP request header authorization value
+	 * @return Response will be the state of the index of the server (number of
+	 *         entries, last crawl...) or an error code with a message
+	 *         corresponding to the exception caught.
+	 */
+	@GET
+	@Path("index")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getIndex(@PathParam("alias") String alias, @HeaderParam("Authorization") String authorization) {
 		try {
+			return Response.ok(IndexService.getInstance().getStatus(alias, authorization)).build();
+		} catch (Exception e) {
+			return HandleException.handleException(e, logger);
+		}
+	}
 
-			synchronized (ftpService) {
-				ftpService.start();
-				ftpService.wait();
-			}
+	/**
+	 * Method handling HTTP delete requests. Stops indexing the server for the user
+	 * and deletes its index.
+	 * 
+	 * @param alias         the ftp server
+	 * @param authorization HTTP request header authorization value
+	 * @return Response will be a 204 or an error code with a message
+	 *         corresponding to the exception caught.
+	 */
+	@DELETE
+	@Path("index")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response deleteIndex(@PathParam("alias") String alias,
+			@HeaderParam("Authorization") String authorization) {
+		try {
+			IndexService.getInstance().stop(alias, authorization);
+			return Response.status(Response.Status.NO_CONTENT).build();
+		} catch (Exception e) {
+			return HandleException.handleException(e, logger);
+		}
+	}
+
+	/**
+	 * Method handling HTTP get requests. The returned object will be sent to the
+	 * client as "application/json" media type.
+	 * 
+	 * @param alias         the ftp server
+	 * @param authorization HTTP request header authorization value
+	 * @return Response will be the state of the jobs of the user on the server,
+	 *         the oldest first, or an error code with a message corresponding to
+	 *         the exception caught.
+	 */
+	@GET
+	@Path("jobs")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getJobs(@PathParam("alias") String alias, @HeaderParam("Authorization") String authorization) {
+		try {
+			return Response.ok(JobService.getInstance().list(alias, authorization)).build();
+		} catch (Exception e) {
+			return HandleException.handleException(e, logger);
+		}
+	}
+
+	/**
+	 * Method handling HTTP get requests. The returned object will be sent to the
+	 * client as "application/json" media type.
+	 * 
+	 * @param alias         the ftp server
+	 * @param id            id of the job
+	 * @param authorization HTTP request header authorization value
+	 * @return Response will be the state of the job (progress, throughput, time
+	 *         left, failures and the result once over) or an error code with a
+	 *         message corresponding to the exception caught.
+	 */
+	@GET
+	@Path("jobs/{id}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getJob(@PathParam("alias") String alias, @PathParam("id") String id,
+			@HeaderParam("Authorization") String authorization) {
+		try {
+			return Response.ok(JobService.getInstance().getStatus(alias, authorization, id)).build();
+		} catch (Exception e) {
+			return HandleException.handleException(e, logger);
+		}
+	}
 
-			if (ftpService.getException() != null) {
-				// It means that something went wrong in the thread, need to notice the client
-				throw ftpService.getException();
+	/**
+	 * Method handling HTTP delete requests. Cancels a job which is not over: a
+	 * queued job never runs, a running one stops at the next buffer of the files
+	 * in progress. Forgets a job which is over.
+	 * 
+	 * @param alias         the ftp server
+	 * @param id            id of the job
+	 * @param authorization HTTP request header authorization value
+	 * @return Response will be the state of the cancelled job, a 204 if it was
+	 *         over or an error code with a message corresponding to the exception
+	 *         caught.
+	 */
+	@DELETE
+	@Path("jobs/{id}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response cancelJob(@PathParam("alias") String alias, @PathParam("id") String id,
+			@HeaderParam("Authorization") String authorization) {
+		try {
+			JobStatus status = JobService.getInstance().cancel(alias, authorization, id);
+			if (status == null) {
+				return Response.status(Response.Status.NO_CONTENT).build();
 			}
+			return Response.ok(status).build();
+		} catch (Exception e) {
+			return HandleException.handleException(e, logger);
+		}
+	}
 
-			return Response.status(Response.Status.NO_CONTENT).build();
+	/**
+	 * Method handling HTTP get requests. The progress of the job is sent to the
+	 * client as "text/event-stream" media type: a "progress" event with the state
+	 * of the job right away and then at most once per flopbox.progress.interval
+	 * while it transfers data, and a last event named after its final state (done,
+	 * failed or cancelled) which ends the stream.
+	 * 
+	 * @param alias         the ftp server
+	 * @param id            id of the job
+	 * @param authorization HTTP request header authorization value
+	 * @param sink          stream of the events
+	 * @param sse           builds the events
+	 * @throws WebApplicationException with an error code and a message
+	 *                                 corresponding to the exception caught.
+	 */
+	@GET
+	@Path("jobs/{id}/events")
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	public void getJobEvents(@PathParam("alias") String alias, @PathParam("id") String id,
+			@HeaderParam("Authorization") String authorization, @Context SseEventSink sink, @Context Sse sse) {
+		try {
+			JobService.getInstance().subscribe(alias, authorization, id, status -> {
+				if (sink.isClosed()) {
+					return false;
+				}
+				boolean over = !"queued".equals(status.getState()) && !"running".equals(status.getState());
+				sink.send(sse.newEventBuilder().name(over ? status.getState() : "progress")
+						.mediaType(MediaType.APPLICATION_JSON_TYPE).data(JobStatus.class, status).build());
+				if (over) {
+					sink.close();
+				}
+				return !over;
+			});
+		} catch (Exception e) {
+			throw new WebApplicationException(HandleException.handleException(e, logger));
+		}
+	}
+
+	/**
+	 * Method handling HTTP get requests. The returned object will be sent to the
+	 * client as "application/json" media type. The files are searched in the index
+	 * of the server, no ftp command is sent.
+	 * 
+	 * @param alias          the ftp server
+	 * @param prefix         the path of the files starts with it
+	 * @param glob           the name of the files (their path if the glob holds
+	 *                       a /) matches it
+	 * @param type           file or directory, both if not specified
+	 * @param minSize        size in bytes at least
+	 * @param maxSize        size in bytes at most
+	 * @param modifiedAfter  modified at or after, in milliseconds
+	 * @param modifiedBefore modified before, in milliseconds
+	 * @param limit          maximum number of files, Constant.SEARCH_LIMIT if not
+	 *                       specified
+	 * @param authorization  HTTP request header authorization value
+	 * @return Response will be the files found in path order, X-Truncated telling
+	 *         if there are more of them, or an error code with a message
+	 *         corresponding to the exception caught.
+	 */
+	@GET
+	@Path("search")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response search(@PathParam("alias") String alias, @QueryParam("prefix") String prefix,
+			@QueryParam("glob") String glob, @QueryParam("type") String type, @QueryParam("minSize") Long minSize,
+			@QueryParam("maxSize") Long maxSize, @QueryParam("modifiedAfter") Long modifiedAfter,
+			@QueryParam("modifiedBefore") Long modifiedBefore, @QueryParam("limit") Integer limit,
+			@HeaderParam("Authorization") String authorization) {
+		try {
+			if (limit != null && limit < 1) {
+				throw new BadRequestException("The limit must be positive");
+			}
+			Boolean directory = null;
+			if (type != null) {
+				if (!type.equals(ListingEntry.FILE) && !type.equals(ListingEntry.DIRECTORY)) {
+					throw new BadRequestException("The type must be file or directory");
+				}
+				directory = type.equals(ListingEntry.DIRECTORY);
+			}
+			FileIndex.Query query = new FileIndex.Query(
+					prefix != null ? ("/" + prefix).replaceAll("/+", "/") : null, glob, directory, minSize, maxSize,
+					modifiedAfter, modifiedBefore);
+			int max = limit != null ? limit : Constant.SEARCH_LIMIT;
+			List<FileMetadata> found = IndexService.getInstance().search(alias, authorization, query, max);
+			boolean truncated = found.size() > max;
+			GenericEntity<List<FileMetadata>> entity = new GenericEntity<List<FileMetadata>>(
+					truncated ? found.subList(0, max) : found) {
+			};
+			return Response.ok(entity).header("X-Truncated", truncated).build();
 		} catch (Exception e) {
 			return HandleException.handleException(e, logger);
-		} finally {
-			// Disconnect session
+		}
+	}
+
+	/**
+	 * Run the command as a job instead of waiting for it, the request is answered
+	 * right away with a 202, the state of the job and its location
+	 * 
+	 * @param asyncResponse suspended response
+	 * @param alias         the ftp server
+	 * @param authorization HTTP request header authorization value
+	 * @param command       the command run by the service
+	 * @param path          path the command works on
+	 * @param ftpService    the command
+	 */
+	private void submitJob(AsyncResponse asyncResponse, String alias, String authorization, Command command,
+			String path, FtpService ftpService) {
+		try {
+			JobStatus status = JobService.getInstance().submit(alias, authorization, command, path, ftpService);
+			asyncResponse.resume(Response.status(Response.Status.ACCEPTED).entity(status)
+					.location(URI.create(alias + "/jobs/" + status.getId())).build());
+		} catch (Exception e) {
+			asyncResponse.resume(HandleException.handleException(e, logger));
+		}
+	}
+
+	/**
+	 * Resume the suspended request once the ftp command run by the FtpExecutor is
+	 * done, the HTTP worker thread is free in the meantime. If the command is not
+	 * done in time the request is answered with a 503 and the command is
+	 * cancelled. A result holding ftp resources (Closeable, such as a download) is
+	 * closed once the response is done with it.
+	 *
+	 * @param asyncResponse suspended response to resume
+	 * @param timeout       maximum time in seconds to wait,
+	 *                      Constant.REQUEST_TIMEOUT if null
+	 * @param future        result of the ftp command
+	 * @param onSuccess     build the response from the result of the command
+	 */
+	private void resume(AsyncResponse asyncResponse, Long timeout, CompletableFuture<Object> future,
+			Function<Object, Response> onSuccess) {
+		asyncResponse.setTimeoutHandler(response -> {
+			future.cancel(true);
+			response.resume(HandleException.handleException(
+					new ServiceUnavailableException("The ftp server did not answer in time"), logger));
+		});
+		asyncResponse.setTimeout(timeout != null && timeout > 0 ? timeout : Constant.REQUEST_TIMEOUT,
+				TimeUnit.SECONDS);
+		// the command is useless once the response is sent (timeout, client gone...)
+		asyncResponse.register((CompletionCallback) throwable -> {
+			future.cancel(true);
+			if (future.isDone() && !future.isCompletedExceptionally()) {
+				closeQuietly(future.join());
+			}
+		});
+
+		future.whenComplete((result, throwable) -> {
+			try {
+				if (throwable != null) {
+					throw throwable instanceof Exception ? (Exception) throwable : new ExecutionException(throwable);
+				}
+				if (!asyncResponse.resume(onSuccess.apply(result))) {
+					// already answered by the timeout handler
+					closeQuietly(result);
+				}
+			} catch (Exception e) {
+				asyncResponse.resume(HandleException.handleException(e, logger));
+			}
+		});
+	}
+
+	/**
+	 * Build the response of a file download
+	 *
+	 * @param download the whole file or the requested ranges
+	 * @return builder of the 200 or 206 response streaming the download
+	 */
+	private ResponseBuilder download(FtpDownload download) {
+		// an ASCII body has converted line endings, its offsets are not those of
+		// the file
+		ResponseBuilder response = Response.status(download.getStatus()).entity(download)
+				.type(download.getContentType()).header("Accept-Ranges", download.isBinary() ? "bytes" : "none")
+				.header("Content-Range", download.getContentRange())
+				.header("X-Cache", download.isCached() ? "HIT" : "MISS");
+		if (download.getLength() >= 0) {
+			response.header(HttpHeaders.CONTENT_LENGTH, download.getLength());
+		}
+		return response;
+	}
+
+	/**
+	 * Close the result of a ftp command if it holds resources
+	 *
+	 * @param result result of the ftp command
+	 */
+	private void closeQuietly(Object result) {
+		if (result instanceof Closeable) {
 			try {
-				ftpService.logout();
+				((Closeable) result).close();
 			} catch (IOException e) {
-				// Do nothing server already close
+				logger.error("Unable to close " + result + " : " + e.toString());
 			}
 		}
 	}
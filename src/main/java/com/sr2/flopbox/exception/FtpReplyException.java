@@ -0,0 +1,40 @@
+package com.sr2.flopbox.exception;
+
+import java.io.IOException;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/**
+ * Exception thrown when the ftp server refuses a command of a recursive
+ * transfer. Unlike the other I/O errors the connection is still usable, and
+ * the command is only worth retrying if the refusal is transient (4xx).
+ *
+ * @author Adrien Holvoet
+ */
+public class FtpReplyException extends IOException {
+	private static final long serialVersionUID = 1L;
+	// private final because the reply cannot change
+	private final int replyCode;
+
+	/**
+	 * Constructor, the message is the last reply of the server
+	 *
+	 * @param client client which received the reply
+	 */
+	public FtpReplyException(FTPClient client) {
+		super("FTP : " + client.getReplyString());
+		this.replyCode = client.getReplyCode();
+	}
+
+	public int getReplyCode() {
+		return replyCode;
+	}
+
+	/**
+	 * @return true if the server will refuse the same command again (5xx)
+	 */
+	public boolean isPermanent() {
+		return FTPReply.isNegativePermanent(replyCode);
+	}
+}
@@ -1,13 +1,18 @@
 package com.sr2.flopbox.exception;
 
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
 import org.apache.logging.log4j.Logger;
 
 import com.sr2.flopbox.model.ErrorResponse;
 
 import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ClientErrorException;
 import jakarta.ws.rs.ForbiddenException;
 import jakarta.ws.rs.NotAllowedException;
 import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.ServiceUnavailableException;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 
@@ -38,6 +43,12 @@ public final class HandleException {
 	 */
 	public static final Response handleException(Exception e, Logger logger) {
 
+		// exceptions raised by the ftp workers come wrapped by the future
+		if ((e instanceof ExecutionException || e instanceof CompletionException)
+				&& e.getCause() instanceof Exception) {
+			e = (Exception) e.getCause();
+		}
+
 		// if an unknown error occurs throws a 500 error
 		Status status = Response.Status.INTERNAL_SERVER_ERROR;
 		String message = "Something went wrong. Please try again later";
@@ -63,8 +74,22 @@ public final class HandleException {
 			message = e.getMessage() + " You don't have enough Permission";
 		}
 
+		if (e instanceof ServiceUnavailableException) {
+			status = Response.Status.SERVICE_UNAVAILABLE;
+			message = e.getMessage();
+		}
+
+		String contentRange = null;
+		if (e instanceof ClientErrorException && ((ClientErrorException) e).getResponse()
+				.getStatus() == Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode()) {
+			status = Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+			message = e.getMessage();
+			// the client needs the size of the file to ask for a valid range
+			contentRange = ((ClientErrorException) e).getResponse().getHeaderString("Content-Range");
+		}
+
 		logger.error("Status : " + status + ", Message : " + e.toString());
-		return Response.status(status).entity(new ErrorResponse(status.getStatusCode(), message.replace("\r\n", "")))
-				.build();
+		return Response.status(status).header("Content-Range", contentRange)
+				.entity(new ErrorResponse(status.getStatusCode(), message.replace("\r\n", ""))).build();
 	}
 }
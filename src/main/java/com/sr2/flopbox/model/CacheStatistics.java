@@ -0,0 +1,144 @@
+package com.sr2.flopbox.model;
+
+/**
+ * Class which represents the counters of the local cache of the downloaded
+ * files sent back to the client: its policy and size, the copies it keeps and
+ * how often they were used since the start of FlopBox
+ *
+ * @author Adrien Holvoet
+ */
+public class CacheStatistics {
+	// All private because there are all only used inside the class
+	private String policy;
+	private long capacity;
+	private long entries;
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long stale;
+	private long shared;
+	private long evictions;
+	private long bytesServed;
+	private long bytesStored;
+
+	/**
+	 * Default constructor
+	 */
+	public CacheStatistics() {
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param policy   lru or lfu
+	 * @param capacity bytes the copies can take
+	 */
+	public CacheStatistics(String policy, long capacity) {
+		this.policy = policy;
+		this.capacity = capacity;
+	}
+
+	public String getPolicy() {
+		return policy;
+	}
+
+	public void setPolicy(String policy) {
+		this.policy = policy;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	public long getEntries() {
+		return entries;
+	}
+
+	public void setEntries(long entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * @return bytes taken by the copies
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public void setHits(long hits) {
+		this.hits = hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public void setMisses(long misses) {
+		this.misses = misses;
+	}
+
+	/**
+	 * @return copies dropped because the file changed on the server
+	 */
+	public long getStale() {
+		return stale;
+	}
+
+	public void setStale(long stale) {
+		this.stale = stale;
+	}
+
+	/**
+	 * @return downloads sent from a copy still being written by another download
+	 *         of the same file
+	 */
+	public long getShared() {
+		return shared;
+	}
+
+	public void setShared(long shared) {
+		this.shared = shared;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public void setEvictions(long evictions) {
+		this.evictions = evictions;
+	}
+
+	/**
+	 * @return bytes sent from the copies instead of the ftp servers
+	 */
+	public long getBytesServed() {
+		return bytesServed;
+	}
+
+	public void setBytesServed(long bytesServed) {
+		this.bytesServed = bytesServed;
+	}
+
+	/**
+	 * @return bytes written to the copies
+	 */
+	public long getBytesStored() {
+		return bytesStored;
+	}
+
+	public void setBytesStored(long bytesStored) {
+		this.bytesStored = bytesStored;
+	}
+}
@@ -0,0 +1,67 @@
+package com.sr2.flopbox.model;
+
+/**
+ * Class which represents the summary of a server to server copy sent back to
+ * the client: the totals of the transfer, the target server and path, and the
+ * number of files sent straight from the source server to the target one
+ * (FXP) or relayed through FlopBox
+ * 
+ * @author Adrien Holvoet
+ */
+public class CopyReport extends TransferReport {
+	// All private because there are all only used inside the class
+	private String toAlias;
+	private String toPath;
+	private long fxp;
+	private long relayed;
+
+	/**
+	 * Default constructor
+	 */
+	public CopyReport() {
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param transfer totals and failures of the transfer
+	 */
+	public CopyReport(TransferReport transfer) {
+		super(transfer.getPath(), transfer.getFiles(), transfer.getBytes());
+		setDirectories(transfer.getDirectories());
+		setElapsed(transfer.getElapsed());
+		setFailures(transfer.getFailures());
+	}
+
+	public String getToAlias() {
+		return toAlias;
+	}
+
+	public void setToAlias(String toAlias) {
+		this.toAlias = toAlias;
+	}
+
+	public String getToPath() {
+		return toPath;
+	}
+
+	public void setToPath(String toPath) {
+		this.toPath = toPath;
+	}
+
+	public long getFxp() {
+		return fxp;
+	}
+
+	public void setFxp(long fxp) {
+		this.fxp = fxp;
+	}
+
+	public long getRelayed() {
+		return relayed;
+	}
+
+	public void setRelayed(long relayed) {
+		this.relayed = relayed;
+	}
+}
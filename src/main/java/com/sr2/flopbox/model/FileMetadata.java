@@ -0,0 +1,68 @@
+package com.sr2.flopbox.model;
+
+/**
+ * Class which represents the metadata of a remote file or directory, as given
+ * by the ftp server without transferring it
+ *
+ * @author Adrien Holvoet
+ */
+public class FileMetadata {
+	// All private because there are all only used inside the class
+	private String path;
+	private boolean directory;
+	private long size = -1;
+	private long lastModified = -1;
+
+	/**
+	 * Default constructor
+	 */
+	public FileMetadata() {
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param path
+	 * @param directory
+	 * @param size         size in bytes, -1 if unknown
+	 * @param lastModified last modification in milliseconds, -1 if unknown
+	 */
+	public FileMetadata(String path, boolean directory, long size, long lastModified) {
+		this.path = path;
+		this.directory = directory;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public void setDirectory(boolean directory) {
+		this.directory = directory;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+	}
+}
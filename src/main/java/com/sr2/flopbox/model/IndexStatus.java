@@ -0,0 +1,125 @@
+package com.sr2.flopbox.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class which represents the state of the file index of a server sent back to
+ * the client: the number of files and directories indexed, the size of the
+ * index, whether a crawl is running and what the last crawl did
+ *
+ * @author Adrien Holvoet
+ */
+public class IndexStatus {
+	// All private because there are all only used inside the class
+	private String alias;
+	private long entries;
+	private long bytes;
+	private boolean crawling;
+	private long lastCrawl = -1;
+	private long elapsed;
+	private long listed;
+	private long reused;
+	private List<TransferFailure> failures = new ArrayList<>();
+
+	/**
+	 * Default constructor
+	 */
+	public IndexStatus() {
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param alias
+	 * @param entries number of files and directories indexed
+	 * @param bytes   size of the index in bytes
+	 */
+	public IndexStatus(String alias, long entries, long bytes) {
+		this.alias = alias;
+		this.entries = entries;
+		this.bytes = bytes;
+	}
+
+	public String getAlias() {
+		return alias;
+	}
+
+	public void setAlias(String alias) {
+		this.alias = alias;
+	}
+
+	public long getEntries() {
+		return entries;
+	}
+
+	public void setEntries(long entries) {
+		this.entries = entries;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public boolean isCrawling() {
+		return crawling;
+	}
+
+	public void setCrawling(boolean crawling) {
+		this.crawling = crawling;
+	}
+
+	/**
+	 * @return end of the last crawl in milliseconds, -1 if none is over
+	 */
+	public long getLastCrawl() {
+		return lastCrawl;
+	}
+
+	public void setLastCrawl(long lastCrawl) {
+		this.lastCrawl = lastCrawl;
+	}
+
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	public void setElapsed(long elapsed) {
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * @return number of directories listed by the last crawl
+	 */
+	public long getListed() {
+		return listed;
+	}
+
+	public void setListed(long listed) {
+		this.listed = listed;
+	}
+
+	/**
+	 * @return number of directories unchanged since the crawl before the last
+	 *         one, not listed again
+	 */
+	public long getReused() {
+		return reused;
+	}
+
+	public void setReused(long reused) {
+		this.reused = reused;
+	}
+
+	public List<TransferFailure> getFailures() {
+		return failures;
+	}
+
+	public void setFailures(List<TransferFailure> failures) {
+		this.failures = failures;
+	}
+}
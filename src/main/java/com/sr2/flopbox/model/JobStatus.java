@@ -0,0 +1,186 @@
+package com.sr2.flopbox.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class which represents the state of a job sent back to the client: the
+ * command run in the background, its state (queued, running, done, failed or
+ * cancelled) and its dates, its progress (files, directories and bytes done,
+ * totals to do, throughput in bytes per second, estimated time left in
+ * seconds), the entries which failed and, once over, the result of the command
+ * or its error
+ *
+ * @author Adrien Holvoet
+ */
+public class JobStatus {
+	// All private because there are all only used inside the class
+	private String id;
+	private String alias;
+	private String command;
+	private String path;
+	private String state;
+	private long submitted;
+	private long started = -1;
+	private long ended = -1;
+	private long files;
+	private long directories;
+	private long bytes;
+	private long totalFiles;
+	private long totalBytes;
+	private long throughput;
+	private long eta = -1;
+	private List<TransferFailure> failures = new ArrayList<>();
+	private String error;
+	private Object result;
+
+	/**
+	 * Default constructor
+	 */
+	public JobStatus() {
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getAlias() {
+		return alias;
+	}
+
+	public void setAlias(String alias) {
+		this.alias = alias;
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public void setCommand(String command) {
+		this.command = command;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	public long getSubmitted() {
+		return submitted;
+	}
+
+	public void setSubmitted(long submitted) {
+		this.submitted = submitted;
+	}
+
+	public long getStarted() {
+		return started;
+	}
+
+	public void setStarted(long started) {
+		this.started = started;
+	}
+
+	public long getEnded() {
+		return ended;
+	}
+
+	public void setEnded(long ended) {
+		this.ended = ended;
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	public void setFiles(long files) {
+		this.files = files;
+	}
+
+	public long getDirectories() {
+		return directories;
+	}
+
+	public void setDirectories(long directories) {
+		this.directories = directories;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public long getTotalFiles() {
+		return totalFiles;
+	}
+
+	public void setTotalFiles(long totalFiles) {
+		this.totalFiles = totalFiles;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public void setTotalBytes(long totalBytes) {
+		this.totalBytes = totalBytes;
+	}
+
+	public long getThroughput() {
+		return throughput;
+	}
+
+	public void setThroughput(long throughput) {
+		this.throughput = throughput;
+	}
+
+	public long getEta() {
+		return eta;
+	}
+
+	public void setEta(long eta) {
+		this.eta = eta;
+	}
+
+	public List<TransferFailure> getFailures() {
+		return failures;
+	}
+
+	public void setFailures(List<TransferFailure> failures) {
+		this.failures = failures;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public void setError(String error) {
+		this.error = error;
+	}
+
+	public Object getResult() {
+		return result;
+	}
+
+	public void setResult(Object result) {
+		this.result = result;
+	}
+}
@@ -0,0 +1,166 @@
+package com.sr2.flopbox.model;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+/**
+ * Class which represents an entry of a directory listing, only what a client
+ * needs is kept from the FTPFile parsed (no raw listing, permission matrix nor
+ * Calendar)
+ *
+ * @author Adrien Holvoet
+ */
+public class ListingEntry {
+	// Values of type
+	public static final String FILE = "file";
+	public static final String DIRECTORY = "directory";
+	public static final String LINK = "link";
+	public static final String UNKNOWN = "unknown";
+
+	// All private because there are all only used inside the class
+	private String name;
+	private String type;
+	private long size = -1;
+	private long modified = -1;
+	private String permissions;
+	private String user;
+	private String group;
+	private String link;
+
+	/**
+	 * Default constructor
+	 */
+	public ListingEntry() {
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 * @param type     FILE, DIRECTORY, LINK or UNKNOWN
+	 * @param size     size in bytes, -1 if unknown
+	 * @param modified last modification in milliseconds, -1 if unknown
+	 */
+	public ListingEntry(String name, String type, long size, long modified) {
+		this.name = name;
+		this.type = type;
+		this.size = size;
+		this.modified = modified;
+	}
+
+	/**
+	 * Entry of a parsed listing line
+	 *
+	 * @param file the parsed line
+	 * @return the entry, null if the line is not an entry
+	 */
+	public static ListingEntry of(FTPFile file) {
+		if (file == null || file.getName() == null) {
+			return null;
+		}
+		ListingEntry entry = new ListingEntry(file.getName(), type(file), file.getSize(),
+				file.getTimestamp() != null ? file.getTimestamp().getTimeInMillis() : -1);
+		entry.permissions = permissions(file);
+		entry.user = file.getUser();
+		entry.group = file.getGroup();
+		entry.link = file.getLink();
+		return entry;
+	}
+
+	private static String type(FTPFile file) {
+		switch (file.getType()) {
+		case FTPFile.FILE_TYPE:
+			return FILE;
+		case FTPFile.DIRECTORY_TYPE:
+			return DIRECTORY;
+		case FTPFile.SYMBOLIC_LINK_TYPE:
+			return LINK;
+		default:
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * Unix notation (rwxr-xr-x) of the permissions, null if the server did not
+	 * give them
+	 */
+	private static String permissions(FTPFile file) {
+		if (!file.isValid()) {
+			return null;
+		}
+		StringBuilder permissions = new StringBuilder(9);
+		for (int access = FTPFile.USER_ACCESS; access <= FTPFile.WORLD_ACCESS; access++) {
+			permissions.append(file.hasPermission(access, FTPFile.READ_PERMISSION) ? 'r' : '-');
+			permissions.append(file.hasPermission(access, FTPFile.WRITE_PERMISSION) ? 'w' : '-');
+			permissions.append(file.hasPermission(access, FTPFile.EXECUTE_PERMISSION) ? 'x' : '-');
+		}
+		return permissions.toString();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public boolean isDirectory() {
+		return DIRECTORY.equals(type);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public void setModified(long modified) {
+		this.modified = modified;
+	}
+
+	public String getPermissions() {
+		return permissions;
+	}
+
+	public void setPermissions(String permissions) {
+		this.permissions = permissions;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public void setUser(String user) {
+		this.user = user;
+	}
+
+	public String getGroup() {
+		return group;
+	}
+
+	public void setGroup(String group) {
+		this.group = group;
+	}
+
+	public String getLink() {
+		return link;
+	}
+
+	public void setLink(String link) {
+		this.link = link;
+	}
+}
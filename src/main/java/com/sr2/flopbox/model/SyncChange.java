@@ -0,0 +1,81 @@
+package com.sr2.flopbox.model;
+
+/**
+ * Class which represents a path changed by a synchronization: what has been
+ * done to it (download, upload, deleteLocal or deleteRemote), whether it is a
+ * directory, the size of the file copied or deleted and whether both sides had
+ * changed it
+ * 
+ * @author Adrien Holvoet
+ */
+public class SyncChange {
+	// All private because there are all only used inside the class
+	private String path;
+	private String action;
+	private boolean directory;
+	private long size = -1;
+	private boolean conflict;
+
+	/**
+	 * Default constructor
+	 */
+	public SyncChange() {
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param path
+	 * @param action
+	 * @param directory
+	 * @param size
+	 * @param conflict
+	 */
+	public SyncChange(String path, String action, boolean directory, long size, boolean conflict) {
+		this.path = path;
+		this.action = action;
+		this.directory = directory;
+		this.size = size;
+		this.conflict = conflict;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	public void setAction(String action) {
+		this.action = action;
+	}
+
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	public void setDirectory(boolean directory) {
+		this.directory = directory;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public boolean isConflict() {
+		return conflict;
+	}
+
+	public void setConflict(boolean conflict) {
+		this.conflict = conflict;
+	}
+}
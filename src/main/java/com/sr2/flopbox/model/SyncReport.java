@@ -0,0 +1,116 @@
+package com.sr2.flopbox.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class which represents the summary of a synchronization sent back to the
+ * client: the totals of the transfer, the local directory and the direction,
+ * the number of paths downloaded, uploaded, deleted on each side, left
+ * unchanged or changed on both sides, and the changes themselves (the first
+ * Constant.SYNC_REPORT_LIMIT of them)
+ * 
+ * @author Adrien Holvoet
+ */
+public class SyncReport extends TransferReport {
+	// All private because there are all only used inside the class
+	private String localPath;
+	private String direction;
+	private long downloaded;
+	private long uploaded;
+	private long deletedLocal;
+	private long deletedRemote;
+	private long unchanged;
+	private long conflicts;
+	private List<SyncChange> changes = new ArrayList<>();
+
+	/**
+	 * Default constructor
+	 */
+	public SyncReport() {
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param transfer totals and failures of the transfer
+	 */
+	public SyncReport(TransferReport transfer) {
+		super(transfer.getPath(), transfer.getFiles(), transfer.getBytes());
+		setDirectories(transfer.getDirectories());
+		setElapsed(transfer.getElapsed());
+		setFailures(transfer.getFailures());
+	}
+
+	public String getLocalPath() {
+		return localPath;
+	}
+
+	public void setLocalPath(String localPath) {
+		this.localPath = localPath;
+	}
+
+	public String getDirection() {
+		return direction;
+	}
+
+	public void setDirection(String direction) {
+		this.direction = direction;
+	}
+
+	public long getDownloaded() {
+		return downloaded;
+	}
+
+	public void setDownloaded(long downloaded) {
+		this.downloaded = downloaded;
+	}
+
+	public long getUploaded() {
+		return uploaded;
+	}
+
+	public void setUploaded(long uploaded) {
+		this.uploaded = uploaded;
+	}
+
+	public long getDeletedLocal() {
+		return deletedLocal;
+	}
+
+	public void setDeletedLocal(long deletedLocal) {
+		this.deletedLocal = deletedLocal;
+	}
+
+	public long getDeletedRemote() {
+		return deletedRemote;
+	}
+
+	public void setDeletedRemote(long deletedRemote) {
+		this.deletedRemote = deletedRemote;
+	}
+
+	public long getUnchanged() {
+		return unchanged;
+	}
+
+	public void setUnchanged(long unchanged) {
+		this.unchanged = unchanged;
+	}
+
+	public long getConflicts() {
+		return conflicts;
+	}
+
+	public void setConflicts(long conflicts) {
+		this.conflicts = conflicts;
+	}
+
+	public List<SyncChange> getChanges() {
+		return changes;
+	}
+
+	public void setChanges(List<SyncChange> changes) {
+		this.changes = changes;
+	}
+}
@@ -0,0 +1,46 @@
+package com.sr2.flopbox.model;
+
+/**
+ * Class which represents a file or a directory which could not be transferred
+ * during a recursive operation, with the reason sent back by the ftp server
+ * 
+ * @author Adrien Holvoet
+ */
+public class TransferFailure {
+	// All private because there are all only used inside the class
+	private String path;
+	private String message;
+
+	/**
+	 * Default constructor
+	 */
+	public TransferFailure() {
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param path
+	 * @param message
+	 */
+	public TransferFailure(String path, String message) {
+		this.path = path;
+		this.message = message;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+}
@@ -0,0 +1,91 @@
+package com.sr2.flopbox.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class which represents the summary of a transfer sent back to the client: the
+ * remote path concerned, the number of files and directories transferred, the
+ * number of bytes written, the time spent and the entries which failed
+ * 
+ * @author Adrien Holvoet
+ */
+public class TransferReport {
+	// All private because there are all only used inside the class
+	private String path;
+	private long files;
+	private long bytes;
+	private long directories;
+	private long elapsed;
+	private List<TransferFailure> failures = new ArrayList<>();
+
+	/**
+	 * Default constructor
+	 */
+	public TransferReport() {
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param path
+	 * @param files
+	 * @param bytes
+	 */
+	public TransferReport(String path, long files, long bytes) {
+		this.path = path;
+		this.files = files;
+		this.bytes = bytes;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	public void setFiles(long files) {
+		this.files = files;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public long getDirectories() {
+		return directories;
+	}
+
+	public void setDirectories(long directories) {
+		this.directories = directories;
+	}
+
+	/**
+	 * @return time spent in milliseconds
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	public void setElapsed(long elapsed) {
+		this.elapsed = elapsed;
+	}
+
+	public List<TransferFailure> getFailures() {
+		return failures;
+	}
+
+	public void setFailures(List<TransferFailure> failures) {
+		this.failures = failures;
+	}
+}
@@ -0,0 +1,660 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.model.CacheStatistics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class Singleton which keeps a copy of the downloaded files on the local disk,
+ * per (alias, credentials, path, transfer type). A copy is only served if the
+ * size and the last modification of the file on the server (checked by FtpStat
+ * before every download) are still the ones it was written with, otherwise it
+ * is dropped. The copies take at most Constant.CONTENT_CACHE_SIZE bytes, the
+ * least recently used (lru) or the least often used (lfu) copy is evicted
+ * first. The directory is emptied at startup.
+ * <p>
+ * A copy being written can be followed: a download of the same file starting
+ * meanwhile reads the copy as it grows instead of issuing its own RETR, so
+ * identical downloads share one transfer and no more memory than a buffer.
+ *
+ * @author Adrien Holvoet
+ */
+public final class ContentCache {
+    /*
+     * All private because they are only used in this class and static because it
+     * is unique
+     */
+    private static final Logger logger = LogManager.getLogger(ContentCache.class);
+    private static ContentCache instance;
+    private final File directory;
+    private final boolean lfu;
+    // guarded by the cache monitor, in access order for the LRU eviction
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // guarded by the cache monitor, the copies being written
+    private final Map<Key, Fill> filling = new HashMap<>();
+    private long bytes;
+    private long sequence;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+
+    /**
+     * Private constructor to prevent instantiation, deletes the copies left in the
+     * cache directory by a previous run. Only the files named like the copies are
+     * deleted since the directory can be shared.
+     */
+    private ContentCache() {
+        this.directory = new File(Constant.CONTENT_CACHE_DIR);
+        this.lfu = "lfu".equalsIgnoreCase(Constant.CONTENT_CACHE_POLICY);
+        File[] previous = directory.listFiles((dir, name) -> name.matches("[0-9]+\\.data"));
+        if (previous != null) {
+            for (File file : previous) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Static method to return the unique ContentCache instance, create it if it
+     * does not exist. Synchronized because it is reached concurrently by the ftp
+     * workers
+     *
+     * @return instance a instance of ContentCache
+     */
+    public static synchronized ContentCache getInstance() {
+        if (instance == null) {
+            instance = new ContentCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Whether a file can be kept: the cache must be enabled, the size and the last
+     * modification of the file must be known to check the copy later on, and it
+     * must not take more than Constant.CONTENT_CACHE_MAX_FILE
+     *
+     * @param size         size of the file on the server, -1 if unknown
+     * @param lastModified last modification of the file, -1 if unknown
+     * @return true if the file can be cached
+     */
+    public boolean isCacheable(long size, long lastModified) {
+        return Constant.CONTENT_CACHE_SIZE > 0 && size >= 0 && lastModified >= 0
+                && size <= Math.min(Constant.CONTENT_CACHE_SIZE, Constant.CONTENT_CACHE_MAX_FILE);
+    }
+
+    /**
+     * Open the copy of a file, dropped if the file changed on the server since it
+     * was written
+     *
+     * @param key          server and credentials of the user
+     * @param path         path of the file
+     * @param binary       true for the bytes as stored on the server, false for
+     *                     an ASCII transfer
+     * @param size         current size of the file on the server
+     * @param lastModified current last modification of the file on the server
+     * @return the copy, null if there is none
+     */
+    public Hit get(FtpConnectionKey key, String path, boolean binary, long size, long lastModified) {
+        if (!isCacheable(size, lastModified)) {
+            return null;
+        }
+        Key entryKey = new Key(key, path, binary);
+        synchronized (this) {
+            Entry entry = entries.get(entryKey);
+            if (entry != null && (entry.size != size || entry.lastModified != lastModified)) {
+                stale.incrementAndGet();
+                remove(entryKey);
+                entry = null;
+            }
+            if (entry != null) {
+                try {
+                    // opened while the entry cannot be evicted, still readable once deleted
+                    FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+                    entry.hits++;
+                    hits.incrementAndGet();
+                    return new Hit(channel, entry.length);
+                } catch (IOException e) {
+                    logger.warn("Unable to read the cached copy " + entry.file + " : " + e.toString());
+                    remove(entryKey);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Start a copy of a file, written as it is downloaded
+     *
+     * @param key          server and credentials of the user
+     * @param path         path of the file
+     * @param binary       true for the bytes as stored on the server, false for
+     *                     an ASCII transfer
+     * @param size         size of the file on the server
+     * @param lastModified last modification of the file on the server
+     * @return the copy to write, null if the file cannot be cached or if another
+     *         download is already writing it
+     */
+    public synchronized Fill fill(FtpConnectionKey key, String path, boolean binary, long size, long lastModified) {
+        Key fillKey = new Key(key, path, binary);
+        if (!isCacheable(size, lastModified) || filling.containsKey(fillKey)) {
+            return null;
+        }
+        File file = new File(directory, (sequence++) + ".data");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("Unable to create the cache directory " + directory);
+            return null;
+        }
+        try {
+            Fill fill = new Fill(fillKey, file, size, lastModified);
+            filling.put(fillKey, fill);
+            return fill;
+        } catch (IOException e) {
+            logger.warn("Unable to write the cached copy " + file + " : " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Follow the copy of a file another download is writing, the bytes are read
+     * as they are written
+     *
+     * @param key          server and credentials of the user
+     * @param path         path of the file
+     * @param binary       true for the bytes as stored on the server, false for
+     *                     an ASCII transfer
+     * @param size         current size of the file on the server
+     * @param lastModified current last modification of the file on the server
+     * @return the copy being written, null if there is none for this version of
+     *         the file
+     */
+    public synchronized Follower follow(FtpConnectionKey key, String path, boolean binary, long size,
+                                        long lastModified) {
+        Fill fill = filling.get(new Key(key, path, binary));
+        if (fill == null || fill.size != size || fill.lastModified != lastModified) {
+            return null;
+        }
+        Follower follower = fill.follow();
+        if (follower != null) {
+            shared.incrementAndGet();
+        }
+        return follower;
+    }
+
+    /**
+     * Drop the copies of the files of a server, called when the server is
+     * updated or deleted
+     *
+     * @param alias the ftp server
+     */
+    public synchronized void invalidate(String alias) {
+        List<Key> dropped = new ArrayList<>();
+        for (Key key : entries.keySet()) {
+            if (key.key.getAlias().equals(alias)) {
+                dropped.add(key);
+            }
+        }
+        for (Key key : dropped) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Drop every copy
+     */
+    public synchronized void clear() {
+        for (Key key : new ArrayList<>(entries.keySet())) {
+            remove(key);
+        }
+    }
+
+    /**
+     * @return the counters of the cache
+     */
+    public synchronized CacheStatistics getStatistics() {
+        CacheStatistics statistics = new CacheStatistics(lfu ? "lfu" : "lru", Constant.CONTENT_CACHE_SIZE);
+        statistics.setEntries(entries.size());
+        statistics.setBytes(bytes);
+        statistics.setHits(hits.get());
+        statistics.setMisses(misses.get());
+        statistics.setStale(stale.get());
+        statistics.setShared(shared.get());
+        statistics.setEvictions(evictions.get());
+        statistics.setBytesServed(bytesServed.get());
+        statistics.setBytesStored(bytesStored.get());
+        return statistics;
+    }
+
+    /**
+     * Keep a complete copy, the copies evicted to make room are deleted
+     */
+    private synchronized void put(Key key, Entry entry) {
+        remove(key);
+        while (!entries.isEmpty() && bytes + entry.length > Constant.CONTENT_CACHE_SIZE) {
+            remove(victim());
+            evictions.incrementAndGet();
+        }
+        entries.put(key, entry);
+        bytes += entry.length;
+        bytesStored.addAndGet(entry.length);
+    }
+
+    /**
+     * The least recently used copy, or the least often used one (the least
+     * recently used of them for a tie)
+     */
+    private Key victim() {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        Map.Entry<Key, Entry> victim = it.next();
+        while (lfu && it.hasNext()) {
+            Map.Entry<Key, Entry> next = it.next();
+            if (next.getValue().hits < victim.getValue().hits) {
+                victim = next;
+            }
+        }
+        return victim.getKey();
+    }
+
+    private synchronized void ended(Fill fill) {
+        filling.remove(fill.key, fill);
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.length;
+            delete(entry.file);
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Unable to delete the cached copy " + file);
+        }
+    }
+
+    /**
+     * An opened copy, read by a download
+     */
+    public final class Hit implements Closeable {
+        private final FileChannel channel;
+        private final long length;
+
+        Hit(FileChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+
+        /**
+         * @return number of bytes of the copy
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Send a part of the copy, the file channel hands it to the output without
+         * going through a buffer of ours
+         *
+         * @param position first byte to send
+         * @param count    number of bytes to send
+         * @param output   HTTP response body
+         * @throws IOException thrown if any I/O error occurred.
+         */
+        public void transferTo(long position, long count, OutputStream output) throws IOException {
+            WritableByteChannel target = Channels.newChannel(output);
+            long sent = 0;
+            while (sent < count) {
+                long transferred = channel.transferTo(position + sent, count - sent, target);
+                if (transferred <= 0) {
+                    throw new IOException("The cached copy is shorter than expected");
+                }
+                sent += transferred;
+                bytesServed.addAndGet(transferred);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A copy being written, it is kept once the download is complete. A write
+     * error only drops the copy, it never fails the download. The downloads
+     * following the copy wait on its monitor for the next bytes.
+     */
+    public final class Fill extends OutputStream {
+        private final Key key;
+        private final File file;
+        private final long size;
+        private final long lastModified;
+        private OutputStream out;
+        // guarded by the fill monitor
+        private long length;
+        private boolean ended;
+        private boolean kept;
+        private int followers;
+
+        Fill(Key key, File file, long size, long lastModified) throws IOException {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.out = new FileOutputStream(file);
+        }
+
+        /**
+         * @param output HTTP response body
+         * @return a stream writing to the response and to the copy
+         */
+        public Tee tee(OutputStream output) {
+            return new Tee(output);
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.write(b, off, len);
+                synchronized (this) {
+                    length += len;
+                    notifyAll();
+                }
+                if (length > Constant.CONTENT_CACHE_MAX_FILE) {
+                    throw new IOException("the file grew larger than the cache allows");
+                }
+            } catch (IOException e) {
+                logger.warn("Unable to write the cached copy " + file + " : " + e.toString());
+                close();
+            }
+        }
+
+        /**
+         * Keep the copy, called once the whole file has been downloaded. A binary
+         * copy which has not the size of the file is dropped.
+         */
+        public void commit() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+                out = null;
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (key.binary && length != size) {
+                delete(file);
+                end(false);
+                return;
+            }
+            put(key, new Entry(file, size, lastModified, length));
+            end(true);
+        }
+
+        /**
+         * Drop the copy if it has not been kept. Can be called several times.
+         */
+        @Override
+        public void close() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Do nothing the copy is deleted anyway
+            }
+            out = null;
+            delete(file);
+            end(false);
+        }
+
+        /**
+         * @return true if a download follows the copy
+         */
+        synchronized boolean hasFollowers() {
+            return followers > 0;
+        }
+
+        private void end(boolean complete) {
+            synchronized (this) {
+                ended = true;
+                kept = complete;
+                notifyAll();
+            }
+            ended(this);
+        }
+
+        /**
+         * Open the copy for a new follower, called with the cache monitor held
+         */
+        private Follower follow() {
+            synchronized (this) {
+                if (ended) {
+                    return null;
+                }
+                followers++;
+            }
+            try {
+                return new Follower(this, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+            } catch (IOException e) {
+                leave();
+                return null;
+            }
+        }
+
+        private synchronized void leave() {
+            followers--;
+        }
+
+        /**
+         * Wait for the bytes after a position
+         *
+         * @return the number of bytes which can be read, -1 at the end of the copy
+         * @throws IOException if the copy has been dropped before the end
+         */
+        private synchronized long await(long position) throws IOException {
+            while (length <= position && !ended) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the download followed");
+                }
+            }
+            if (length > position) {
+                return length - position;
+            }
+            if (kept) {
+                return -1;
+            }
+            throw new IOException("The download followed failed");
+        }
+
+        /**
+         * Stream writing to the HTTP response and to the copy. If the response fails
+         * while other downloads follow the copy, the copy goes on without it as long
+         * as they do, the error of the response is thrown by rethrow.
+         */
+        public final class Tee extends OutputStream {
+            private final OutputStream output;
+            private IOException error;
+
+            private Tee(OutputStream output) {
+                this.output = output;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (error == null) {
+                    try {
+                        output.write(b, off, len);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                if (error != null && !hasFollowers()) {
+                    throw error;
+                }
+                Fill.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (error == null) {
+                    output.flush();
+                }
+            }
+
+            /**
+             * @throws IOException the error of the HTTP response, if any
+             */
+            public void rethrow() throws IOException {
+                if (error != null) {
+                    throw error;
+                }
+            }
+        }
+    }
+
+    /**
+     * A download reading a copy as it is written
+     */
+    public final class Follower extends InputStream {
+        private final Fill fill;
+        private final FileChannel channel;
+        private long position;
+        private boolean closed;
+
+        Follower(Fill fill, FileChannel channel) {
+            this.fill = fill;
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = fill.await(position);
+            if (available < 0) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)), position);
+            if (read < 0) {
+                throw new IOException("The copy being written is shorter than expected");
+            }
+            position += read;
+            bytesServed.addAndGet(read);
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            fill.leave();
+            channel.close();
+        }
+    }
+
+    /**
+     * A copy on the disk
+     */
+    private static final class Entry {
+        private final File file;
+        private final long size;
+        private final long lastModified;
+        private final long length;
+        private long hits;
+
+        Entry(File file, long size, long lastModified, long length) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A file seen by a user of a server, in one transfer type
+     */
+    private static final class Key {
+        private final FtpConnectionKey key;
+        private final String path;
+        private final boolean binary;
+
+        Key(FtpConnectionKey key, String path, boolean binary) {
+            this.key = key;
+            this.path = path.replaceAll("/+", "/");
+            this.binary = binary;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return key.equals(other.key) && path.equals(other.path) && binary == other.binary;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, path, binary);
+        }
+    }
+}
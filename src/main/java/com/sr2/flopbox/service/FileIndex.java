@@ -0,0 +1,410 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.model.FileMetadata;
+import jakarta.ws.rs.BadRequestException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Immutable snapshot of the files of a ftp server (path, size, last
+ * modification) sorted by path. The records are front coded: each path only
+ * keeps what differs from the previous one, and the sizes and dates are
+ * variable length numbers, so a record takes a few bytes. The bytes are the
+ * same in memory and on disk. Every BLOCK_SIZE records a path is written whole
+ * so that a prefix is found by a binary search over the blocks.
+ *
+ * @author Adrien Holvoet
+ */
+public final class FileIndex {
+    // All private because they are only used in this class
+    private static final int MAGIC = 0x46424958;
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 32;
+    private static final int DIRECTORY = 1;
+    private final int count;
+    private final byte[] data;
+    private final int[] blockOffsets;
+    private final String[] blockFirstPaths;
+
+    private FileIndex(int count, byte[] data) {
+        this.count = count;
+        this.data = data;
+        int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.blockOffsets = new int[blocks];
+        this.blockFirstPaths = new String[blocks];
+        Cursor cursor = new Cursor(0);
+        for (int i = 0; i < count; i++) {
+            int offset = cursor.position;
+            cursor.next();
+            if (i % BLOCK_SIZE == 0) {
+                blockOffsets[i / BLOCK_SIZE] = offset;
+                blockFirstPaths[i / BLOCK_SIZE] = cursor.path();
+            }
+        }
+    }
+
+    /**
+     * Build an index
+     *
+     * @param records the files and directories, in any order
+     * @return the index
+     */
+    public static FileIndex build(List<FileMetadata> records) {
+        List<FileMetadata> sorted = new ArrayList<>(records);
+        sorted.sort(Comparator.comparing(FileMetadata::getPath));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sorted.size() * 24);
+        byte[] previous = new byte[0];
+        int count = 0;
+        for (FileMetadata record : sorted) {
+            byte[] path = record.getPath().getBytes(StandardCharsets.UTF_8);
+            if (count > 0 && Arrays.equals(path, previous)) {
+                // listed twice, the first one is kept
+                continue;
+            }
+            int shared = 0;
+            if (count % BLOCK_SIZE != 0) {
+                int max = Math.min(path.length, previous.length);
+                while (shared < max && path[shared] == previous[shared]) {
+                    shared++;
+                }
+            }
+            writeNumber(out, shared);
+            writeNumber(out, path.length - shared);
+            out.write(path, shared, path.length - shared);
+            out.write(record.isDirectory() ? DIRECTORY : 0);
+            // -1 (unknown) is written as 0
+            writeNumber(out, record.getSize() + 1);
+            writeNumber(out, record.getLastModified() + 1);
+            previous = path;
+            count++;
+        }
+        return new FileIndex(count, out.toByteArray());
+    }
+
+    /**
+     * Read an index written by write
+     *
+     * @param file the index file
+     * @return the index
+     * @throws IOException thrown if the file cannot be read or is not an index
+     */
+    public static FileIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a FlopBox index");
+            }
+            int count = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new FileIndex(count, data);
+        }
+    }
+
+    /**
+     * Write the index, the file is replaced at once so that a reader never sees
+     * half of it
+     *
+     * @param file the index file
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    public void write(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the directory " + directory);
+        }
+        File temporary = new File(directory, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return number of files and directories
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return number of bytes taken by the records
+     */
+    public int getBytes() {
+        return data.length;
+    }
+
+    /**
+     * Records matching a query, in path order
+     *
+     * @param query the query
+     * @param limit maximum number of records
+     * @return the records, one more than the limit if there are more of them
+     */
+    public List<FileMetadata> search(Query query, int limit) {
+        List<FileMetadata> found = new ArrayList<>();
+        Cursor cursor = new Cursor(firstBlock(query.prefix));
+        while (cursor.hasNext() && found.size() <= limit) {
+            cursor.next();
+            String path = cursor.path();
+            if (query.prefix != null && !path.startsWith(query.prefix)) {
+                if (path.compareTo(query.prefix) > 0) {
+                    // sorted, no more path starts with the prefix
+                    break;
+                }
+                continue;
+            }
+            FileMetadata record = cursor.record(path);
+            if (query.matches(record)) {
+                found.add(record);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return every record, in path order
+     */
+    public List<FileMetadata> records() {
+        List<FileMetadata> records = new ArrayList<>(count);
+        Cursor cursor = new Cursor(0);
+        while (cursor.hasNext()) {
+            cursor.next();
+            records.add(cursor.record(cursor.path()));
+        }
+        return records;
+    }
+
+    /**
+     * The records grouped by parent directory, the root is the only child of ""
+     *
+     * @return parent directory -> its files and directories
+     */
+    public Map<String, List<FileMetadata>> childrenByDirectory() {
+        Map<String, List<FileMetadata>> children = new HashMap<>();
+        Cursor cursor = new Cursor(0);
+        while (cursor.hasNext()) {
+            cursor.next();
+            FileMetadata record = cursor.record(cursor.path());
+            children.computeIfAbsent(parent(record.getPath()), k -> new ArrayList<>()).add(record);
+        }
+        return children;
+    }
+
+    /**
+     * @param path absolute path
+     * @return the parent directory, "" for the root
+     */
+    static String parent(String path) {
+        if (path.equals("/")) {
+            return "";
+        }
+        int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+
+    /**
+     * Offset of the last block starting before the prefix, the whole index if
+     * there is no prefix
+     */
+    private int firstBlock(String prefix) {
+        if (prefix == null || blockFirstPaths.length == 0) {
+            return 0;
+        }
+        int found = Arrays.binarySearch(blockFirstPaths, prefix);
+        int block = found >= 0 ? found : Math.max(0, -found - 2);
+        return blockOffsets[block];
+    }
+
+    private static void writeNumber(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Decodes the records one after the other from an offset, the offset must be
+     * the start of a block
+     */
+    private final class Cursor {
+        private int position;
+        private byte[] path = new byte[256];
+        private int length;
+        private boolean directory;
+        private long size;
+        private long lastModified;
+
+        Cursor(int position) {
+            this.position = position;
+        }
+
+        boolean hasNext() {
+            return position < data.length;
+        }
+
+        void next() {
+            int shared = (int) readNumber();
+            int suffix = (int) readNumber();
+            if (shared + suffix > path.length) {
+                path = Arrays.copyOf(path, Math.max(path.length * 2, shared + suffix));
+            }
+            System.arraycopy(data, position, path, shared, suffix);
+            position += suffix;
+            length = shared + suffix;
+            directory = (data[position++] & DIRECTORY) != 0;
+            size = readNumber() - 1;
+            lastModified = readNumber() - 1;
+        }
+
+        String path() {
+            return new String(path, 0, length, StandardCharsets.UTF_8);
+        }
+
+        FileMetadata record(String path) {
+            return new FileMetadata(path, directory, size, lastModified);
+        }
+
+        private long readNumber() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    /**
+     * Criteria of a search, a null criterion matches everything
+     */
+    public static final class Query {
+        private final String prefix;
+        private final Pattern glob;
+        private final boolean globOnPath;
+        private final Boolean directory;
+        private final Long minSize;
+        private final Long maxSize;
+        private final Long modifiedAfter;
+        private final Long modifiedBefore;
+
+        /**
+         * Constructor
+         *
+         * @param prefix         the path starts with it
+         * @param glob           the name (or the path if the glob holds a /)
+         *                       matches it: * and ? within a name, ** across
+         *                       directories, [abc] one of the characters
+         * @param directory      true for the directories only, false for the
+         *                       files only
+         * @param minSize        size in bytes at least
+         * @param maxSize        size in bytes at most
+         * @param modifiedAfter  modified at or after, in milliseconds
+         * @param modifiedBefore modified before, in milliseconds
+         * @throws BadRequestException if the glob is not valid
+         */
+        public Query(String prefix, String glob, Boolean directory, Long minSize, Long maxSize, Long modifiedAfter,
+                     Long modifiedBefore) {
+            this.prefix = prefix;
+            this.globOnPath = glob != null && glob.contains("/");
+            // a glob on the path is anchored at the root
+            this.glob = glob == null ? null : toPattern(globOnPath && !glob.startsWith("/") ? "/" + glob : glob);
+            this.directory = directory;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.modifiedAfter = modifiedAfter;
+            this.modifiedBefore = modifiedBefore;
+        }
+
+        boolean matches(FileMetadata record) {
+            if (directory != null && record.isDirectory() != directory) {
+                return false;
+            }
+            if ((minSize != null && record.getSize() < minSize) || (maxSize != null
+                    && (record.getSize() < 0 || record.getSize() > maxSize))) {
+                return false;
+            }
+            if ((modifiedAfter != null && record.getLastModified() < modifiedAfter) || (modifiedBefore != null
+                    && (record.getLastModified() < 0 || record.getLastModified() >= modifiedBefore))) {
+                return false;
+            }
+            if (glob != null) {
+                String path = record.getPath();
+                String target = globOnPath ? path : path.substring(path.lastIndexOf('/') + 1);
+                return glob.matcher(target).matches();
+            }
+            return true;
+        }
+
+        private static Pattern toPattern(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                switch (c) {
+                    case '*':
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                            regex.append(".*");
+                            i++;
+                        } else {
+                            regex.append("[^/]*");
+                        }
+                        break;
+                    case '?':
+                        regex.append("[^/]");
+                        break;
+                    case '[':
+                        boolean negated = i + 1 < glob.length() && glob.charAt(i + 1) == '!';
+                        int first = negated ? i + 2 : i + 1;
+                        // a ] right after [ or [! belongs to the set
+                        int end = first < glob.length() ? glob.indexOf(']', first + 1) : -1;
+                        if (end > first) {
+                            String set = glob.substring(first, end);
+                            regex.append('[').append(negated ? "^" : "");
+                            // ranges (a-z) are kept, the other regex characters are escaped
+                            regex.append(set.replaceAll("([\\\\\\[\\]&^])", "\\\\$1")).append(']');
+                            i = end;
+                        } else {
+                            regex.append("\\[");
+                        }
+                        break;
+                    default:
+                        regex.append(Pattern.quote(String.valueOf(c)));
+                        break;
+                }
+            }
+            try {
+                return Pattern.compile(regex.toString());
+            } catch (PatternSyntaxException e) {
+                // a range in the wrong order (z-a)
+                throw new BadRequestException("The glob " + glob + " is not valid");
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.common.StreamUtils;
+import com.sr2.flopbox.common.TarOutputStream;
+import com.sr2.flopbox.exception.FtpReplyException;
+import com.sr2.flopbox.model.ListingEntry;
+import com.sr2.flopbox.model.TransferFailure;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Body of the download of a directory as a zip or tar.gz archive. It owns the
+ * ftp connection the request was run on, walks the directory depth first on it
+ * and copies each file from its data connection straight into the archive
+ * written to the HTTP response: nothing is written to the disk and only one
+ * buffer and the listings of the directories being walked are held in memory.
+ * The entries of an archive are written one after the other, so the files are
+ * retrieved one at a time.
+ * <p>
+ * A file or a directory which cannot be read is skipped and listed in a
+ * FLOPBOX-ERRORS.txt entry at the end of the archive. An error on a data
+ * connection cuts the response, the archive is then incomplete.
+ *
+ * @author Adrien Holvoet
+ */
+public class FtpArchive implements StreamingOutput, Closeable {
+    // All private because they are only used in this class
+    private static final String ERRORS = "FLOPBOX-ERRORS.txt";
+    private final FtpConnection connection;
+    private final String path;
+    private final Format format;
+    private final List<TransferFailure> failures = new ArrayList<>();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean completed;
+
+    /**
+     * Formats of archive
+     */
+    public enum Format {
+        ZIP("zip", "application/zip"), TAR_GZ("tar.gz", "application/gzip");
+
+        private final String extension;
+        private final String contentType;
+
+        Format(String extension, String contentType) {
+            this.extension = extension;
+            this.contentType = contentType;
+        }
+
+        /**
+         * @param extension zip or tar.gz
+         * @return the format
+         * @throws BadRequestException if the format is not supported
+         */
+        public static Format parse(String extension) {
+            for (Format format : values()) {
+                if (format.extension.equalsIgnoreCase(extension)) {
+                    return format;
+                }
+            }
+            throw new BadRequestException("Unsupported format " + extension + ", use zip or tar.gz");
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param connection logged in connection, it now belongs to the archive
+     * @param path       path of the directory to archive
+     * @param format     format of the archive
+     */
+    FtpArchive(FtpConnection connection, String path, Format format) {
+        this.connection = connection;
+        this.path = path;
+        this.format = format;
+    }
+
+    public String getContentType() {
+        return format.contentType;
+    }
+
+    /**
+     * @return name of the archive, the name of the directory or the alias for the
+     *         root
+     */
+    public String getFileName() {
+        return baseName() + "." + format.extension;
+    }
+
+    /**
+     * Walk the directory and write the archive to the HTTP response, then give
+     * the connection back to the pool
+     *
+     * @param output HTTP response body
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            StreamingFtpClient client = connection.getClient();
+            client.setFileType(FTP.BINARY_FILE_TYPE);
+            ArchiveWriter archive = format == Format.ZIP ? new ZipWriter(output) : new TarGzWriter(output);
+            String root = path.endsWith("/") && path.length() > 1 ? path.substring(0, path.length() - 1) : path;
+            archive.putDirectory(baseName(), -1);
+            walk(client, archive, root, baseName());
+            if (!failures.isEmpty()) {
+                StringBuilder errors = new StringBuilder();
+                for (TransferFailure failure : failures) {
+                    errors.append(failure.getPath()).append(" : ").append(failure.getMessage()).append('\n');
+                }
+                byte[] content = errors.toString().getBytes(StandardCharsets.UTF_8);
+                archive.putFile(ERRORS, content.length, System.currentTimeMillis()).write(content);
+                archive.closeEntry();
+            }
+            archive.finish();
+            completed = true;
+        } finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Give the connection back to the pool, the connection is closed if the
+     * archive has not been completed (body not written, client gone...). Can be
+     * called several times.
+     */
+    @Override
+    public void close() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        if (!completed) {
+            connection.invalidate();
+        }
+        FtpConnectionPool.getInstance().release(connection);
+    }
+
+    /**
+     * Add the entries of a directory to the archive, the subdirectories first
+     * met first (depth first)
+     */
+    private void walk(StreamingFtpClient client, ArchiveWriter archive, String dir, String name)
+            throws IOException {
+        FTPFile[] list = client.listFiles(dir);
+        if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+            failures.add(new TransferFailure(dir, new FtpReplyException(client).getMessage()));
+            return;
+        }
+        for (FTPFile file : list) {
+            ListingEntry entry = client.toEntry(file);
+            if (entry == null || entry.getName().equals(".") || entry.getName().equals("..")) {
+                continue;
+            }
+            String child = dir.endsWith("/") ? dir + entry.getName() : dir + "/" + entry.getName();
+            String entryName = name + "/" + entry.getName();
+            if (entry.isDirectory()) {
+                archive.putDirectory(entryName, entry.getModified());
+                walk(client, archive, child, entryName);
+            } else if (ListingEntry.FILE.equals(entry.getType())) {
+                // the links are not followed, they could loop
+                addFile(client, archive, child, entryName, entry);
+            }
+        }
+    }
+
+    /**
+     * Copy a file from its data connection into the archive. A file the server
+     * refuses to send is skipped, as well as a file whose size is unknown when the
+     * archive needs it before the content.
+     */
+    private void addFile(StreamingFtpClient client, ArchiveWriter archive, String file, String name,
+                         ListingEntry entry) throws IOException {
+        long size = entry.getSize();
+        if (size < 0 && archive.needsSize()) {
+            size = FtpStat.size(client, file);
+            if (size < 0) {
+                failures.add(new TransferFailure(file, "The size of the file is unknown, it cannot be archived"));
+                return;
+            }
+        }
+        InputStream data = client.retrieveFileStream(file);
+        if (data == null) {
+            failures.add(new TransferFailure(file, new FtpReplyException(client).getMessage()));
+            return;
+        }
+        long copied;
+        try {
+            copied = StreamUtils.copy(data, archive.putFile(name, size, entry.getModified()));
+        } finally {
+            data.close();
+        }
+        long missing = archive.closeEntry();
+        if (!client.completePendingCommand()) {
+            failures.add(new TransferFailure(file, new FtpReplyException(client).getMessage()));
+        } else if (missing > 0 || (size >= 0 && copied > size)) {
+            failures.add(new TransferFailure(file,
+                    "The file changed while it was archived, " + copied + " bytes read instead of " + size));
+        }
+    }
+
+    private String baseName() {
+        String trimmed = path.replaceAll("/+$", "");
+        return trimmed.isEmpty() ? connection.getKey().getAlias() : trimmed.substring(trimmed.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Writes the entries in one format of archive
+     */
+    private abstract static class ArchiveWriter {
+        abstract void putDirectory(String name, long lastModified) throws IOException;
+
+        /**
+         * @return the stream to write the content of the file to
+         */
+        abstract OutputStream putFile(String name, long size, long lastModified) throws IOException;
+
+        /**
+         * @return number of bytes missing from the content, 0 if complete
+         */
+        abstract long closeEntry() throws IOException;
+
+        abstract void finish() throws IOException;
+
+        /**
+         * @return true if the size of a file must be known before its content
+         */
+        abstract boolean needsSize();
+    }
+
+    private static final class ZipWriter extends ArchiveWriter {
+        private final ZipOutputStream zip;
+
+        ZipWriter(OutputStream output) {
+            // the sizes and the CRC follow each entry (data descriptor), the content is
+            // never buffered
+            this.zip = new ZipOutputStream(output, StandardCharsets.UTF_8);
+            this.zip.setLevel(Constant.ARCHIVE_LEVEL);
+        }
+
+        @Override
+        void putDirectory(String name, long lastModified) throws IOException {
+            zip.putNextEntry(entry(name + "/", lastModified));
+            zip.closeEntry();
+        }
+
+        @Override
+        OutputStream putFile(String name, long size, long lastModified) throws IOException {
+            zip.putNextEntry(entry(name, lastModified));
+            return zip;
+        }
+
+        @Override
+        long closeEntry() throws IOException {
+            zip.closeEntry();
+            return 0;
+        }
+
+        @Override
+        void finish() throws IOException {
+            zip.finish();
+            zip.flush();
+        }
+
+        @Override
+        boolean needsSize() {
+            return false;
+        }
+
+        private static ZipEntry entry(String name, long lastModified) {
+            ZipEntry entry = new ZipEntry(name);
+            if (lastModified >= 0) {
+                entry.setTime(lastModified);
+            }
+            return entry;
+        }
+    }
+
+    private static final class TarGzWriter extends ArchiveWriter {
+        private final GZIPOutputStream gzip;
+        private final TarOutputStream tar;
+
+        TarGzWriter(OutputStream output) throws IOException {
+            this.gzip = new GZIPOutputStream(output, Constant.STREAM_BUFFER_SIZE) {
+                {
+                    def.setLevel(Constant.ARCHIVE_LEVEL);
+                }
+            };
+            this.tar = new TarOutputStream(gzip);
+        }
+
+        @Override
+        void putDirectory(String name, long lastModified) throws IOException {
+            tar.putDirectory(name, lastModified);
+        }
+
+        @Override
+        OutputStream putFile(String name, long size, long lastModified) throws IOException {
+            tar.putFile(name, Math.max(0, size), lastModified);
+            return tar;
+        }
+
+        @Override
+        long closeEntry() throws IOException {
+            return tar.closeEntry();
+        }
+
+        @Override
+        void finish() throws IOException {
+            tar.finish();
+            gzip.finish();
+            gzip.flush();
+        }
+
+        @Override
+        boolean needsSize() {
+            return true;
+        }
+    }
+}
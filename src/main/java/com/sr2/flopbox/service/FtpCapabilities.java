@@ -0,0 +1,122 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Features of a ftp server read once from its FEAT reply and shared by every
+ * connection to it (cached per alias by the FtpConnectionPool). When the server
+ * supports MLST the listings are read with MLSD, whose facts are exact and do
+ * not need the LIST format of the server to be guessed, and only the facts a
+ * ListingEntry is made of are asked for with OPTS MLST.
+ *
+ * @author Adrien Holvoet
+ */
+public final class FtpCapabilities {
+    // Facts of a MLSD entry kept in a ListingEntry, in the order they are asked for
+    private static final List<String> LISTING_FACTS = Arrays.asList("type", "size", "modify", "unix.mode",
+            "unix.owner", "unix.group");
+    // All private because they are only used in this class
+    // feature name in upper case -> its parameters, empty if it has none
+    private final Map<String, String> features;
+    private final List<String> facts;
+    private volatile boolean machineListing;
+
+    /**
+     * Constructor
+     *
+     * @param features feature name in upper case and its parameters
+     */
+    FtpCapabilities(Map<String, String> features) {
+        this.features = features;
+        this.facts = selectFacts(features.get("MLST"));
+        this.machineListing = Constant.FTP_MACHINE_LISTING && features.containsKey("MLST");
+    }
+
+    /**
+     * Ask the features of a server with FEAT
+     *
+     * @param client logged in ftp client
+     * @return the capabilities, none of them if the server does not know FEAT
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    static FtpCapabilities detect(FTPClient client) throws IOException {
+        Map<String, String> features = new HashMap<>();
+        if (client.features()) {
+            String[] lines = client.getReplyStrings();
+            // the first and last lines are the 211 reply itself
+            for (int i = 1; i < lines.length - 1; i++) {
+                String line = lines[i].trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                String name = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+                features.put(name, space < 0 ? "" : line.substring(space + 1).trim());
+            }
+        }
+        return new FtpCapabilities(features);
+    }
+
+    /**
+     * @param feature name of the feature (MLST, SIZE, MDTM, REST...)
+     * @return true if the server announced the feature
+     */
+    public boolean hasFeature(String feature) {
+        return features.containsKey(feature.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return true if the listings are read with MLSD instead of LIST
+     */
+    public boolean isMachineListing() {
+        return machineListing;
+    }
+
+    /**
+     * Go back to LIST for every connection opened from now on, used when the
+     * server announced MLST but refuses MLSD
+     */
+    void disableMachineListing() {
+        this.machineListing = false;
+    }
+
+    /**
+     * @return the facts of the MLSD entries asked for with OPTS MLST, empty if the
+     *         server did not list the facts it supports
+     */
+    public List<String> getFacts() {
+        return facts;
+    }
+
+    /**
+     * Keep the facts of LISTING_FACTS the server supports, the MLST feature lists
+     * them as "type*;size*;modify*;perm;" where * marks the facts sent by default
+     */
+    private static List<String> selectFacts(String supported) {
+        if (supported == null || supported.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> available = new ArrayList<>();
+        for (String fact : supported.split(";")) {
+            String name = fact.trim().toLowerCase(Locale.ROOT);
+            available.add(name.endsWith("*") ? name.substring(0, name.length() - 1) : name);
+        }
+        List<String> selected = new ArrayList<>();
+        for (String fact : LISTING_FACTS) {
+            if (available.contains(fact)) {
+                selected.add(fact);
+            }
+        }
+        return Collections.unmodifiableList(selected);
+    }
+}
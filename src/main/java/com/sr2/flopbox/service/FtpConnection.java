@@ -0,0 +1,64 @@
+package com.sr2.flopbox.service;
+
+/**
+ * An authenticated ftp control connection owned by the FtpConnectionPool. It
+ * is lent to one request at a time and given back with
+ * FtpConnectionPool.release once the request is done with it.
+ *
+ * @author Adrien Holvoet
+ */
+public class FtpConnection {
+    // All private because they are only used in this class
+    private final FtpConnectionKey key;
+    private final StreamingFtpClient client;
+    private final int generation;
+    private volatile long lastUsed;
+    private volatile boolean reusable = true;
+
+    /**
+     * Constructor
+     *
+     * @param key        alias and credentials the client is logged in with
+     * @param client     connected and logged in ftp client
+     * @param generation generation of the server when the connection was opened
+     */
+    FtpConnection(FtpConnectionKey key, StreamingFtpClient client, int generation) {
+        this.key = key;
+        this.client = client;
+        this.generation = generation;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public FtpConnectionKey getKey() {
+        return key;
+    }
+
+    public StreamingFtpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Flag the connection so that the pool closes it instead of reusing it, used
+     * when the control connection is in an unknown state (I/O error, transfer
+     * left pending...)
+     */
+    public void invalidate() {
+        this.reusable = false;
+    }
+
+    boolean isReusable() {
+        return reusable && client.isConnected();
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+}
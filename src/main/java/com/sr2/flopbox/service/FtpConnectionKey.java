@@ -0,0 +1,67 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.model.Credentials;
+
+import java.util.Objects;
+
+/**
+ * Identifies a pooled ftp connection: a connection can only be reused by a
+ * request targeting the same server alias with the same ftp credentials.
+ *
+ * @author Adrien Holvoet
+ */
+public final class FtpConnectionKey {
+    // All private final because a key is immutable
+    private final String alias;
+    private final String username;
+    private final String password;
+
+    /**
+     * Constructor
+     *
+     * @param alias       the ftp server
+     * @param credentials ftp credentials used to log in
+     */
+    public FtpConnectionKey(String alias, Credentials credentials) {
+        this.alias = alias;
+        this.username = credentials.getUsername();
+        this.password = credentials.getPassword();
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FtpConnectionKey)) {
+            return false;
+        }
+        FtpConnectionKey other = (FtpConnectionKey) o;
+        return alias.equals(other.alias) && username.equals(other.username) && password.equals(other.password);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(alias, username, password);
+    }
+
+    /**
+     * The password is deliberately left out so that it never ends up in the logs
+     */
+    @Override
+    public String toString() {
+        return username + "@" + alias;
+    }
+}
@@ -0,0 +1,478 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.exception.NotAuthorizedException;
+import com.sr2.flopbox.exception.UnexpectedFtpStatusCodeException;
+import com.sr2.flopbox.model.Credentials;
+import com.sr2.flopbox.model.Server;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.ServiceUnavailableException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class Singleton which keeps the ftp control connections opened and logged in
+ * between two requests, pooled per (alias, credentials). It avoids paying the
+ * TCP handshake, the banner and the USER/PASS round-trips on every request.
+ * The number of opened connections is bounded per server and in total, idle
+ * connections are kept alive with NOOP and closed once idle for too long. The
+ * features of each server (FEAT) are detected by its first connection and kept
+ * for the next ones.
+ *
+ * @author Adrien Holvoet
+ */
+public final class FtpConnectionPool {
+    /*
+     * All private because they are only used in this class and static because it
+     * is unique
+     */
+    private static final Logger logger = LogManager.getLogger(FtpConnectionPool.class);
+    private static FtpConnectionPool instance;
+    private final ServerService serverService = ServerService.getInstance();
+    // Every field below is guarded by the pool monitor
+    private final Map<FtpConnectionKey, Deque<FtpConnection>> idle = new HashMap<>();
+    private final Map<String, Integer> openedPerServer = new HashMap<>();
+    private final Map<String, Integer> generations = new HashMap<>();
+    private final Map<String, FtpCapabilities> capabilities = new HashMap<>();
+    private int openedTotal;
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * Private constructor to prevent instantiation, starts the background thread
+     * sending the keep-alive probes and evicting the idle connections
+     */
+    private FtpConnectionPool() {
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ftp-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor.scheduleWithFixedDelay(this::evictAndKeepAlive, Constant.POOL_KEEP_ALIVE_INTERVAL,
+                Constant.POOL_KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Static method to return the unique FtpConnectionPool instance, create it if
+     * it does not exist. Synchronized because it is reached concurrently by the
+     * ftp workers
+     *
+     * @return instance a instance of FtpConnectionPool
+     */
+    public static synchronized FtpConnectionPool getInstance() {
+        if (instance == null) {
+            instance = new FtpConnectionPool();
+        }
+        return instance;
+    }
+
+    /**
+     * Lend a logged in connection for the given server and credentials. An idle
+     * connection is reused when there is one (validated with a NOOP if it has been
+     * idle for a while), a new one is opened otherwise as long as the limits
+     * allow it. Waits for a connection to be released when the limits are reached.
+     *
+     * @param alias       the ftp server
+     * @param credentials ftp credentials
+     * @return connection which must be given back with release
+     * @throws IOException                      thrown if any I/O error occurred.
+     * @throws UnexpectedFtpStatusCodeException If the server doesn't answer by the
+     *                                          expected code
+     * @throws NotAuthorizedException           If the login is not successful
+     * @throws NotFoundException                If the server is not found
+     * @throws ServiceUnavailableException      If no connection could be obtained
+     *                                          in time
+     */
+    public FtpConnection borrow(String alias, Credentials credentials)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        return borrow(alias, credentials, true);
+    }
+
+    /**
+     * Lend a logged in connection only if one is available right away, used for
+     * the optional connections of a parallel transfer which can go on without
+     * them
+     *
+     * @param alias       the ftp server
+     * @param credentials ftp credentials
+     * @return connection which must be given back with release, null if the
+     *         limits are reached
+     * @throws IOException                      thrown if any I/O error occurred.
+     * @throws UnexpectedFtpStatusCodeException If the server doesn't answer by the
+     *                                          expected code
+     * @throws NotAuthorizedException           If the login is not successful
+     * @throws NotFoundException                If the server is not found
+     */
+    public FtpConnection tryBorrow(String alias, Credentials credentials)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        return borrow(alias, credentials, false);
+    }
+
+    private FtpConnection borrow(String alias, Credentials credentials, boolean wait)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        FtpConnectionKey key = new FtpConnectionKey(alias, credentials);
+        long deadline = System.currentTimeMillis() + Constant.POOL_BORROW_TIMEOUT;
+
+        while (true) {
+            FtpConnection candidate = null;
+            FtpConnection victim = null;
+            synchronized (this) {
+                while (true) {
+                    Deque<FtpConnection> connections = idle.get(key);
+                    if (connections != null && !connections.isEmpty()) {
+                        candidate = connections.pollFirst();
+                        break;
+                    }
+                    if (canOpen(alias)) {
+                        reserve(alias);
+                        break;
+                    }
+                    victim = removeEvictionVictim(alias);
+                    if (victim != null) {
+                        // the victim's slot is reused right away for the new connection
+                        reserve(alias);
+                        break;
+                    }
+                    if (!wait) {
+                        return null;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new ServiceUnavailableException(
+                                "Too many simultaneous connections to the ftp server " + alias);
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ServiceUnavailableException("Interrupted while waiting for a ftp connection");
+                    }
+                }
+            }
+
+            if (victim != null) {
+                close(victim);
+            }
+            if (candidate == null) {
+                return open(key, credentials);
+            }
+            if (validate(candidate)) {
+                return candidate;
+            }
+            destroy(candidate);
+        }
+    }
+
+    /**
+     * Give back a connection lent by borrow. It is kept for a next request if it
+     * is still usable and closed otherwise.
+     *
+     * @param connection connection to give back, ignored if null
+     */
+    public void release(FtpConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        connection.touch();
+        synchronized (this) {
+            if (connection.isReusable()
+                    && connection.getGeneration() == generations.getOrDefault(connection.getKey().getAlias(), 0)) {
+                idle.computeIfAbsent(connection.getKey(), k -> new ArrayDeque<>()).offerFirst(connection);
+                notifyAll();
+                return;
+            }
+        }
+        destroy(connection);
+    }
+
+    /**
+     * Close every idle connection of a server, used when a server is updated or
+     * deleted from the platform. Connections currently lent are closed when they
+     * are released as they belong to an older generation of the server.
+     *
+     * @param alias the ftp server
+     */
+    public void evict(String alias) {
+        List<FtpConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            generations.merge(alias, 1, Integer::sum);
+            // the server may have changed, its features are asked again
+            capabilities.remove(alias);
+            Iterator<Map.Entry<FtpConnectionKey, Deque<FtpConnection>>> it = idle.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<FtpConnectionKey, Deque<FtpConnection>> entry = it.next();
+                if (entry.getKey().getAlias().equals(alias)) {
+                    for (FtpConnection connection : entry.getValue()) {
+                        connection.invalidate();
+                        toClose.add(connection);
+                    }
+                    it.remove();
+                }
+            }
+        }
+        for (FtpConnection connection : toClose) {
+            destroy(connection);
+        }
+    }
+
+    /**
+     * Close every idle connection and stop the background thread
+     */
+    public void close() {
+        evictor.shutdownNow();
+        List<FtpConnection> toClose = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<FtpConnection> connections : idle.values()) {
+                toClose.addAll(connections);
+            }
+            idle.clear();
+        }
+        for (FtpConnection connection : toClose) {
+            destroy(connection);
+        }
+    }
+
+    /**
+     * Open and log in a new connection, the slot must already be reserved. The
+     * slot is freed if anything goes wrong.
+     */
+    private FtpConnection open(FtpConnectionKey key, Credentials credentials)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        StreamingFtpClient client = new StreamingFtpClient();
+        boolean opened = false;
+        int generation;
+        synchronized (this) {
+            generation = generations.getOrDefault(key.getAlias(), 0);
+        }
+        try {
+            Server server = serverService.getServer(key.getAlias());
+            client.setConnectTimeout(Constant.FTP_CONNECT_TIMEOUT);
+            client.setDefaultTimeout(Constant.FTP_CONTROL_TIMEOUT);
+            try {
+                client.connect(server.getAddress(), server.getPort());
+            } catch (IOException e) {
+                throw new NotFoundException(
+                        String.format("Unable to connect to the following ftp server %s:%s. Check if it is connected",
+                                server.getAddress(), server.getPort()));
+            }
+            if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                throw new UnexpectedFtpStatusCodeException(
+                        String.format("The ftp server did not respond with the correct status code %d, %s",
+                                client.getReplyCode(), client.getReplyString()));
+            }
+
+            try {
+                client.login(credentials.getUsername(), credentials.getPassword());
+            } catch (IOException e) {
+                throw new NotAuthorizedException("The credentials are wrong");
+            }
+            if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                throw new NotAuthorizedException("FTP : " + client.getReplyString());
+            }
+
+            client.negotiate(capabilities(key.getAlias(), client, generation));
+
+            opened = true;
+            logger.debug("Opened a new ftp connection for " + key);
+            return new FtpConnection(key, client, generation);
+        } finally {
+            if (!opened) {
+                disconnectQuietly(client);
+                unreserve(key.getAlias());
+            }
+        }
+    }
+
+    /**
+     * Capabilities of a server, FEAT is only sent by the first connection opened
+     * to it (or after it has been updated)
+     */
+    private FtpCapabilities capabilities(String alias, StreamingFtpClient client, int generation)
+            throws IOException {
+        synchronized (this) {
+            FtpCapabilities known = capabilities.get(alias);
+            if (known != null) {
+                return known;
+            }
+        }
+        FtpCapabilities detected = FtpCapabilities.detect(client);
+        synchronized (this) {
+            if (generation != generations.getOrDefault(alias, 0)) {
+                // the server has been updated meanwhile, not cached
+                return detected;
+            }
+            FtpCapabilities known = capabilities.putIfAbsent(alias, detected);
+            return known != null ? known : detected;
+        }
+    }
+
+    /**
+     * Check that a connection taken from the idle ones is still alive, a NOOP is
+     * only sent if it has not been used for POOL_VALIDATE_AFTER ms
+     */
+    private boolean validate(FtpConnection connection) {
+        if (!connection.isReusable()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - connection.getLastUsed() < Constant.POOL_VALIDATE_AFTER) {
+            return true;
+        }
+        try {
+            return connection.getClient().sendNoOp();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Background task: close the connections idle for more than
+     * POOL_MAX_IDLE_TIME and send a NOOP to the others so that the ftp server does
+     * not drop them
+     */
+    private void evictAndKeepAlive() {
+        long now = System.currentTimeMillis();
+        List<FtpConnection> expired = new ArrayList<>();
+        List<FtpConnection> toProbe = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<FtpConnection> connections : idle.values()) {
+                Iterator<FtpConnection> it = connections.iterator();
+                while (it.hasNext()) {
+                    FtpConnection connection = it.next();
+                    long idleTime = now - connection.getLastUsed();
+                    if (idleTime >= Constant.POOL_MAX_IDLE_TIME) {
+                        it.remove();
+                        expired.add(connection);
+                    } else if (idleTime >= Constant.POOL_KEEP_ALIVE_INTERVAL) {
+                        // taken out while probed so that nobody borrows it meanwhile
+                        it.remove();
+                        toProbe.add(connection);
+                    }
+                }
+            }
+            idle.values().removeIf(Deque::isEmpty);
+        }
+
+        for (FtpConnection connection : expired) {
+            destroy(connection);
+        }
+        for (FtpConnection connection : toProbe) {
+            boolean alive;
+            try {
+                alive = connection.getClient().sendNoOp();
+            } catch (IOException e) {
+                alive = false;
+            }
+            synchronized (this) {
+                if (alive && connection.getGeneration() == generations.getOrDefault(connection.getKey().getAlias(), 0)) {
+                    // keep the last use date so that the connection still expires
+                    idle.computeIfAbsent(connection.getKey(), k -> new ArrayDeque<>()).offerLast(connection);
+                    notifyAll();
+                    continue;
+                }
+            }
+            destroy(connection);
+        }
+    }
+
+    /**
+     * Must be called holding the monitor
+     */
+    private boolean canOpen(String alias) {
+        return openedTotal < Constant.POOL_MAX_TOTAL
+                && openedPerServer.getOrDefault(alias, 0) < Constant.POOL_MAX_PER_SERVER;
+    }
+
+    /**
+     * Must be called holding the monitor
+     */
+    private void reserve(String alias) {
+        openedTotal++;
+        openedPerServer.merge(alias, 1, Integer::sum);
+    }
+
+    private synchronized void unreserve(String alias) {
+        openedTotal--;
+        openedPerServer.merge(alias, -1, Integer::sum);
+        if (openedPerServer.get(alias) <= 0) {
+            openedPerServer.remove(alias);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Must be called holding the monitor. Take out the least recently used idle
+     * connection which frees a slot for the alias: one of the same server if the
+     * server limit is reached, any of them otherwise. Its slot is freed.
+     *
+     * @return the connection to close, null if there is none
+     */
+    private FtpConnection removeEvictionVictim(String alias) {
+        boolean sameServerOnly = openedPerServer.getOrDefault(alias, 0) >= Constant.POOL_MAX_PER_SERVER;
+        FtpConnection victim = null;
+        Deque<FtpConnection> victimDeque = null;
+        for (Map.Entry<FtpConnectionKey, Deque<FtpConnection>> entry : idle.entrySet()) {
+            if (sameServerOnly && !entry.getKey().getAlias().equals(alias)) {
+                continue;
+            }
+            FtpConnection oldest = entry.getValue().peekLast();
+            if (oldest != null && (victim == null || oldest.getLastUsed() < victim.getLastUsed())) {
+                victim = oldest;
+                victimDeque = entry.getValue();
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        victimDeque.pollLast();
+        String victimAlias = victim.getKey().getAlias();
+        openedTotal--;
+        openedPerServer.merge(victimAlias, -1, Integer::sum);
+        if (openedPerServer.get(victimAlias) <= 0) {
+            openedPerServer.remove(victimAlias);
+        }
+        return victim;
+    }
+
+    /**
+     * Close the connection and free its slot
+     */
+    private void destroy(FtpConnection connection) {
+        close(connection);
+        unreserve(connection.getKey().getAlias());
+    }
+
+    private void close(FtpConnection connection) {
+        FTPClient client = connection.getClient();
+        if (client.isConnected()) {
+            try {
+                client.logout();
+            } catch (IOException e) {
+                // Do nothing server already close
+            }
+        }
+        disconnectQuietly(client);
+    }
+
+    private void disconnectQuietly(FTPClient client) {
+        if (client.isConnected()) {
+            try {
+                client.disconnect();
+            } catch (IOException e) {
+                // Do nothing server already close
+            }
+        }
+    }
+}
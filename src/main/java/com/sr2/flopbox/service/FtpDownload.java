@@ -0,0 +1,401 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.ByteRange;
+import com.sr2.flopbox.common.StreamUtils;
+import com.sr2.flopbox.model.Credentials;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Body of a file download. It owns the ftp connection the RETR was issued on
+ * and copies the data connection straight to the HTTP response when Jersey
+ * writes the entity. The transfer is completed and the connection given back
+ * to the pool only once the last byte is written.
+ * <p>
+ * A partial download only sends the requested byte ranges: each range is
+ * retrieved from its first byte (REST) and the transfer is stopped after its
+ * last byte. Several ranges are sent as a multipart/byteranges body.
+ * <p>
+ * A segmented download retrieves the whole file over several connections at
+ * once (SegmentedTransfer) and writes it in order.
+ * <p>
+ * A download of the whole file can also be written to the ContentCache as it
+ * is sent, and a download found in the ContentCache is sent from the local copy
+ * without any ftp connection. A download of a file another download is
+ * writing to the ContentCache follows that copy as it grows, also without any
+ * ftp connection.
+ *
+ * @author Adrien Holvoet
+ */
+public class FtpDownload implements StreamingOutput, Closeable {
+    // All private because they are only used in this class
+    private static final String CRLF = "\r\n";
+    private FtpConnection connection;
+    private InputStream data;
+    private final String path;
+    private final long size;
+    private final long lastModified;
+    private final List<ByteRange> ranges;
+    private final String boundary;
+    private final SegmentedTransfer segments;
+    private final boolean binary;
+    private ContentCache.Hit hit;
+    private ContentCache.Fill fill;
+    private ContentCache.Follower follower;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean completed;
+
+    /**
+     * Constructor of a download of the whole file
+     *
+     * @param connection   connection on which the RETR has been issued, it now
+     *                     belongs to the download
+     * @param data         the data connection opened by the RETR
+     * @param binary       true if the RETR has been issued in binary mode,
+     *                     false in ASCII mode
+     * @param lastModified last modification of the file in milliseconds, -1 if
+     *                     unknown
+     */
+    FtpDownload(FtpConnection connection, InputStream data, boolean binary, long lastModified) {
+        this(connection, data, null, -1, lastModified, null, null, binary);
+    }
+
+    /**
+     * Constructor of a partial download
+     *
+     * @param connection   connection on which the RETR of the first range has
+     *                     been issued in binary mode, it now belongs to the
+     *                     download
+     * @param data         the data connection opened by the RETR
+     * @param path         path of the file, used to retrieve the next ranges
+     * @param size         size of the file
+     * @param lastModified last modification of the file in milliseconds, -1 if
+     *                     unknown
+     * @param ranges       sorted and disjoint ranges to send
+     */
+    FtpDownload(FtpConnection connection, InputStream data, String path, long size, long lastModified,
+                List<ByteRange> ranges) {
+        this(connection, data, path, size, lastModified, ranges, null, true);
+    }
+
+    /**
+     * Constructor of a segmented download of the whole file
+     *
+     * @param connection   connection which takes part in the transfer, it now
+     *                     belongs to the download
+     * @param size         size of the file
+     * @param lastModified last modification of the file in milliseconds, -1 if
+     *                     unknown
+     * @param segments     the segmented transfer of the file
+     */
+    FtpDownload(FtpConnection connection, long size, long lastModified, SegmentedTransfer segments) {
+        this(connection, null, null, size, lastModified, null, segments, true);
+    }
+
+    /**
+     * Constructor of a download sent from the local copy of the file
+     *
+     * @param hit          the opened copy, it now belongs to the download
+     * @param binary       true if the copy is the file as stored on the server
+     * @param size         size of the file
+     * @param lastModified last modification of the file in milliseconds, -1 if
+     *                     unknown
+     * @param ranges       sorted and disjoint ranges to send, null for the whole
+     *                     file
+     */
+    FtpDownload(ContentCache.Hit hit, boolean binary, long size, long lastModified, List<ByteRange> ranges) {
+        this(null, null, null, size, lastModified, ranges, null, binary);
+        this.hit = hit;
+    }
+
+    /**
+     * Constructor of a download of the whole file sent from the copy another
+     * download is writing
+     *
+     * @param follower     the opened copy, it now belongs to the download
+     * @param binary       true if the copy is the file as stored on the server
+     * @param lastModified last modification of the file in milliseconds, -1 if
+     *                     unknown
+     */
+    FtpDownload(ContentCache.Follower follower, boolean binary, long lastModified) {
+        this(null, null, null, -1, lastModified, null, null, binary);
+        this.follower = follower;
+    }
+
+    private FtpDownload(FtpConnection connection, InputStream data, String path, long size, long lastModified,
+                        List<ByteRange> ranges, SegmentedTransfer segments, boolean binary) {
+        this.connection = connection;
+        this.data = data;
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.ranges = ranges;
+        this.boundary = ranges != null && ranges.size() > 1 ? UUID.randomUUID().toString() : null;
+        this.segments = segments;
+        this.binary = binary;
+    }
+
+    /**
+     * Write the whole file to the ContentCache as it is sent, the copy is kept
+     * once the transfer is complete
+     *
+     * @param fill the copy to write
+     */
+    void cacheInto(ContentCache.Fill fill) {
+        this.fill = fill;
+    }
+
+    /**
+     * @return true if the download is sent from the local copy of the file
+     */
+    public boolean isCached() {
+        return hit != null || follower != null;
+    }
+
+    /**
+     * @return true if the body is the file as stored on the ftp server, false if
+     *         it has been transferred in ASCII mode (its line endings may differ)
+     *         and cannot be resumed with byte ranges
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return 206 for a partial download, 200 otherwise
+     */
+    public Response.Status getStatus() {
+        return ranges == null ? Response.Status.OK : Response.Status.PARTIAL_CONTENT;
+    }
+
+    public String getContentType() {
+        if (boundary != null) {
+            return "multipart/byteranges; boundary=" + boundary;
+        }
+        return MediaType.APPLICATION_OCTET_STREAM;
+    }
+
+    /**
+     * @return value of the Content-Range header, null if the whole file or
+     *         several ranges are sent
+     */
+    public String getContentRange() {
+        return ranges != null && ranges.size() == 1 ? ranges.get(0).toContentRange(size) : null;
+    }
+
+    /**
+     * @return the number of bytes of the body, -1 if unknown
+     */
+    public long getLength() {
+        if (segments != null) {
+            return size;
+        }
+        if (hit != null && ranges == null) {
+            return hit.getLength();
+        }
+        if (ranges == null) {
+            return -1;
+        }
+        if (boundary == null) {
+            return ranges.get(0).getLength();
+        }
+        long length = closingDelimiter().length;
+        for (ByteRange range : ranges) {
+            length += partHeader(range).length + range.getLength();
+        }
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Copy the data connection to the HTTP response, then complete the transfer
+     * and give the connection back to the pool
+     *
+     * @param output HTTP response body
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            if (hit != null) {
+                writeCached(output);
+                completed = true;
+            } else if (follower != null) {
+                StreamUtils.copy(follower, output);
+                completed = true;
+            } else if (segments != null) {
+                segments.writeTo(output, connection);
+                completed = true;
+            } else if (ranges == null) {
+                ContentCache.Fill.Tee tee = fill != null ? fill.tee(output) : null;
+                StreamUtils.copy(data, tee != null ? tee : output);
+                data.close();
+                completed = connection.getClient().completePendingCommand();
+                if (completed && fill != null) {
+                    fill.commit();
+                }
+                if (tee != null) {
+                    // the copy has been completed for its followers even if the client left
+                    tee.rethrow();
+                }
+            } else if (boundary == null) {
+                writeRange(ranges.get(0), output);
+            } else {
+                for (int i = 0; i < ranges.size(); i++) {
+                    ByteRange range = ranges.get(i);
+                    if (i > 0) {
+                        retrieve(range.getFirst());
+                    }
+                    output.write(partHeader(range));
+                    writeRange(range, output);
+                }
+                output.write(closingDelimiter());
+            }
+        } finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Give the connection back to the pool, the connection is closed if the
+     * transfer has not been completed (body not written, client gone...). Can be
+     * called several times.
+     */
+    @Override
+    public void close() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        if (fill != null) {
+            // dropped unless it has been kept
+            fill.close();
+        }
+        if (hit != null || follower != null) {
+            try {
+                (hit != null ? hit : follower).close();
+            } catch (IOException e) {
+                // Do nothing the copy is not used anymore
+            }
+            return;
+        }
+        if (!completed) {
+            try {
+                if (data != null) {
+                    data.close();
+                }
+            } catch (IOException e) {
+                // Do nothing the connection is closed anyway
+            }
+            connection.invalidate();
+        }
+        FtpConnectionPool.getInstance().release(connection);
+    }
+
+    /**
+     * Send the whole file or the ranges from the local copy
+     */
+    private void writeCached(OutputStream output) throws IOException {
+        if (ranges == null) {
+            hit.transferTo(0, hit.getLength(), output);
+        } else if (boundary == null) {
+            hit.transferTo(ranges.get(0).getFirst(), ranges.get(0).getLength(), output);
+        } else {
+            for (ByteRange range : ranges) {
+                output.write(partHeader(range));
+                hit.transferTo(range.getFirst(), range.getLength(), output);
+            }
+            output.write(closingDelimiter());
+        }
+    }
+
+    /**
+     * Send a range from the current data connection. The transfer is stopped
+     * after the last byte of the range.
+     */
+    private void writeRange(ByteRange range, OutputStream output) throws IOException {
+        StreamUtils.copy(data, output, range.getLength());
+        data.close();
+        completed = completeTransfer(connection.getClient(), range.getLast() == size - 1);
+    }
+
+    /**
+     * Complete a RETR whose data connection has been closed
+     *
+     * @param client      client on which the RETR was issued
+     * @param reachedEnd  true if the data connection has been read until the end
+     *                    of the file, false if the transfer has been stopped
+     *                    before
+     * @return true if the control connection can still be used
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    static boolean completeTransfer(FTPClient client, boolean reachedEnd) throws IOException {
+        if (reachedEnd) {
+            return client.completePendingCommand();
+        }
+        // the reply to a transfer stopped early is an error (426), NOOP checks that
+        // no other reply is left behind
+        client.completePendingCommand();
+        return client.noop() == FTPReply.COMMAND_OK;
+    }
+
+    /**
+     * Open the data connection of the next range. A new connection is borrowed
+     * if the previous transfer left the current one in an unknown state.
+     */
+    private void retrieve(long offset) throws IOException {
+        FTPClient client = connection.getClient();
+        if (!completed) {
+            boolean passive = client.getDataConnectionMode() == FTPClient.PASSIVE_LOCAL_DATA_CONNECTION_MODE;
+            FtpConnectionKey key = connection.getKey();
+            connection.invalidate();
+            FtpConnectionPool.getInstance().release(connection);
+            try {
+                connection = FtpConnectionPool.getInstance().borrow(key.getAlias(),
+                        new Credentials(key.getUsername(), key.getPassword()));
+            } catch (Exception e) {
+                // the response is already committed, all we can do is to cut it
+                released.set(true);
+                throw new IOException("Unable to retrieve the next range of " + path, e);
+            }
+            client = connection.getClient();
+            if (passive) {
+                client.enterLocalPassiveMode();
+            } else {
+                client.enterLocalActiveMode();
+            }
+        }
+        completed = false;
+        client.setFileType(FTP.BINARY_FILE_TYPE);
+        client.setRestartOffset(offset);
+        data = client.retrieveFileStream(path);
+        client.setRestartOffset(0);
+        if (data == null) {
+            throw new IOException("FTP : " + client.getReplyString());
+        }
+    }
+
+    private byte[] partHeader(ByteRange range) {
+        return (CRLF + "--" + boundary + CRLF + "Content-Type: " + MediaType.APPLICATION_OCTET_STREAM + CRLF
+                + "Content-Range: " + range.toContentRange(size) + CRLF + CRLF).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] closingDelimiter() {
+        return (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.US_ASCII);
+    }
+}
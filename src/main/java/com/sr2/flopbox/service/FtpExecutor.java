@@ -0,0 +1,142 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import jakarta.ws.rs.ServiceUnavailableException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class Singleton which runs the ftp commands off the HTTP worker threads. The
+ * engine is chosen with the flopbox.executor.engine system property: "bounded"
+ * (default) is a fixed pool of platform threads with a bounded queue, "virtual"
+ * starts a virtual thread per command when the JDK supports them. Either way
+ * at most EXECUTOR_THREADS + EXECUTOR_QUEUE commands are accepted at the same
+ * time, the others are rejected with a 503 instead of piling up.
+ *
+ * @author Adrien Holvoet
+ */
+public final class FtpExecutor {
+    /*
+     * All private because they are only used in this class and static because it
+     * is unique
+     */
+    private static final Logger logger = LogManager.getLogger(FtpExecutor.class);
+    private static FtpExecutor instance;
+    private final ExecutorService executor;
+    private final Semaphore inFlight = new Semaphore(Constant.EXECUTOR_THREADS + Constant.EXECUTOR_QUEUE);
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private FtpExecutor() {
+        ExecutorService virtual = null;
+        if ("virtual".equals(Constant.EXECUTOR_ENGINE)) {
+            virtual = newVirtualThreadExecutor();
+        }
+        if (virtual != null) {
+            this.executor = virtual;
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(Constant.EXECUTOR_THREADS, Constant.EXECUTOR_THREADS, 60L,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<>(Constant.EXECUTOR_QUEUE), runnable -> {
+                        Thread thread = new Thread(runnable, "ftp-worker-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            ((ThreadPoolExecutor) this.executor).allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Static method to return the unique FtpExecutor instance, create it if it
+     * does not exist
+     *
+     * @return instance a instance of FtpExecutor
+     */
+    public static synchronized FtpExecutor getInstance() {
+        if (instance == null) {
+            instance = new FtpExecutor();
+        }
+        return instance;
+    }
+
+    /**
+     * Run a task on the engine. Cancelling the returned future interrupts the task
+     * if it is running, a Closeable result produced after the cancellation is
+     * closed.
+     *
+     * @param task task to run
+     * @param <T>  result type
+     * @return CompletableFuture completed with the result or the exception of the
+     *         task, or failed with a ServiceUnavailableException if the engine is
+     *         saturated
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!inFlight.tryAcquire()) {
+            result.completeExceptionally(new ServiceUnavailableException("Too many ftp requests in progress"));
+            return result;
+        }
+        try {
+            Future<?> future = executor.submit(() -> {
+                try {
+                    T value = task.call();
+                    if (!result.complete(value) && value instanceof Closeable) {
+                        // cancelled meanwhile, nobody will release what the task holds
+                        ((Closeable) value).close();
+                    }
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    inFlight.release();
+                }
+            });
+            result.whenComplete((value, throwable) -> {
+                if (result.isCancelled()) {
+                    future.cancel(true);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            result.completeExceptionally(new ServiceUnavailableException("Too many ftp requests in progress"));
+        }
+        return result;
+    }
+
+    /**
+     * Stop accepting commands and interrupt the running ones
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor is looked up by reflection because
+     * the application still targets Java 8
+     *
+     * @return the executor, null if the JDK has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads are not available on this JDK, falling back to the bounded engine");
+            return null;
+        }
+    }
+}
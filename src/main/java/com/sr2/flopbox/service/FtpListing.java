@@ -0,0 +1,113 @@
+package com.sr2.flopbox.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sr2.flopbox.model.ListingEntry;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Body of a streamed directory listing. It owns the ftp connection the MLSD or
+ * LIST was issued on and writes each entry to the HTTP response as a JSON array
+ * element as soon as its line is parsed, so that only one entry is held in memory
+ * whatever the size of the directory. The transfer is completed and the
+ * connection given back to the pool once the last entry is written.
+ *
+ * @author Adrien Holvoet
+ */
+public class FtpListing implements StreamingOutput, Closeable {
+    // All private because they are only used in this class
+    // entries written between two flushes of the response
+    private static final int FLUSH_EVERY = 256;
+    private final FtpConnection connection;
+    private final InputStream data;
+    private final long offset;
+    private final long limit;
+    private final EnumSet<ListingWriter.Field> fields;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean completed;
+
+    /**
+     * Constructor
+     *
+     * @param connection connection on which the listing has been issued, it now
+     *                   belongs to the listing
+     * @param data       the data connection opened by the LIST
+     * @param offset     number of entries to skip
+     * @param limit      maximum number of entries to write, -1 for all of them
+     * @param fields     the fields of the entries to write
+     */
+    FtpListing(FtpConnection connection, InputStream data, long offset, long limit,
+               EnumSet<ListingWriter.Field> fields) {
+        this.connection = connection;
+        this.data = data;
+        this.offset = offset;
+        this.limit = limit;
+        this.fields = fields;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            StreamingFtpClient client = connection.getClient();
+            FTPFileEntryParser parser = client.getEntryParser();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(data, client.getControlEncoding()));
+            JsonGenerator generator = ListingWriter.createGenerator(output);
+            generator.writeStartArray();
+            long parsed = 0;
+            long written = 0;
+            boolean reachedEnd = false;
+            while (limit < 0 || written < limit) {
+                String line = parser.readNextEntry(reader);
+                if (line == null) {
+                    reachedEnd = true;
+                    break;
+                }
+                ListingEntry entry = client.toEntry(parser.parseFTPEntry(line));
+                if (entry == null || parsed++ < offset) {
+                    // not an entry (total line...) or before the requested page
+                    continue;
+                }
+                ListingWriter.writeEntry(generator, entry, fields);
+                if (++written % FLUSH_EVERY == 0) {
+                    generator.flush();
+                }
+            }
+            generator.writeEndArray();
+            generator.flush();
+            data.close();
+            completed = FtpDownload.completeTransfer(client, reachedEnd);
+        } finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Give the connection back to the pool, the connection is closed if the
+     * transfer has not been completed (body not written, client gone...). Can be
+     * called several times.
+     */
+    @Override
+    public void close() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        if (!completed) {
+            try {
+                data.close();
+            } catch (IOException e) {
+                // Do nothing the connection is closed anyway
+            }
+            connection.invalidate();
+        }
+        FtpConnectionPool.getInstance().release(connection);
+    }
+}
@@ -1,36 +1,82 @@
 package com.sr2.flopbox.service;
 
+import com.sr2.flopbox.common.ByteRange;
 import com.sr2.flopbox.common.CheckUtils;
 import com.sr2.flopbox.common.Command;
 import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.common.MultipartReader;
+import com.sr2.flopbox.common.StreamUtils;
+import com.sr2.flopbox.common.Validators;
 import com.sr2.flopbox.exception.NotAuthorizedException;
 import com.sr2.flopbox.exception.UnexpectedFtpStatusCodeException;
-import com.sr2.flopbox.model.Server;
+import com.sr2.flopbox.model.CopyReport;
+import com.sr2.flopbox.model.Credentials;
+import com.sr2.flopbox.model.FileMetadata;
+import com.sr2.flopbox.model.ListingEntry;
+import com.sr2.flopbox.model.TransferReport;
 import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ClientErrorException;
 import jakarta.ws.rs.ForbiddenException;
-import jakarta.ws.rs.NotAllowedException;
 import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPListParseEngine;
 import org.apache.commons.net.ftp.FTPReply;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Class which contains all the logic linked to the ftp resource. This service
- * will operate all the commands related to a server ftp. Implements Thread to
- * allow multiple simultaneous connections to ftp servers.
+ * will operate all the commands related to a server ftp. Implements Callable
+ * to be run by the FtpExecutor which allows multiple simultaneous connections
+ * to ftp servers. The ftp connection is borrowed from the FtpConnectionPool and
+ * given back once the command is done. The identical listings and file
+ * downloads run at the same time share their ftp operations (SingleFlight).
  *
  * @author Adrien Holvoet
  */
-public class FtpService extends Thread {
+public class FtpService implements Callable<Object> {
     /*
      * All private because they are only used in this class
      */
-    private FTPClient ftpClient;
-    private ServerService serverService = ServerService.getInstance();
+    private static final Logger logger = LogManager.getLogger(FtpService.class);
+    private static final EnumSet<Command> WRITE_COMMANDS = EnumSet.of(Command.PUT, Command.STOR, Command.REN,
+            Command.MKD, Command.RMD, Command.SYNC);
+    private static final SingleFlight<ListingEntry[]> LISTINGS = new SingleFlight<>();
+    private static final SingleFlight<FileMetadata> STATS = new SingleFlight<>();
+    private static final SingleFlight<Boolean> DOWNLOADS = new SingleFlight<>();
+    private ListingCache listingCache = ListingCache.getInstance();
+    private ContentCache contentCache = ContentCache.getInstance();
+    private long cacheAge = -1;
+    private Integer offset;
+    private Integer limit;
+    private boolean streamed;
+    private EnumSet<ListingWriter.Field> fields = ListingWriter.DEFAULT_FIELDS;
+    private long nextOffset = -1;
+    private int depth = Constant.TREE_DEFAULT_DEPTH;
+    private boolean full;
+    private FtpArchive.Format format;
+    private SyncPlan.Direction syncDirection = SyncPlan.Direction.BOTH;
+    private boolean syncDelete;
+    private String toAlias;
+    private String toPath;
+    private String toAuthorization;
+    private Job job;
+    private StreamingFtpClient ftpClient;
+    private FtpConnection connection;
+    private FtpConnectionPool connectionPool = FtpConnectionPool.getInstance();
     private Object resultObject = null;
     private String alias;
     private String authorization;
@@ -38,18 +84,26 @@ public class FtpService extends Thread {
     private String args0;
     private String args1;
     private String mode;
-    private Exception exception;
+    private InputStream body;
+    private String range;
+    private String ifRange;
+    private String ifNoneMatch;
+    private String ifModifiedSince;
+    private String etag;
+    private long lastModified = -1;
+    private boolean notModified;
+    private boolean segmented;
+    private Boolean restSupported;
 
     /**
      * Constructor used to get all the data from the resources and use the
-     * run(Thread)
+     * call(Callable)
      *
      * @param alias         the ftp server
      * @param command       the command executed
      * @param authorization HTTP request header authorization value
      */
     public FtpService(String alias, String authorization, Command command, String args0, String args1, String mode) {
-        super();
         this.alias = alias;
         this.authorization = authorization;
         this.command = command;
@@ -59,19 +113,246 @@ public class FtpService extends Thread {
     }
 
     /**
-     * The method need to be implemented from Thread class. This is the method
-     * launch when the thread is start. This méthod will just run the executeCommand
-     * method. And save the exception raised if one.
+     * Constructor used by the commands which send the HTTP request body to the
+     * ftp server
+     *
+     * @param alias         the ftp server
+     * @param command       the command executed
+     * @param authorization HTTP request header authorization value
+     * @param body          HTTP request body
+     */
+    public FtpService(String alias, String authorization, Command command, String args0, String args1, String mode,
+                      InputStream body) {
+        this(alias, authorization, command, args0, args1, mode);
+        this.body = body;
+    }
+
+    /**
+     * Constructor used by the file download which can ask for byte ranges
+     *
+     * @param alias         the ftp server
+     * @param command       the command executed
+     * @param authorization HTTP request header authorization value
+     * @param range         HTTP request header range value, can be null
+     * @param ifRange       HTTP request header if-range value, can be null
+     */
+    public FtpService(String alias, String authorization, Command command, String args0, String args1, String mode,
+                      String range, String ifRange) {
+        this(alias, authorization, command, args0, args1, mode);
+        this.range = range;
+        this.ifRange = ifRange;
+    }
+
+    /**
+     * Opt in for the segmented download of the large files (GETF and GETD): they
+     * are retrieved over several connections at once
+     *
+     * @param segmented true to use segmented downloads
      */
-    public void run() {
+    public void setSegmented(boolean segmented) {
+        this.segmented = segmented;
+    }
+
+    /**
+     * Ask a LIST for one page of the directory
+     *
+     * @param offset number of entries to skip, null for 0
+     * @param limit  maximum number of entries, null for
+     *               Constant.LISTING_PAGE_SIZE
+     */
+    public void setPage(Integer offset, Integer limit) {
+        if ((offset != null && offset < 0) || (limit != null && limit <= 0)) {
+            throw new BadRequestException("offset must be positive and limit greater than 0");
+        }
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * Ask a LIST to give a FtpListing writing the entries to the response as they
+     * are parsed instead of the whole array
+     *
+     * @param streamed true to stream the listing
+     */
+    public void setStreamed(boolean streamed) {
+        this.streamed = streamed;
+    }
+
+    /**
+     * Number of levels listed by a TREE
+     *
+     * @param depth 1 for the entries of the directory only, null for
+     *              Constant.TREE_DEFAULT_DEPTH
+     * @throws BadRequestException if the depth is not between 1 and
+     *                             Constant.TREE_MAX_DEPTH
+     */
+    public void setDepth(Integer depth) {
+        if (depth != null && (depth < 1 || depth > Constant.TREE_MAX_DEPTH)) {
+            throw new BadRequestException("The depth must be between 1 and " + Constant.TREE_MAX_DEPTH);
+        }
+        this.depth = depth != null ? depth : Constant.TREE_DEFAULT_DEPTH;
+    }
+
+    /**
+     * Ask an INDEX to list every directory again instead of the modified ones
+     * only
+     *
+     * @param full true for a full crawl
+     */
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    /**
+     * Ask a GETD to send the directory as an archive instead of downloading it to
+     * a local folder
+     *
+     * @param format zip or tar.gz, null for a local download
+     * @throws BadRequestException if the format is not supported
+     */
+    public void setFormat(String format) {
+        this.format = format != null ? FtpArchive.Format.parse(format) : null;
+    }
+
+    /**
+     * Way of a SYNC and whether it deletes the paths deleted on the other side
+     *
+     * @param direction download, upload or both, null for both
+     * @param delete    true to propagate the deletions, otherwise a deleted path
+     *                  is copied back
+     * @throws BadRequestException if the direction is unknown
+     */
+    public void setSync(String direction, boolean delete) {
+        this.syncDirection = SyncPlan.Direction.parse(direction);
+        this.syncDelete = delete;
+    }
+
+    /**
+     * Target of a COPY
+     *
+     * @param toAlias         the ftp server receiving the copy, null for the
+     *                        server of the source
+     * @param toPath          path of the copy, null for the path of the source
+     * @param toAuthorization basic authorization token of the target server, null
+     *                        for the credentials of the source server
+     */
+    public void setCopyTarget(String toAlias, String toPath, String toAuthorization) {
+        this.toAlias = toAlias;
+        this.toPath = toPath;
+        this.toAuthorization = toAuthorization;
+    }
+
+    /**
+     * Run the command as a job, the recursive transfer it starts is attached to
+     * the job to give its progress
+     *
+     * @param job the job running the command
+     */
+    void setJob(Job job) {
+        this.job = job;
+    }
+
+    /**
+     * Fields of the entries written by a streamed LIST
+     *
+     * @param fields the fields, ListingWriter.DEFAULT_FIELDS by default
+     */
+    public void setFields(EnumSet<ListingWriter.Field> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Run the command on the FtpExecutor
+     *
+     * @return CompletableFuture completed with the result of the command or the
+     *         exception raised
+     */
+    public CompletableFuture<Object> submit() {
+        return FtpExecutor.getInstance().submit(this);
+    }
+
+    /**
+     * The method need to be implemented from Callable interface. This method will
+     * just run the executeCommand method and give the ftp connection back to the
+     * pool whatever happens.
+     *
+     * @return the result of the command, null if it has none
+     * @throws Exception the exception raised by the command
+     */
+    public Object call() throws Exception {
         try {
             this.executeCommand(alias, authorization, command, args0, args1, mode);
-        } catch (Exception e) {
-            // catch all exceptions thrown to notify clients
-            this.exception = e;
+            return resultObject;
+        } catch (IOException e) {
+            if (connection != null) {
+                // the control connection is in an unknown state, do not reuse it
+                connection.invalidate();
+            }
+            throw e;
+        } finally {
+            this.release();
+            if (WRITE_COMMANDS.contains(command)) {
+                // even a failed write may have changed the remote tree
+                listingCache.invalidate(alias, File.separator + args0);
+            }
+            if (command == Command.COPY && toAlias != null) {
+                listingCache.invalidate(toAlias, toPath);
+            }
         }
     }
 
+    /**
+     * @return the age in milliseconds of the listing answered from the
+     *         ListingCache, -1 if it has been read from the ftp server
+     */
+    public long getCacheAge() {
+        return cacheAge;
+    }
+
+    /**
+     * @return offset of the next page of a paginated LIST, -1 if the page is the
+     *         last one
+     */
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Conditional headers of a GETF, the file is not retrieved if the client
+     * already has its current version
+     *
+     * @param ifNoneMatch     value of the If-None-Match header, can be null
+     * @param ifModifiedSince value of the If-Modified-Since header, can be null
+     */
+    public void setConditions(String ifNoneMatch, String ifModifiedSince) {
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+    }
+
+    /**
+     * @return entity tag of the file of a GETF (size and last modification), null
+     *         if unknown
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return last modification of the file of a GETF in milliseconds, -1 if
+     *         unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return true if the conditional headers of a GETF matched the current
+     *         version of the file, the result is then null (304)
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
     /**
      * Execute the commands received by the FtpResource
      *
@@ -88,33 +369,64 @@ public class FtpService extends Thread {
     public void executeCommand(String alias, String credentials, Command command, String args0, String args1,
                                String mode) throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
 
-        this.connect(alias);
-
-        // switch passive mode if the query param = passive, let the default active mode
-        // otherwise
-        if (mode != null && mode.equals(Constant.PASSIVE)) {
-            this.passiveMode();
+        Credentials ftpCredentials = parseCredentials(credentials);
+        FtpConnectionKey key = new FtpConnectionKey(alias, ftpCredentials);
+        String path = File.separator + args0;
+        if (command == Command.LIST) {
+            ListingCache.Listing listing = listingCache.get(key, path);
+            if (listing != null) {
+                // no connection needed
+                cacheAge = listing.getAge();
+                resultObject = this.page(listing.getEntries());
+                return;
+            }
+            if (!streamed && offset == null && limit == null) {
+                // the same listing running meanwhile is shared, only its first request
+                // borrows a connection
+                resultObject = LISTINGS.execute(key, path, () -> {
+                    this.connect(key, mode);
+                    return (ListingEntry[]) this.list(path);
+                });
+                return;
+            }
         }
+        if (command == Command.GETF) {
+            this.getFile(key, path, mode);
+            return;
+        }
+        this.connect(key, mode);
 
-        this.login(credentials);
-
-
-        args0 = File.separator + args0;
+        args0 = path;
         switch (command) {
 
             case LIST:
                 resultObject = this.list(args0);
                 break;
-            case GETF:
-                if ((checkFileExists(args0))) {
-                    resultObject = this.getF(args0);
-                } else {
-                    throw new NotFoundException("One of the specified path doesn't exist");
+            case TREE:
+                if (!checkDirectoryExists(args0)) {
+                    throw new NotFoundException("This repository doesn't exist");
                 }
+                TreeListing tree = new TreeListing(connection, args0, depth, fields);
+                // the tree borrows its own connections
+                this.release();
+                tree.start();
+                resultObject = tree;
+                break;
+            case INDEX:
+                resultObject = IndexService.getInstance().start(connection, full);
                 break;
             case GETD:
-                if (checkDirectoryExists(args0) && CheckUtils.checkIfLocalRepositoryExist(args1)) {
-                    this.getD(args0, "", args1);
+                if (format != null && checkDirectoryExists(args0)) {
+                    resultObject = new FtpArchive(connection, args0, format);
+                    // the connection belongs to the archive from now on
+                    this.connection = null;
+                } else if (format == null && checkDirectoryExists(args0)
+                        && CheckUtils.checkIfLocalRepositoryExist(args1)) {
+                    TreeDownload download = new TreeDownload(connection, segmented);
+                    this.track(download);
+                    // the download borrows its own connections
+                    this.release();
+                    resultObject = download.download(args0, args1);
                 } else {
                     throw new NotFoundException("One of the specified path doesn't exist");
                 }
@@ -128,12 +440,39 @@ public class FtpService extends Thread {
                     resultObject = this.putF(args0, args1);
                 } else if (checkDirectoryExists(args0) && file.exists()) {
                     String dir = new File(args0).getAbsolutePath();
-                    this.ftpClient.makeDirectory(dir + File.separator + file.getName());
-                    this.putD(dir + File.separator + file.getName(), args1, "");
+                    TreeUpload upload = new TreeUpload(connection);
+                    this.track(upload);
+                    // the upload borrows its own connections
+                    this.release();
+                    resultObject = upload.upload(dir + "/" + file.getName(), file);
                 } else {
                     throw new NotFoundException("One of the specified path doesn't exist");
                 }
                 break;
+            case SYNC:
+                if (args1 == null) {
+                    throw new BadRequestException("Query param cannot be null");
+                }
+                File local = new File(args1);
+                if (!checkDirectoryExists(args0) && (syncDirection == SyncPlan.Direction.DOWNLOAD
+                        || !ftpClient.makeDirectory(args0))) {
+                    throw new NotFoundException("This repository doesn't exist");
+                }
+                if (!local.isDirectory() && (syncDirection == SyncPlan.Direction.UPLOAD || !local.mkdirs())) {
+                    throw new NotFoundException("The local repository doesn't exist");
+                }
+                TreeSync sync = new TreeSync(connection, syncDirection, syncDelete);
+                this.track(sync);
+                // the synchronization borrows its own connections
+                this.release();
+                resultObject = sync.sync(args0, local);
+                break;
+            case COPY:
+                resultObject = this.copy(key, args0, credentials);
+                break;
+            case STOR:
+                resultObject = this.storeBody(args0, args1);
+                break;
             case REN:
                 resultObject = this.rename(args0, args1);
                 break;
@@ -141,197 +480,420 @@ public class FtpService extends Thread {
                 resultObject = this.createRepository(args0);
                 break;
             case RMD:
-                this.deleteDirectory(args0);
+                resultObject = this.deleteDirectory(args0);
                 break;
             default:
                 break;
         }
-        Thread.currentThread().interrupt();
     }
 
     /**
-     * Connects to a remote FTP server
+     * Copy a file or a repository to a path of another ftp server, or of the
+     * same one. The credentials of the target server are checked before the
+     * copy starts.
      *
-     * @param alias remote ServerFtp
-     * @throws IOException                      Thrown if any I/O error occurred.
-     * @throws UnexpectedFtpStatusCodeException If the server doesn't answer by the
-     *                                          expected code
-     * @throws NotFoundException                If the sever is not found
+     * @param key         server and credentials of the source
+     * @param source      path of the file or repository to copy
+     * @param credentials basic authorization token of the source server, used
+     *                    for the target one when it has none
+     * @return CopyReport of the copy
+     * @throws IOException                      thrown if any I/O error occurred.
+     * @throws UnexpectedFtpStatusCodeException
+     * @throws NotAuthorizedException
+     * @throws NotFoundException                If the source or the target server
+     *                                          doesn't exist
+     * @throws BadRequestException              If the copy would overwrite its
+     *                                          source
      */
-    private void connect(String alias) throws IOException, UnexpectedFtpStatusCodeException {
-        Server server = serverService.getServer(alias);
-        this.ftpClient = new FTPClient();
-        try {
-            this.ftpClient.connect(server.getAddress(), server.getPort());
-        } catch (IOException e) {
-            throw new NotFoundException(
-                    String.format("Unable to connect to the following ftp server %s:%s. Check if it is connected",
-                            server.getAddress(), server.getPort()));
+    private CopyReport copy(FtpConnectionKey key, String source, String credentials)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        toAlias = toAlias != null ? toAlias : key.getAlias();
+        toPath = toPath != null ? File.separator + toPath : source;
+        FtpConnectionKey target = new FtpConnectionKey(toAlias,
+                parseCredentials(toAuthorization != null ? toAuthorization : credentials));
+        if (toAlias.equals(key.getAlias()) && toPath.replaceAll("/+$", "").equals(source.replaceAll("/+$", ""))) {
+            throw new BadRequestException("The copy cannot overwrite its source");
         }
-        if (!FTPReply.isPositiveCompletion(ftpClient.getReplyCode())) {
-            throw new UnexpectedFtpStatusCodeException(
-                    String.format("The ftp server did not respond with the correct status code %d, %s",
-                            ftpClient.getReplyCode(), ftpClient.getReplyString()));
+        FileMetadata metadata = FtpStat.stat(ftpClient, source);
+        if (metadata == null) {
+            throw new NotFoundException("This file or repository doesn't exist");
         }
 
+        TreeCopy copy = new TreeCopy(connection, target);
+        this.track(copy);
+        // the copy borrows its own connections, the source one is given back
+        // before the target one is borrowed so that a copy never waits for a
+        // connection while holding another
+        this.release();
+        FtpConnection check = connectionPool.borrow(target.getAlias(),
+                new Credentials(target.getUsername(), target.getPassword()));
+        connectionPool.release(check);
+        return copy.copy(source, metadata.isDirectory(), metadata.getSize(), toPath);
     }
 
     /**
-     * Switch the connection to passive mode
-     *
-     * @throws NotAllowedException if something went wrong
+     * Give the progress of a recursive transfer to the job running the command
      */
-    private void passiveMode() {
-        this.ftpClient.enterLocalPassiveMode();
-        if (!FTPReply.isPositiveCompletion(this.ftpClient.getReplyCode())) {
-            throw new NotAllowedException("Cannot switch to passive mode, FTP : " + this.ftpClient.getReplyString());
+    private void track(TreeTransfer transfer) {
+        if (job != null) {
+            job.attach(transfer);
         }
+    }
 
+    /**
+     * Borrow a connection from the pool for the user
+     *
+     * @param key  server and credentials of the user
+     * @param mode Mode passive or active
+     * @throws IOException                      thrown if any I/O error occurred.
+     * @throws UnexpectedFtpStatusCodeException
+     * @throws NotAuthorizedException
+     */
+    private void connect(FtpConnectionKey key, String mode)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        this.connection = connectionPool.borrow(key.getAlias(), new Credentials(key.getUsername(), key.getPassword()));
+        this.ftpClient = connection.getClient();
+
+        // switch passive mode if the query param = passive, let the default active mode
+        // otherwise. Always set as a pooled connection keeps the mode of its last use
+        if (mode != null && mode.equals(Constant.PASSIVE)) {
+            this.ftpClient.enterLocalPassiveMode();
+        } else {
+            this.ftpClient.enterLocalActiveMode();
+        }
     }
 
     /**
-     * Login the user on the remote ftp server
+     * Decode the ftp credentials of the user, anonymous if the header is empty
      *
      * @param credentials basic authorization token
-     * @throws NotAuthorizedException If the connection is not successful
+     * @return Credentials the ftp username and password
+     * @throws NotAuthorizedException If the header cannot be decoded
      */
-    private void login(String credentials) throws NotAuthorizedException {
-
+    static Credentials parseCredentials(String credentials) throws NotAuthorizedException {
+        if (!CheckUtils.checkIfStringIsNull(credentials)) {
+            return new Credentials(Constant.ANONYMOUS, Constant.ANONYMOUS);
+        }
+        if (!credentials.startsWith("Basic")) {
+            throw new NotAuthorizedException("WWW-Authenticate=Basic");
+        }
         try {
-            if (!CheckUtils.checkIfStringIsNull(credentials)) {
-                this.ftpClient.login(Constant.ANONYMOUS, Constant.ANONYMOUS);
-            } else {
-                if (!credentials.startsWith("Basic")) {
-                    throw new NotAuthorizedException("WWW-Authenticate=Basic");
-                }
-                String[] tokens = (new String(Base64.getDecoder().decode(credentials.split(" ")[1]), "UTF-8"))
-                        .split(":");
-
-                final String username = tokens[0];
-                final String password = tokens[1];
-                this.ftpClient.login(username, password);
-            }
-        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            String[] tokens = (new String(Base64.getDecoder().decode(credentials.split(" ")[1]), "UTF-8"))
+                    .split(":");
+            return new Credentials(tokens[0], tokens[1]);
+        } catch (IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
             throw new NotAuthorizedException("The credentials are wrong");
         }
-
-        if (!FTPReply.isPositiveCompletion(ftpClient.getReplyCode())) {
-            throw new NotAuthorizedException("FTP : " + ftpClient.getReplyString());
-        }
     }
 
     /**
-     * List the directory specified in parameter
+     * List the directory specified in parameter. A streamed listing is written
+     * entry by entry by a FtpListing, a page is parsed from the raw listing with
+     * FTPListParseEngine.getNext so that only its entries are built, the whole
+     * listing is cached.
      *
      * @param dirPath directory path
-     * @return FTPFile[] all files with their metadata
+     * @return ListingEntry[] all files (or the requested page) with their
+     *         metadata, or a FtpListing
      * @throws IOException       thrown if any I/O error occurred.
      * @throws NotFoundException if the directory does not exist
      */
-    private FTPFile[] list(String dirPath) throws IOException {
+    private Object list(String dirPath) throws IOException {
         if (!(checkDirectoryExists(dirPath))) {
             throw new NotFoundException("This repository doesn't exist");
         }
-        FTPFile[] list = null;
-        list = this.ftpClient.listFiles(dirPath);
+        if (streamed) {
+            InputStream data = ftpClient.openListStream(dirPath);
+            if (data == null) {
+                throw new ForbiddenException("FTP : " + ftpClient.getReplyString());
+            }
+            FtpListing listing = new FtpListing(connection, data, offset != null ? offset : 0,
+                    limit != null ? limit : -1, fields);
+            // the connection belongs to the listing from now on
+            this.connection = null;
+            return listing;
+        }
+        if (offset != null || limit != null) {
+            FTPListParseEngine engine = ftpClient.initiateListParsing(dirPath);
+            int skip = offset != null ? offset : 0;
+            while (skip > 0 && engine.hasNext()) {
+                skip -= engine.getNext(Math.min(skip, Constant.LISTING_PAGE_SIZE)).length;
+            }
+            FTPFile[] page = engine.getNext(limit != null ? limit : Constant.LISTING_PAGE_SIZE);
+            if (engine.hasNext()) {
+                nextOffset = (offset != null ? offset : 0) + page.length;
+            }
+            return entries(page);
+        }
+        ListingEntry[] list = entries(this.ftpClient.listFiles(dirPath));
+        if (FTPReply.isPositiveCompletion(ftpClient.getReplyCode())) {
+            listingCache.put(connection.getKey(), dirPath, list);
+        }
         return list;
     }
 
     /**
-     * Retrieve the file specified in parameter
+     * Keep what the client needs of the parsed entries
      *
-     * @param filePath Path of the file downloaded
-     * @return inputStream The specific file
-     * @throws IOException Thrown if any I/O error occurred.
+     * @param files the parsed entries, null for the lines which are not an entry
+     * @return the entries
      */
-    private InputStream getF(String filePath) throws IOException {
-        // Change transfer file type
-        if (CheckUtils.isImage(new File(filePath))) {
-            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+    private ListingEntry[] entries(FTPFile[] files) {
+        List<ListingEntry> entries = new ArrayList<>(files.length);
+        for (FTPFile file : files) {
+            ListingEntry entry = ftpClient.toEntry(file);
+            if (entry != null) {
+                entries.add(entry);
+            }
         }
-
-        return ftpClient.retrieveFileStream(filePath);
+        return entries.toArray(new ListingEntry[0]);
     }
 
     /**
-     * Retrieve the file specified in parameter in the specified folder, used only
-     * for the recursion in getD
+     * The requested page of a whole listing
      *
-     * @param filePath     path of the file on the server  
-     * @param downloadPath path of directory where the file will be stored
-     * @return true if success, false otherwise
+     * @param list the whole listing
+     * @return the entries of the page, all of them if no page is requested
      */
-    private boolean downloadFileInGetD(String filePath, String downloadPath) throws IOException {
-        File downloadFile = new File(downloadPath);
-
-        File parentDir = downloadFile.getParentFile();
-        if (!parentDir.exists()) {
-            parentDir.mkdirs();
+    private ListingEntry[] page(ListingEntry[] list) {
+        if (offset == null && limit == null) {
+            return list;
         }
+        int from = Math.min(offset != null ? offset : 0, list.length);
+        int to = (int) Math.min((long) from + (limit != null ? limit : Constant.LISTING_PAGE_SIZE), list.length);
+        if (to < list.length) {
+            nextOffset = to;
+        }
+        return Arrays.copyOfRange(list, from, to);
+    }
 
-        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(downloadFile));
-        try {
-            if (CheckUtils.isImage(new File(filePath))) {
-                ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
-            } else {
-                ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
-            }
-            return ftpClient.retrieveFile(filePath, outputStream);
-        } finally {
-            if (outputStream != null) {
-                outputStream.close();
+    /**
+     * Check the file specified in parameter and retrieve it unless the client
+     * already has its current version. The stat is shared with the identical
+     * downloads running meanwhile, so only the first of them borrows a connection
+     * at this point.
+     *
+     * @param key      server and credentials of the user
+     * @param filePath path of the file
+     * @param mode     Mode passive or active
+     * @throws IOException                      Thrown if any I/O error occurred.
+     * @throws UnexpectedFtpStatusCodeException
+     * @throws NotAuthorizedException
+     * @throws NotFoundException                 if the file does not exist
+     */
+    private void getFile(FtpConnectionKey key, String filePath, String mode)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        FileMetadata metadata = STATS.execute(key, filePath, () -> {
+            this.connect(key, mode);
+            return FtpStat.stat(ftpClient, filePath);
+        });
+        if (metadata == null || metadata.isDirectory()) {
+            throw new NotFoundException("One of the specified path doesn't exist");
+        }
+        lastModified = metadata.getLastModified();
+        etag = Validators.etag(metadata.getSize(), lastModified);
+        if (Validators.isNotModified(ifNoneMatch, ifModifiedSince, etag, lastModified)) {
+            // the client has the current version, no data connection needed
+            notModified = true;
+            if (!CheckUtils.isImage(new File(filePath))) {
+                // tag of the ASCII body a GET would send
+                etag = Validators.weak(etag);
             }
+            return;
+        }
+        FtpDownload download = this.getF(key, filePath, metadata, mode);
+        if (!download.isBinary()) {
+            // the converted body is not the one the strong tag identifies
+            etag = Validators.weak(etag);
         }
+        resultObject = download;
     }
 
     /**
-     * Download a whole directory from a FTP server.
+     * Retrieve the file specified in parameter. The connection is handed over to
+     * the returned download which gives it back to the pool once the HTTP body is
+     * written. When byte ranges are requested (and still valid according to
+     * If-Range) the transfer starts at the first requested byte (REST) in binary
+     * mode, the whole file is sent if the server does not support REST. The
+     * whole file is sent in ASCII mode unless it is an image, such a body cannot
+     * be resumed: only the strong ETag of the binary body satisfies If-Range for
+     * these files, a date cannot tell which body the client holds. A
+     * segmented download of a large file is used if it has been asked for and the
+     * server supports REST. A file whose copy in the ContentCache still has the
+     * size and the last modification given by the server is sent from the copy,
+     * otherwise the whole file is copied to the cache as it is sent. A file
+     * another download is copying to the cache is sent from that copy as it
+     * grows.
      *
-     * @param remoteFolderPath path of the main folder which is download
-     * @param currentDir       path of the current directory being downloaded.
-     * @param downloadFolder   path of directory where the file will be stored
-     * @return true if success, false otherwise
-     * @throws IOException thrown if any I/O error occurred.
+     * @param key      server and credentials of the user
+     * @param filePath Path of the file downloaded
+     * @param metadata size and last modification of the file
+     * @param mode     Mode passive or active, used if no connection has been
+     *                 borrowed yet
+     * @return FtpDownload streaming the specific file or the requested ranges
+     * @throws IOException                      Thrown if any I/O error occurred.
+     * @throws UnexpectedFtpStatusCodeException if no connection can be opened
+     * @throws NotAuthorizedException           if no connection can be opened
+     * @throws NotFoundException    if the transfer cannot be started
+     * @throws ClientErrorException 416 if none of the ranges can be satisfied
      */
-    private void getD(String remoteFolderPath, String currentDir, String downloadFolder) throws IOException {
-        String dirToList = remoteFolderPath;
-        if (!currentDir.equals("")) {
-            dirToList += "/" + currentDir;
+    private FtpDownload getF(FtpConnectionKey key, String filePath, FileMetadata metadata, String mode)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        long lastModified = metadata.getLastModified();
+        List<ByteRange> ranges = null;
+        long size = metadata.getSize();
+        boolean image = CheckUtils.isImage(new File(filePath));
+        boolean ranged = range != null && (image || ifRange == null || ifRange.trim().startsWith("\""))
+                && ByteRange.isIfRangeSatisfied(ifRange, lastModified, etag);
+        // the ranges are offsets in the bytes as stored on the server
+        boolean binary = ranged || image;
+        ContentCache.Hit hit = contentCache.get(key, filePath, binary, size, lastModified);
+        if (hit != null) {
+            try {
+                ranges = ranged ? parseRanges(size) : null;
+            } catch (ClientErrorException e) {
+                hit.close();
+                throw e;
+            }
+            // the copy is up to date, no data connection needed
+            this.release();
+            return new FtpDownload(hit, binary, size, lastModified, ranges);
         }
-        FTPFile[] subFiles = ftpClient.listFiles(dirToList);
-
-        if (subFiles != null && subFiles.length > 0) {
-            for (FTPFile aFile : subFiles) {
-                String currentFileName = aFile.getName();
-                if (currentFileName.equals(".") || currentFileName.equals("..")) {
-                    // skip parent directory and the directory itself
-                    continue;
-                }
-                String filePath = remoteFolderPath + "/" + currentDir + "/" + currentFileName;
-                if (currentDir.equals("")) {
-                    filePath = remoteFolderPath + "/" + currentFileName;
+        if (!ranged) {
+            FtpDownload shared = this.follow(key, filePath, binary, size, lastModified);
+            if (shared != null) {
+                return shared;
+            }
+        }
+        if (!ranged && !segmented) {
+            // the same downloads starting meanwhile share the RETR of the first one,
+            // they follow the copy it writes to the cache
+            FtpDownload[] started = new FtpDownload[1];
+            long fileSize = size;
+            DOWNLOADS.execute(key, filePath, () -> {
+                if (connection == null) {
+                    this.connect(key, mode);
                 }
+                started[0] = this.retrieve(key, filePath, fileSize, lastModified);
+                return Boolean.TRUE;
+            });
+            if (started[0] != null) {
+                return started[0];
+            }
+            FtpDownload shared = this.follow(key, filePath, binary, size, lastModified);
+            if (shared != null) {
+                return shared;
+            }
+        }
+        if (connection == null) {
+            this.connect(key, mode);
+        }
+        if (range == null && segmented) {
+            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+            size = size >= 0 ? size : FtpStat.size(ftpClient, filePath);
+            if (SegmentedTransfer.isSegmentable(alias, size) && this.isRestSupported()) {
+                FtpDownload download = new FtpDownload(connection, size, lastModified,
+                        new SegmentedTransfer(connection, filePath, size));
+                // the connection belongs to the download from now on
+                this.connection = null;
+                return download;
+            }
+        }
+        if (ranged) {
+            // offsets only make sense on the bytes as stored on the server
+            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+            size = size >= 0 ? size : FtpStat.size(ftpClient, filePath);
+            if (size >= 0) {
+                ranges = parseRanges(size);
+            }
+        }
 
-                String newDirPath = downloadFolder + remoteFolderPath + File.separator + currentDir + File.separator
-                        + currentFileName;
-                if (currentDir.equals("")) {
-                    newDirPath = downloadFolder + remoteFolderPath + File.separator + currentFileName;
-                }
+        InputStream data = null;
+        if (ranges != null) {
+            ftpClient.setRestartOffset(ranges.get(0).getFirst());
+            data = ftpClient.retrieveFileStream(filePath);
+            ftpClient.setRestartOffset(0);
+            if (data == null && isRestRejected(ftpClient.getReplyCode())) {
+                logger.warn("REST is not supported by " + alias + ", the whole file is sent");
+                ranges = null;
+            }
+        }
+        if (ranges == null) {
+            return this.retrieve(key, filePath, size, lastModified);
+        }
+        if (data == null) {
+            throw new NotFoundException("FTP : " + ftpClient.getReplyString());
+        }
+        FtpDownload download = new FtpDownload(connection, data, filePath, size, lastModified, ranges);
+        // the connection belongs to the download from now on
+        this.connection = null;
+        return download;
+    }
 
-                if (aFile.isDirectory()) {
-                    // create the directory in saveDir
-                    File newDir = new File(newDirPath);
-                    newDir.mkdirs();
+    /**
+     * Retrieve the whole file, copied to the cache as it is sent
+     *
+     * @param key          server and credentials of the user
+     * @param filePath     Path of the file downloaded
+     * @param size         size of the file, -1 if unknown
+     * @param lastModified last modification of the file, -1 if unknown
+     * @return FtpDownload streaming the file
+     * @throws IOException       Thrown if any I/O error occurred.
+     * @throws NotFoundException if the transfer cannot be started
+     */
+    private FtpDownload retrieve(FtpConnectionKey key, String filePath, long size, long lastModified)
+            throws IOException {
+        // Change transfer file type, always set as a pooled connection keeps the type
+        // of its last transfer
+        boolean binary = CheckUtils.isImage(new File(filePath));
+        if (binary) {
+            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+        } else {
+            ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
+        }
+        InputStream data = ftpClient.retrieveFileStream(filePath);
+        if (data == null) {
+            throw new NotFoundException("FTP : " + ftpClient.getReplyString());
+        }
+        FtpDownload download = new FtpDownload(connection, data, binary, lastModified);
+        download.cacheInto(contentCache.fill(key, filePath, binary, size, lastModified));
+        // the connection belongs to the download from now on
+        this.connection = null;
+        return download;
+    }
 
-                    // download the sub directory
-                    getD(dirToList, currentFileName, downloadFolder);
-                } else {
-                    // download the file
-                    downloadFileInGetD(filePath, newDirPath);
-                }
-            }
+    /**
+     * Send the whole file from the copy another download is writing to the cache
+     *
+     * @return the download following the copy, null if there is none
+     */
+    private FtpDownload follow(FtpConnectionKey key, String filePath, boolean binary, long size,
+                               long lastModified) {
+        ContentCache.Follower follower = contentCache.follow(key, filePath, binary, size, lastModified);
+        if (follower == null) {
+            return null;
         }
+        // the same download is running, no data connection needed
+        this.release();
+        return new FtpDownload(follower, binary, lastModified);
+    }
 
+    /**
+     * Parse the Range header against the size of the file
+     *
+     * @param size size of the file
+     * @return the ranges to send, null if the header cannot be parsed (the whole
+     *         file is sent)
+     * @throws ClientErrorException 416 if none of the ranges can be satisfied
+     */
+    private List<ByteRange> parseRanges(long size) {
+        List<ByteRange> ranges = ByteRange.parse(range, size);
+        if (ranges != null && ranges.isEmpty()) {
+            throw new ClientErrorException("The requested range is not satisfiable",
+                    Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                            .header("Content-Range", "bytes */" + size).build());
+        }
+        return ranges;
     }
 
     /**
@@ -339,13 +901,13 @@ public class FtpService extends Thread {
      *
      * @param filePath file to store
      * @param dirPath  remote folder where to store the file
-     * @return true if store
+     * @return TransferReport with the number of bytes written
      * @throws IOException         thrown if any I/O error occurred.
      * @throws NotFoundException   if the resource is not found
      * @throws ForbiddenException  if the user don't have enough access
      * @throws BadRequestException if filePath is null
      */
-    private boolean putF(String dirPath, String filePath) throws IOException {
+    private TransferReport putF(String dirPath, String filePath) throws IOException {
         if (!CheckUtils.checkIfStringIsNull(filePath)) {
             throw new BadRequestException("Query Param cannot be null");
         }
@@ -363,53 +925,85 @@ public class FtpService extends Thread {
         } else {
             ftpClient.setFileType(FTP.ASCII_FILE_TYPE);
         }
-        boolean state = this.ftpClient.storeFile(file.getName(), in);
-
-        in.close();
+        // the bytes are counted by the job running the upload, if any
+        this.ftpClient.setCopyStreamListener(job != null ? job.getProgress() : null);
+        try {
+            this.ftpClient.storeFile(file.getName(), in);
+        } finally {
+            this.ftpClient.setCopyStreamListener(null);
+            in.close();
+        }
         if (!FTPReply.isPositiveCompletion(this.ftpClient.getReplyCode())) {
             throw new ForbiddenException("FTP : " + this.ftpClient.getReplyString());
         }
-        return state;
+        return new TransferReport(dirPath + "/" + file.getName(), 1, file.length());
     }
 
     /**
-     * Upload a whole directory to a FTP server.
+     * Upload the HTTP request body, either the raw body or the first file of a
+     * multipart/form-data body. The body is piped into the data connection through
+     * a fixed size buffer without touching the local disk, the blocking reads and
+     * writes make the client wait for the ftp server (backpressure).
      *
-     * @param remoteDirPath   Path of the destination directory on the server.
-     * @param localParentDir  Path of the local directory being uploaded.
-     * @param remoteParentDir Path of the parent directory of the current directory
-     *                        on the server (used by recursive calls).
-     * @throws IOException if any network or IO error occurred.
+     * @param filePath    remote path of the file, for a multipart body it can be a
+     *                    directory (ending with /) in which case the name of the
+     *                    uploaded file is used
+     * @param contentType content type of the HTTP request body
+     * @return TransferReport with the number of bytes written
+     * @throws IOException         thrown if any I/O error occurred.
+     * @throws ForbiddenException  if the user don't have enough access
+     * @throws BadRequestException if the multipart body is malformed or contains
+     *                             no file
      */
-    public void putD(String remoteDirPath, String localParentDir, String remoteParentDir) throws IOException {
-        File localDir = new File(localParentDir);
-        File[] subFiles = localDir.listFiles();
-
-        if (subFiles != null && subFiles.length > 0) {
-            for (File item : subFiles) {
-                String remoteFilePath = remoteDirPath + "/" + remoteParentDir + "/" + item.getName();
-                if (remoteParentDir.equals("")) {
-                    remoteFilePath = remoteDirPath + "/" + item.getName();
-                }
-
-                if (item.isFile()) {
-                    // upload the file
-                    String localFilePath = item.getAbsolutePath();
-                    putF(remoteFilePath.replace(item.getName(), ""), localFilePath);
-                } else {
-                    // create directory on the server
-                    ftpClient.makeDirectory(remoteFilePath);
-
-                    // upload the sub directory
-                    String parent = remoteParentDir + "/" + item.getName();
-                    if (remoteParentDir.equals("")) {
-                        parent = item.getName();
-                    }
-                    localParentDir = item.getAbsolutePath();
-                    putD(remoteDirPath, localParentDir, parent);
+    private TransferReport storeBody(String filePath, String contentType) throws IOException {
+        InputStream data = body;
+        if (contentType != null && MediaType.valueOf(contentType).isCompatible(MediaType.MULTIPART_FORM_DATA_TYPE)) {
+            String boundary = MultipartReader.getParameter(contentType, "boundary");
+            if (boundary == null) {
+                throw new BadRequestException("The multipart body has no boundary");
+            }
+            MultipartReader reader = new MultipartReader(body, boundary);
+            String fileName = null;
+            try {
+                Map<String, String> headers;
+                while (fileName == null && (headers = reader.nextPart()) != null) {
+                    fileName = MultipartReader.getParameter(headers.get("content-disposition"), "filename");
                 }
+            } catch (EOFException e) {
+                throw new BadRequestException(e.getMessage());
             }
+            if (!CheckUtils.checkIfStringIsNull(fileName)) {
+                throw new BadRequestException("The multipart body contains no file");
+            }
+            if (filePath.endsWith("/")) {
+                filePath += new File(fileName).getName();
+            }
+            data = reader.partBody();
+        }
+        if (filePath.endsWith("/")) {
+            throw new BadRequestException("The path of the file to store cannot be a directory");
+        }
+
+        // the bytes sent by the client are stored as is
+        ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+        OutputStream out = ftpClient.storeFileStream(filePath);
+        if (out == null) {
+            throw new ForbiddenException("FTP : " + ftpClient.getReplyString());
+        }
+        long bytes;
+        try {
+            bytes = StreamUtils.copy(data, out);
+        } catch (EOFException e) {
+            // the transfer is left pending, the connection cannot be reused
+            connection.invalidate();
+            throw new BadRequestException(e.getMessage());
+        } finally {
+            out.close();
+        }
+        if (!ftpClient.completePendingCommand()) {
+            throw new ForbiddenException("FTP : " + ftpClient.getReplyString());
         }
+        return new TransferReport(filePath, 1, bytes);
     }
 
     /**
@@ -424,7 +1018,7 @@ public class FtpService extends Thread {
      * @throws BadRequestException if name is null
      */
     private String rename(String path, String name) throws IOException {
-        if (!(checkFileExists(path)) && !(checkDirectoryExists(path))) {
+        if (FtpStat.stat(ftpClient, path) == null) {
             throw new NotFoundException("The specified path doesn't exist");
         }
 
@@ -468,16 +1062,19 @@ public class FtpService extends Thread {
     }
 
     /**
-     * Delete a directory/file
+     * Delete a directory/file, the entries of a directory are deleted in parallel
+     * by a TreeDelete
      *
      * @param path path of file/repo to delete
-     * @return true if deleted
+     * @return TransferReport with the number of files and directories deleted and
+     *         the entries which could not be deleted
      * @throws IOException         thrown if any I/O error occurred.
-     * @throws ForbiddenException  if the user don't have enough access
-     * @throws BadRequestException if path is null
+     * @throws NotFoundException   if the resource is not found
+     * @throws ForbiddenException  if nothing could be deleted
      */
-    private boolean deleteDirectory(String path) throws IOException {
-        if (!(checkFileExists(path)) && !(checkDirectoryExists(path))) {
+    private TransferReport deleteDirectory(String path) throws IOException {
+        FileMetadata metadata = FtpStat.stat(ftpClient, path);
+        if (metadata == null) {
             throw new NotFoundException("The specified path doesn't exist");
         }
 
@@ -485,34 +1082,15 @@ public class FtpService extends Thread {
             throw new ForbiddenException("You cannot delete the home repository");
         }
 
-        FTPFile[] subFiles = ftpClient.listFiles(path);
-
-        if (subFiles != null && subFiles.length > 0) {
-            for (FTPFile aFile : subFiles) {
-                String currentFileName = aFile.getName();
-                if (currentFileName.equals(".") || currentFileName.equals("..")) {
-                    // skip parent directory and the directory itself
-                    continue;
-                }
-                String filePath = path + "/" + currentFileName;
-
-                if (aFile.isDirectory()) {
-                    // remove the sub directory
-                    deleteDirectory(filePath);
-                } else {
-                    // delete the file
-                    ftpClient.deleteFile(filePath);
-                }
-            }
-        }
-        // finally, remove the directory itself
-        boolean removed = ftpClient.removeDirectory(path);
-
-        if (!FTPReply.isPositiveCompletion(this.ftpClient.getReplyCode())) {
-            throw new ForbiddenException("FTP : " + this.ftpClient.getReplyString());
+        TreeDelete delete = new TreeDelete(connection);
+        this.track(delete);
+        // the delete borrows its own connections
+        this.release();
+        TransferReport report = delete.delete(path, metadata.isDirectory());
+        if (report.getFiles() == 0 && report.getDirectories() == 0 && !report.getFailures().isEmpty()) {
+            throw new ForbiddenException(report.getFailures().get(0).getMessage());
         }
-
-        return removed;
+        return report;
     }
 
     /**
@@ -532,39 +1110,43 @@ public class FtpService extends Thread {
     }
 
     /**
-     * Determines whether a file exists or not
+     * Whether the server can restart a transfer at an offset, a REST 0 is harmless
+     * as the next transfer starts at the beginning anyway
      *
-     * @param filePath
-     * @return true if exists, false otherwise
+     * @return true if REST is accepted
      * @throws IOException thrown if any I/O error occurred.
      */
-    private boolean checkFileExists(String filePath) throws IOException {
-        InputStream inputStream = ftpClient.retrieveFileStream(filePath);
-        int returnCode = ftpClient.getReplyCode();
-        if (inputStream == null || returnCode == 550) {
-            return false;
+    private boolean isRestSupported() throws IOException {
+        if (restSupported == null) {
+            restSupported = FTPReply.isPositiveIntermediate(ftpClient.rest("0"));
+            if (!restSupported) {
+                logger.warn("REST is not supported by " + alias + ", the files are downloaded in one piece");
+            }
         }
-        return true;
+        return restSupported;
     }
 
     /**
-     * Logs out and disconnects from the server
+     * Whether a failed RETR has been refused because of the REST which preceded
+     * it rather than because of the file itself
      *
-     * @throws IOException thrown if any I/O error occurred.
+     * @param replyCode last reply of the server
+     * @return true if the server does not support restarting a transfer
      */
-    public void logout() throws IOException {
-        if (ftpClient != null && ftpClient.isConnected()) {
-            ftpClient.logout();
-            ftpClient.disconnect();
-        }
+    private static boolean isRestRejected(int replyCode) {
+        return replyCode == FTPReply.UNRECOGNIZED_COMMAND || replyCode == FTPReply.SYNTAX_ERROR_IN_ARGUMENTS
+                || replyCode == FTPReply.COMMAND_NOT_IMPLEMENTED
+                || replyCode == FTPReply.COMMAND_NOT_IMPLEMENTED_FOR_PARAMETER || replyCode == 554;
     }
 
-    public Exception getException() {
-        return exception;
-    }
-
-    public Object getResultObject() {
-        return resultObject;
+    /**
+     * Gives the connection back to the pool, it is closed instead if it cannot be
+     * reused
+     */
+    private void release() {
+        connectionPool.release(connection);
+        connection = null;
+        ftpClient = null;
     }
 
 }
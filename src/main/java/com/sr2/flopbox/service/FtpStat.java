@@ -0,0 +1,133 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.model.FileMetadata;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+
+/**
+ * Metadata of a remote path without any data connection. MLST gives the type,
+ * size and last modification in one round trip when the server supports it
+ * (FEAT), otherwise SIZE/MDTM tell a file, CWD a directory, and the listing of
+ * the parent directory is the last resort for the servers supporting none of
+ * them.
+ *
+ * @author Adrien Holvoet
+ */
+public final class FtpStat {
+
+    /**
+     * Prevent instantiation
+     */
+    private FtpStat() {
+    }
+
+    /**
+     * Metadata of a remote path
+     *
+     * @param client logged in ftp client, the transfer type may be set to binary
+     * @param path   absolute path of the file or directory
+     * @return the metadata, null if the path does not exist
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    public static FileMetadata stat(FTPClient client, String path) throws IOException {
+        if (client.hasFeature("MLST")) {
+            FTPFile file = client.mlistFile(path);
+            if (file != null) {
+                return toMetadata(path, file);
+            }
+            if (!isNotImplemented(client.getReplyCode())) {
+                return null;
+            }
+        }
+
+        boolean sizeSupported = client.hasFeature("SIZE");
+        if (sizeSupported) {
+            // some servers refuse SIZE in ASCII mode
+            client.setFileType(FTP.BINARY_FILE_TYPE);
+            long size = size(client, path);
+            if (size >= 0) {
+                return new FileMetadata(path, false, size, modificationTime(client, path));
+            }
+        }
+        if (client.changeWorkingDirectory(path)) {
+            return new FileMetadata(path, true, -1, -1);
+        }
+        if (sizeSupported) {
+            return null;
+        }
+        return statFromParent(client, path);
+    }
+
+    /**
+     * Size of a file (SIZE command), the current transfer type is used
+     *
+     * @param client   logged in ftp client
+     * @param filePath path of the file
+     * @return the size in bytes, -1 if the server does not give it
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    public static long size(FTPClient client, String filePath) throws IOException {
+        if (client.sendCommand("SIZE", filePath) != FTPReply.FILE_STATUS) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(client.getReplyString().substring(4).trim());
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Last modification of a file (MDTM command)
+     *
+     * @param client   logged in ftp client
+     * @param filePath path of the file
+     * @return the modification time in milliseconds, -1 if the server does not
+     *         give it
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    public static long modificationTime(FTPClient client, String filePath) throws IOException {
+        FTPFile file = client.mdtmFile(filePath);
+        if (file == null || file.getTimestamp() == null) {
+            return -1;
+        }
+        return file.getTimestamp().getTimeInMillis();
+    }
+
+    /**
+     * Find the path in the listing of its parent directory
+     */
+    private static FileMetadata statFromParent(FTPClient client, String path) throws IOException {
+        String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        int slash = trimmed.lastIndexOf('/');
+        if (slash < 0 || slash == trimmed.length() - 1) {
+            return null;
+        }
+        String parent = slash == 0 ? "/" : trimmed.substring(0, slash);
+        String name = trimmed.substring(slash + 1);
+        for (FTPFile entry : client.listFiles(parent)) {
+            if (entry != null && name.equals(entry.getName())) {
+                return toMetadata(path, entry);
+            }
+        }
+        return null;
+    }
+
+    private static FileMetadata toMetadata(String path, FTPFile file) {
+        long lastModified = file.getTimestamp() != null ? file.getTimestamp().getTimeInMillis() : -1;
+        return new FileMetadata(path, file.isDirectory(), file.isDirectory() ? -1 : file.getSize(), lastModified);
+    }
+
+    /**
+     * @param replyCode reply of a command
+     * @return true if the server does not know the command or its parameter
+     */
+    static boolean isNotImplemented(int replyCode) {
+        return replyCode == FTPReply.UNRECOGNIZED_COMMAND || replyCode == FTPReply.COMMAND_NOT_IMPLEMENTED
+                || replyCode == FTPReply.COMMAND_NOT_IMPLEMENTED_FOR_PARAMETER;
+    }
+}
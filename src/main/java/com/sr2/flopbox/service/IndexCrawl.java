@@ -0,0 +1,180 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.exception.FtpReplyException;
+import com.sr2.flopbox.model.FileMetadata;
+import com.sr2.flopbox.model.ListingEntry;
+import com.sr2.flopbox.model.TransferReport;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One pass of the crawler of a FileIndex. Every directory of the server is
+ * visited in parallel, but only the directories whose last modification
+ * (MLST) changed since the previous index are listed again, the entries of the
+ * others are taken from the previous index. Without MLST, or for a full crawl,
+ * every directory is listed. A directory which cannot be listed keeps its
+ * previous entries.
+ *
+ * @author Adrien Holvoet
+ */
+public class IndexCrawl extends TreeTransfer {
+    // All private because they are only used in this class
+    private final Map<String, List<FileMetadata>> previousChildren;
+    private final Map<String, FileMetadata> previousDirectories = new HashMap<>();
+    private final Queue<FileMetadata> records = new ConcurrentLinkedQueue<>();
+    private final AtomicLong reused = new AtomicLong();
+    private TransferReport report;
+
+    /**
+     * Constructor
+     *
+     * @param key      server and credentials to crawl with
+     * @param passive  true for the passive data connection mode
+     * @param previous index of the previous crawl, null for none
+     * @param full     true to list every directory again
+     */
+    public IndexCrawl(FtpConnectionKey key, boolean passive, FileIndex previous, boolean full) {
+        super(key, passive);
+        this.previousChildren = previous != null && !full ? previous.childrenByDirectory()
+                : Collections.<String, List<FileMetadata>>emptyMap();
+        for (List<FileMetadata> children : previousChildren.values()) {
+            for (FileMetadata child : children) {
+                if (child.isDirectory()) {
+                    previousDirectories.put(child.getPath(), child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Crawl the whole server
+     *
+     * @return the new index
+     * @throws IOException thrown if the crawl is cancelled
+     */
+    public FileIndex crawl() throws IOException {
+        FileMetadata root = previousDirectories.get("/");
+        report = run("/", new DirectoryTask("/", root));
+        return FileIndex.build(new ArrayList<>(records));
+    }
+
+    /**
+     * @return the directories listed, the failures and the time spent by the
+     *         last crawl
+     */
+    public TransferReport getReport() {
+        return report;
+    }
+
+    /**
+     * @return number of directories whose entries were taken from the previous
+     *         index
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Stop the crawl, the directories not visited yet are skipped
+     */
+    public void cancel() {
+        finish();
+    }
+
+    /**
+     * Visits a directory, records its entries and forks the visit of its
+     * subdirectories
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        // the directory as seen in the listing of its parent, null for the root
+        private final FileMetadata listed;
+
+        DirectoryTask(String path, FileMetadata listed) {
+            this.path = path;
+            this.listed = listed;
+        }
+
+        @Override
+        protected void compute() {
+            if (isCancelled()) {
+                return;
+            }
+            FileMetadata previous = previousDirectories.get(path);
+            List<FileMetadata> children;
+            long modified;
+            try {
+                modified = withRetry(connection -> {
+                    StreamingFtpClient client = connection.getClient();
+                    if (!client.hasFeature("MLST")) {
+                        return -1L;
+                    }
+                    FileMetadata stat = FtpStat.stat(client, path);
+                    return stat != null ? stat.getLastModified() : -1L;
+                });
+                if (modified >= 0 && previous != null && previous.getLastModified() == modified) {
+                    children = previousChildren.getOrDefault(path, Collections.<FileMetadata>emptyList());
+                    reused.incrementAndGet();
+                } else {
+                    children = list();
+                    directories.incrementAndGet();
+                }
+            } catch (IOException e) {
+                fail(path, e);
+                // kept as it was, listed again by the next crawl
+                modified = -1;
+                children = previousChildren.getOrDefault(path, Collections.<FileMetadata>emptyList());
+            }
+            if (modified < 0 && listed != null) {
+                modified = listed.getLastModified();
+            }
+            records.add(new FileMetadata(path, true, -1, modified));
+
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            for (FileMetadata child : children) {
+                if (child.isDirectory()) {
+                    subdirectories.add(new DirectoryTask(child.getPath(), child));
+                } else {
+                    records.add(child);
+                    files.incrementAndGet();
+                }
+            }
+            invokeAll(subdirectories);
+        }
+
+        private List<FileMetadata> list() throws IOException {
+            return withRetry(connection -> {
+                StreamingFtpClient client = connection.getClient();
+                FTPFile[] list = client.listFiles(path);
+                if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                    throw new FtpReplyException(client);
+                }
+                List<FileMetadata> children = new ArrayList<>(list.length);
+                for (FTPFile file : list) {
+                    ListingEntry entry = client.toEntry(file);
+                    if (entry == null || entry.getName().equals(".") || entry.getName().equals("..")) {
+                        continue;
+                    }
+                    String child = path.endsWith("/") ? path + entry.getName() : path + "/" + entry.getName();
+                    // the links are not followed, they could loop
+                    children.add(new FileMetadata(child, entry.isDirectory(),
+                            entry.isDirectory() ? -1 : entry.getSize(), entry.getModified()));
+                }
+                return children;
+            });
+        }
+    }
+}
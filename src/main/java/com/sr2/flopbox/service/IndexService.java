@@ -0,0 +1,303 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.exception.NotAuthorizedException;
+import com.sr2.flopbox.model.FileMetadata;
+import com.sr2.flopbox.model.IndexStatus;
+import com.sr2.flopbox.model.TransferFailure;
+import com.sr2.flopbox.model.TransferReport;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.ServiceUnavailableException;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class Singleton which keeps a FileIndex of the files of a server per (alias,
+ * credentials), so that the files can be searched without any ftp command. An
+ * index is kept up to date by a background IndexCrawl every
+ * Constant.INDEX_CRAWL_INTERVAL and written to Constant.INDEX_DIR, it is read
+ * back from there when the indexing of the server is started again.
+ *
+ * @author Adrien Holvoet
+ */
+public final class IndexService {
+    /*
+     * All private because they are only used in this class and static because it
+     * is unique
+     */
+    private static final Logger logger = LogManager.getLogger(IndexService.class);
+    private static IndexService instance;
+    // guarded by the service monitor
+    private final Map<FtpConnectionKey, Index> indexes = new HashMap<>();
+    private final ScheduledExecutorService crawler;
+
+    /**
+     * Private constructor to prevent instantiation, starts the background threads
+     * running the crawls
+     */
+    private IndexService() {
+        this.crawler = Executors.newScheduledThreadPool(Constant.INDEX_CRAWLERS, runnable -> {
+            Thread thread = new Thread(runnable, "index-crawler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Static method to return the unique IndexService instance, create it if it
+     * does not exist. Synchronized because it is reached concurrently by the ftp
+     * workers
+     *
+     * @return instance a instance of IndexService
+     */
+    public static synchronized IndexService getInstance() {
+        if (instance == null) {
+            instance = new IndexService();
+        }
+        return instance;
+    }
+
+    /**
+     * Start indexing the server for the user of a connection, or crawl it again
+     * right away if it is already indexed. The index written by a previous run of
+     * FlopBox is used until the first crawl is over.
+     *
+     * @param connection logged in connection, gives the server, the credentials
+     *                   and the data connection mode to crawl with
+     * @param full       true to list every directory again instead of the
+     *                   modified ones only
+     * @return the state of the index
+     */
+    public IndexStatus start(FtpConnection connection, boolean full) {
+        FtpConnectionKey key = connection.getKey();
+        Index index;
+        synchronized (this) {
+            index = indexes.get(key);
+            if (index == null) {
+                index = new Index(key, file(key));
+                load(index);
+                indexes.put(key, index);
+                Index scheduled = index;
+                index.schedule = crawler.scheduleWithFixedDelay(() -> crawl(scheduled),
+                        Constant.INDEX_CRAWL_INTERVAL, Constant.INDEX_CRAWL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+        index.passive = connection.getClient()
+                .getDataConnectionMode() == FTPClient.PASSIVE_LOCAL_DATA_CONNECTION_MODE;
+        if (full) {
+            index.full = true;
+        }
+        Index started = index;
+        crawler.execute(() -> crawl(started));
+        IndexStatus status = index.status();
+        status.setCrawling(true);
+        return status;
+    }
+
+    /**
+     * State of the index of a server
+     *
+     * @param alias         the ftp server
+     * @param authorization HTTP request header authorization value
+     * @return the state of the index
+     * @throws NotAuthorizedException If the header cannot be decoded
+     * @throws NotFoundException      If the server is not indexed for the user
+     */
+    public IndexStatus getStatus(String alias, String authorization) throws NotAuthorizedException {
+        return get(alias, authorization).status();
+    }
+
+    /**
+     * Search the index of a server
+     *
+     * @param alias         the ftp server
+     * @param authorization HTTP request header authorization value
+     * @param query         the criteria
+     * @param limit         maximum number of files
+     * @return the files in path order, one more than the limit if there are more
+     *         of them
+     * @throws NotAuthorizedException      If the header cannot be decoded
+     * @throws NotFoundException           If the server is not indexed for the
+     *                                     user
+     * @throws ServiceUnavailableException If the first crawl is not over
+     */
+    public List<FileMetadata> search(String alias, String authorization, FileIndex.Query query, int limit)
+            throws NotAuthorizedException {
+        FileIndex snapshot = get(alias, authorization).snapshot;
+        if (snapshot == null) {
+            throw new ServiceUnavailableException("The index of " + alias + " is being built");
+        }
+        return snapshot.search(query, limit);
+    }
+
+    /**
+     * Stop indexing a server for a user and delete its index
+     *
+     * @param alias         the ftp server
+     * @param authorization HTTP request header authorization value
+     * @throws NotAuthorizedException If the header cannot be decoded
+     * @throws NotFoundException      If the server is not indexed for the user
+     */
+    public void stop(String alias, String authorization) throws NotAuthorizedException {
+        Index index = get(alias, authorization);
+        synchronized (this) {
+            indexes.remove(index.key);
+        }
+        index.stop();
+    }
+
+    /**
+     * Stop indexing a server for every user and delete its indexes, used when the
+     * server is updated or deleted from the platform
+     *
+     * @param alias the ftp server
+     */
+    public void drop(String alias) {
+        List<Index> dropped = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Index> it = indexes.values().iterator();
+            while (it.hasNext()) {
+                Index index = it.next();
+                if (index.key.getAlias().equals(alias)) {
+                    dropped.add(index);
+                    it.remove();
+                }
+            }
+        }
+        for (Index index : dropped) {
+            index.stop();
+        }
+    }
+
+    private Index get(String alias, String authorization) throws NotAuthorizedException {
+        FtpConnectionKey key = new FtpConnectionKey(alias, FtpService.parseCredentials(authorization));
+        Index index;
+        synchronized (this) {
+            index = indexes.get(key);
+        }
+        if (index == null) {
+            throw new NotFoundException("The server " + alias + " is not indexed, POST /" + alias + "/index first");
+        }
+        return index;
+    }
+
+    /**
+     * Run one crawl of an index, skipped if one is already running
+     */
+    private void crawl(Index index) {
+        if (index.stopped || !index.crawling.compareAndSet(false, true)) {
+            return;
+        }
+        boolean full = index.full;
+        index.full = false;
+        IndexCrawl crawl = new IndexCrawl(index.key, index.passive, index.snapshot, full);
+        index.crawl = crawl;
+        try {
+            FileIndex updated = crawl.crawl();
+            if (index.stopped) {
+                return;
+            }
+            updated.write(index.file);
+            index.snapshot = updated;
+            index.report = crawl.getReport();
+            index.reused = crawl.getReused();
+            index.lastCrawl = System.currentTimeMillis();
+            logger.debug("Indexed " + updated.size() + " entries of " + index.key + " in "
+                    + index.report.getElapsed() + " ms");
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to index " + index.key + " : " + e.toString());
+        } finally {
+            index.crawl = null;
+            index.crawling.set(false);
+        }
+    }
+
+    /**
+     * Read the index written by a previous run of FlopBox, ignored if it cannot
+     * be read
+     */
+    private void load(Index index) {
+        if (!index.file.isFile()) {
+            return;
+        }
+        try {
+            index.snapshot = FileIndex.read(index.file);
+        } catch (IOException e) {
+            logger.warn("Unable to read the index " + index.file + " : " + e.toString());
+        }
+    }
+
+    private static File file(FtpConnectionKey key) {
+        String name = (key.getAlias() + "-" + key.getUsername()).replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(Constant.INDEX_DIR, name + ".idx");
+    }
+
+    /**
+     * Index of a server for a user
+     */
+    private final class Index {
+        private final FtpConnectionKey key;
+        private final File file;
+        private final AtomicBoolean crawling = new AtomicBoolean();
+        private volatile boolean passive;
+        private volatile boolean full;
+        private volatile boolean stopped;
+        private volatile FileIndex snapshot;
+        private volatile IndexCrawl crawl;
+        private volatile TransferReport report;
+        private volatile long reused;
+        private volatile long lastCrawl = -1;
+        private ScheduledFuture<?> schedule;
+
+        Index(FtpConnectionKey key, File file) {
+            this.key = key;
+            this.file = file;
+        }
+
+        IndexStatus status() {
+            FileIndex current = snapshot;
+            IndexStatus status = new IndexStatus(key.getAlias(), current != null ? current.size() : 0,
+                    current != null ? current.getBytes() : 0);
+            status.setCrawling(crawling.get());
+            status.setLastCrawl(lastCrawl);
+            status.setReused(reused);
+            TransferReport last = report;
+            if (last != null) {
+                status.setElapsed(last.getElapsed());
+                status.setListed(last.getDirectories());
+                status.setFailures(new ArrayList<TransferFailure>(last.getFailures()));
+            }
+            return status;
+        }
+
+        void stop() {
+            stopped = true;
+            synchronized (IndexService.this) {
+                if (schedule != null) {
+                    schedule.cancel(false);
+                }
+            }
+            IndexCrawl running = crawl;
+            if (running != null) {
+                running.cancel();
+            }
+            if (file.exists() && !file.delete()) {
+                logger.warn("Unable to delete the index " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Command;
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.model.JobStatus;
+import com.sr2.flopbox.model.TransferReport;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * A command run in the background by the JobService. The recursive transfer
+ * run by the command is attached to the job so that its progress can be read
+ * while it runs, and the bytes copied by its data connections are published to
+ * the subscribers of the job at most once per Constant.PROGRESS_INTERVAL. The
+ * statuses are sent by a thread of the publisher, never by the transfer: a
+ * status published while the previous one is being sent replaces the pending
+ * one, so a slow subscriber only receives fewer statuses.
+ *
+ * @author Adrien Holvoet
+ */
+final class Job {
+    // All private because they are only used in this class
+    private final String id;
+    private final FtpConnectionKey key;
+    private final Command command;
+    private final String path;
+    private final long submitted = System.currentTimeMillis();
+    private volatile State state = State.QUEUED;
+    private volatile long started = -1;
+    private volatile long ended = -1;
+    private volatile TreeTransfer transfer;
+    private volatile Object result;
+    private volatile String error;
+    private volatile boolean cancelled;
+    private volatile Future<?> future;
+    private final TransferProgress progress = new TransferProgress(Constant.PROGRESS_INTERVAL, this::publish);
+    private final List<Predicate<JobStatus>> subscribers = new CopyOnWriteArrayList<>();
+    private final Executor publisher;
+    // a status is waiting to be sent
+    private final AtomicBoolean pending = new AtomicBoolean();
+    // a thread of the publisher is sending the statuses
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+    /**
+     * State of a job
+     */
+    enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * Constructor
+     *
+     * @param id        id of the job
+     * @param key       server and credentials of the user
+     * @param command   the command run
+     * @param path      path the command runs on
+     * @param publisher runs the sending of the statuses to the subscribers
+     */
+    Job(String id, FtpConnectionKey key, Command command, String path, Executor publisher) {
+        this.id = id;
+        this.key = key;
+        this.command = command;
+        this.path = path;
+        this.publisher = publisher;
+    }
+
+    /**
+     * Run the command, called by a thread of the JobService
+     *
+     * @param service the command
+     */
+    void run(FtpService service) {
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                return;
+            }
+            started = System.currentTimeMillis();
+            state = State.RUNNING;
+        }
+        publish();
+        try {
+            Object value = service.call();
+            // under the lock of cancel, so that a job it cancelled never ends as done
+            synchronized (this) {
+                if (cancelled) {
+                    // a single file command is not interrupted by the cancellation, its
+                    // blocking transfer goes on until its end
+                    end(State.CANCELLED, null, "The job was cancelled, the transfer in progress could not be stopped");
+                } else {
+                    end(State.DONE, value, null);
+                }
+            }
+        } catch (Exception e) {
+            end(cancelled ? State.CANCELLED : State.FAILED, null,
+                    e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    /**
+     * Cancel the job: a queued job never runs, a running one is interrupted and
+     * its transfer stops starting new files
+     *
+     * @return false if the job was already over
+     */
+    boolean cancel() {
+        synchronized (this) {
+            if (isOver()) {
+                return false;
+            }
+            cancelled = true;
+            if (state == State.QUEUED) {
+                end(State.CANCELLED, null, null);
+            }
+        }
+        if (future != null) {
+            future.cancel(true);
+        }
+        return true;
+    }
+
+    /**
+     * Give the progress of a recursive transfer, called by the command once it
+     * creates it
+     *
+     * @param transfer the transfer run by the command
+     */
+    void attach(TreeTransfer transfer) {
+        transfer.setCopyStreamListener(progress);
+        this.transfer = transfer;
+    }
+
+    /**
+     * @return the listener counting the bytes of the single file commands, to
+     *         give to their FTPClient
+     */
+    TransferProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Receive the status of the job now, then each time it progresses and once
+     * it is over
+     *
+     * @param subscriber called with the first status from the calling thread,
+     *                   then from a thread of the publisher, it returns false to
+     *                   stop receiving them
+     */
+    void subscribe(Predicate<JobStatus> subscriber) {
+        synchronized (subscribers) {
+            if (!subscriber.test(status())) {
+                return;
+            }
+            subscribers.add(subscriber);
+        }
+        if (isOver()) {
+            // over while the first status was sent, the last publication may have
+            // missed the subscriber
+            publish();
+        }
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    FtpConnectionKey getKey() {
+        return key;
+    }
+
+    long getSubmitted() {
+        return submitted;
+    }
+
+    long getEnded() {
+        return ended;
+    }
+
+    boolean isOver() {
+        return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+    }
+
+    /**
+     * @return the state and the progress of the job, the throughput is the
+     *         average since the start of the transfer and the time left is
+     *         estimated from the totals known so far
+     */
+    JobStatus status() {
+        JobStatus status = new JobStatus();
+        status.setId(id);
+        status.setAlias(key.getAlias());
+        status.setCommand(command.name().toLowerCase());
+        status.setPath(path);
+        State current = state;
+        status.setState(current.name().toLowerCase());
+        status.setSubmitted(submitted);
+        status.setStarted(started);
+        status.setEnded(ended);
+        status.setError(error);
+        Object value = result;
+        TreeTransfer running = transfer;
+        TransferReport report = value instanceof TransferReport ? (TransferReport) value
+                : running != null ? running.progress() : null;
+        long elapsed = 0;
+        if (report != null) {
+            elapsed = report.getElapsed();
+            status.setFiles(report.getFiles());
+            status.setDirectories(report.getDirectories());
+            status.setBytes(report.getBytes());
+            status.setFailures(report.getFailures());
+            if (report.getElapsed() > 0) {
+                status.setThroughput(report.getBytes() * 1000 / report.getElapsed());
+            }
+        }
+        if (report == null && current == State.RUNNING) {
+            // a single file command, counted by its copy stream listener
+            elapsed = System.currentTimeMillis() - started;
+            status.setBytes(progress.getBytes());
+            if (elapsed > 0) {
+                status.setThroughput(status.getBytes() * 1000 / elapsed);
+            }
+        }
+        if (running != null) {
+            status.setTotalFiles(running.getTotalFiles());
+            status.setTotalBytes(running.getTotalBytes());
+        }
+        if (current == State.DONE) {
+            status.setEta(0);
+            status.setResult(value);
+        } else if (current == State.RUNNING && status.getThroughput() > 0) {
+            status.setEta(Math.max(0, status.getTotalBytes() - status.getBytes()) / status.getThroughput());
+        } else if (current == State.RUNNING && status.getTotalBytes() == 0 && status.getFiles() > 0) {
+            // empty files (or a deletion): the time left comes from the number of files
+            status.setEta(Math.max(0, status.getTotalFiles() - status.getFiles()) * elapsed / status.getFiles() / 1000);
+        }
+        return status;
+    }
+
+    private void end(State state, Object result, String error) {
+        synchronized (this) {
+            this.result = result;
+            this.error = error;
+            this.ended = System.currentTimeMillis();
+            this.state = state;
+        }
+        publish();
+    }
+
+    /**
+     * Have the current status sent to the subscribers, without waiting for it
+     * to be sent
+     */
+    private void publish() {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        pending.set(true);
+        if (sending.compareAndSet(false, true)) {
+            publisher.execute(this::send);
+        }
+    }
+
+    /**
+     * Send the latest status to the subscribers as long as one is pending, one
+     * thread at a time so that they receive the statuses in order. The status is
+     * read when it is sent, the last one of the job is never missed.
+     */
+    private void send() {
+        do {
+            while (pending.getAndSet(false)) {
+                synchronized (subscribers) {
+                    JobStatus status = status();
+                    subscribers.removeIf(subscriber -> {
+                        try {
+                            return !subscriber.test(status);
+                        } catch (RuntimeException e) {
+                            return true;
+                        }
+                    });
+                }
+            }
+            sending.set(false);
+            // published after the last check but before sending was released
+        } while (pending.get() && sending.compareAndSet(false, true));
+    }
+}
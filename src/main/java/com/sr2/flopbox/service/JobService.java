@@ -0,0 +1,211 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Command;
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.exception.NotAuthorizedException;
+import com.sr2.flopbox.model.JobStatus;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.ServiceUnavailableException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Class Singleton which runs the long transfers (GETD, PUT, RMD, SYNC, COPY) as
+ * jobs: the request is answered with the id of the job right away and the
+ * command runs on a bounded pool of its own, so the bulk transfers never take
+ * the threads of the FtpExecutor. At most Constant.JOB_THREADS jobs run at
+ * once, Constant.JOB_QUEUE more wait for a thread and the next submissions are
+ * refused. A job can be read by the user who submitted it until
+ * Constant.JOB_RETENTION after its end.
+ *
+ * @author Adrien Holvoet
+ */
+public final class JobService {
+    /*
+     * All private because they are only used in this class and static because it
+     * is unique
+     */
+    private static JobService instance;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    // sends the statuses to the subscribers, a stalled one only holds its thread
+    private final ExecutorService publisher;
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private JobService() {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(Constant.JOB_THREADS, Constant.JOB_THREADS, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Constant.JOB_QUEUE), runnable -> {
+                    Thread thread = new Thread(runnable, "job-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.publisher = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "job-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Static method to return the unique JobService instance, create it if it
+     * does not exist
+     *
+     * @return instance a instance of JobService
+     */
+    public static synchronized JobService getInstance() {
+        if (instance == null) {
+            instance = new JobService();
+        }
+        return instance;
+    }
+
+    /**
+     * Run a command as a job
+     *
+     * @param alias         the ftp server
+     * @param authorization HTTP request header authorization value
+     * @param command       the command run by the service
+     * @param path          path the command works on
+     * @param service       the command, not submitted to the FtpExecutor
+     * @return the state of the queued job
+     * @throws NotAuthorizedException      If the header cannot be decoded
+     * @throws ServiceUnavailableException If too many jobs are waiting
+     */
+    public JobStatus submit(String alias, String authorization, Command command, String path, FtpService service)
+            throws NotAuthorizedException {
+        FtpConnectionKey key = new FtpConnectionKey(alias, FtpService.parseCredentials(authorization));
+        purge();
+        Job job = new Job(UUID.randomUUID().toString(), key, command, "/" + path, publisher);
+        service.setJob(job);
+        FutureTask<Void> task = new FutureTask<>(() -> job.run(service), null);
+        job.setFuture(task);
+        jobs.put(job.getId(), job);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            throw new ServiceUnavailableException("Too many jobs are waiting, try again later");
+        }
+        return job.status();
+    }
+
+    /**
+     * State of a job
+     *
+     * @param alias         the ftp server
+     * @param authorization HTTP request header authorization value
+     * @param id            id of the job
+     * @return the state and the progress of the job
+     * @throws NotAuthorizedException If the header cannot be decoded
+     * @throws NotFoundException      If the user has no such job on the server
+     */
+    public JobStatus getStatus(String alias, String authorization, String id) throws NotAuthorizedException {
+        return get(alias, authorization, id).status();
+    }
+
+    /**
+     * Follow the progress of a job
+     *
+     * @param alias         the ftp server
+     * @param authorization HTTP request header authorization value
+     * @param id            id of the job
+     * @param subscriber    called with the status right away, then at most once
+     *                      per Constant.PROGRESS_INTERVAL while the job
+     *                      transfers data and once it is over. It returns false
+     *                      to stop receiving the statuses.
+     * @throws NotAuthorizedException If the header cannot be decoded
+     * @throws NotFoundException      If the user has no such job on the server
+     */
+    public void subscribe(String alias, String authorization, String id, Predicate<JobStatus> subscriber)
+            throws NotAuthorizedException {
+        get(alias, authorization, id).subscribe(subscriber);
+    }
+
+    /**
+     * Jobs of the user on a server
+     *
+     * @param alias         the ftp server
+     * @param authorization HTTP request header authorization value
+     * @return the state of the jobs, the oldest first
+     * @throws NotAuthorizedException If the header cannot be decoded
+     */
+    public List<JobStatus> list(String alias, String authorization) throws NotAuthorizedException {
+        FtpConnectionKey key = new FtpConnectionKey(alias, FtpService.parseCredentials(authorization));
+        purge();
+        List<Job> found = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.getKey().equals(key)) {
+                found.add(job);
+            }
+        }
+        found.sort(Comparator.comparingLong(Job::getSubmitted));
+        List<JobStatus> statuses = new ArrayList<>();
+        for (Job job : found) {
+            statuses.add(job.status());
+        }
+        return statuses;
+    }
+
+    /**
+     * Cancel a job which is not over, forget one which is
+     *
+     * @param alias         the ftp server
+     * @param authorization HTTP request header authorization value
+     * @param id            id of the job
+     * @return the state of the cancelled job, null if it was over and is
+     *         forgotten
+     * @throws NotAuthorizedException If the header cannot be decoded
+     * @throws NotFoundException      If the user has no such job on the server
+     */
+    public JobStatus cancel(String alias, String authorization, String id) throws NotAuthorizedException {
+        Job job = get(alias, authorization, id);
+        if (!job.cancel()) {
+            jobs.remove(id);
+            return null;
+        }
+        executor.purge();
+        return job.status();
+    }
+
+    /**
+     * Cancel every job, called when the application stops
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private Job get(String alias, String authorization, String id) throws NotAuthorizedException {
+        FtpConnectionKey key = new FtpConnectionKey(alias, FtpService.parseCredentials(authorization));
+        Job job = jobs.get(id);
+        if (job == null || !job.getKey().equals(key)) {
+            throw new NotFoundException("No job " + id + " on the server " + alias);
+        }
+        return job;
+    }
+
+    /**
+     * Forget the jobs over for more than Constant.JOB_RETENTION
+     */
+    private void purge() {
+        long limit = System.currentTimeMillis() - Constant.JOB_RETENTION;
+        jobs.values().removeIf(job -> job.isOver() && job.getEnded() < limit);
+    }
+}
@@ -0,0 +1,195 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.model.ListingEntry;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Class Singleton which keeps the recent directory listings in memory, per
+ * (alias, credentials, path). The least recently used listing is dropped once
+ * Constant.LISTING_CACHE_SIZE listings are kept and a listing expires after
+ * Constant.LISTING_CACHE_TTL. The writes done through FlopBox (MKD, RMD, REN,
+ * PUT) invalidate the listings of the path, of its subdirectories and of its
+ * parent for every user of the server.
+ *
+ * @author Adrien Holvoet
+ */
+public final class ListingCache {
+    /*
+     * All private because they are only used in this class and static because it
+     * is unique
+     */
+    private static ListingCache instance;
+    // guarded by the cache monitor, in access order for the LRU eviction
+    private final LinkedHashMap<Key, Listing> listings = new LinkedHashMap<Key, Listing>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Listing> eldest) {
+            return size() > Constant.LISTING_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Private constructor to prevent instantiation
+     */
+    private ListingCache() {
+    }
+
+    /**
+     * Static method to return the unique ListingCache instance, create it if it
+     * does not exist. Synchronized because it is reached concurrently by the ftp
+     * workers
+     *
+     * @return instance a instance of ListingCache
+     */
+    public static synchronized ListingCache getInstance() {
+        if (instance == null) {
+            instance = new ListingCache();
+        }
+        return instance;
+    }
+
+    /**
+     * A cached listing and the time it was read from the ftp server
+     */
+    public static final class Listing {
+        private final ListingEntry[] entries;
+        private final long created;
+
+        Listing(ListingEntry[] entries, long created) {
+            this.entries = entries;
+            this.created = created;
+        }
+
+        public ListingEntry[] getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return the age of the listing in milliseconds
+         */
+        public long getAge() {
+            return System.currentTimeMillis() - created;
+        }
+    }
+
+    /**
+     * Cached listing of a directory
+     *
+     * @param key  server and credentials of the user
+     * @param path path of the directory
+     * @return the listing, null if it is not cached or expired
+     */
+    public synchronized Listing get(FtpConnectionKey key, String path) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Key entry = new Key(key, normalize(path));
+        Listing listing = listings.get(entry);
+        if (listing != null && listing.getAge() >= Constant.LISTING_CACHE_TTL) {
+            listings.remove(entry);
+            return null;
+        }
+        return listing;
+    }
+
+    /**
+     * Keep the listing of a directory
+     *
+     * @param key     server and credentials of the user
+     * @param path    path of the directory
+     * @param entries the listing
+     */
+    public synchronized void put(FtpConnectionKey key, String path, ListingEntry[] entries) {
+        if (isEnabled()) {
+            listings.put(new Key(key, normalize(path)), new Listing(entries, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Forget the listings of a path, of its subdirectories and of its parent for
+     * every user of the server, called when the path is written
+     *
+     * @param alias the ftp server
+     * @param path  path of the file or directory written
+     */
+    public synchronized void invalidate(String alias, String path) {
+        String normalized = normalize(path);
+        String parent = parent(normalized);
+        String prefix = normalized.equals("/") ? "/" : normalized + "/";
+        Iterator<Key> it = listings.keySet().iterator();
+        while (it.hasNext()) {
+            Key entry = it.next();
+            if (entry.key.getAlias().equals(alias) && (entry.path.equals(normalized)
+                    || entry.path.startsWith(prefix) || entry.path.equals(parent))) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget every listing of a server, called when the server is updated or
+     * deleted
+     *
+     * @param alias the ftp server
+     */
+    public synchronized void invalidate(String alias) {
+        listings.keySet().removeIf(entry -> entry.key.getAlias().equals(alias));
+    }
+
+    private static boolean isEnabled() {
+        return Constant.LISTING_CACHE_SIZE > 0 && Constant.LISTING_CACHE_TTL > 0;
+    }
+
+    /**
+     * Single slashes and no trailing slash, so that /a//b/ and /a/b share their
+     * listing
+     */
+    private static String normalize(String path) {
+        String normalized = ("/" + path).replaceAll("/+", "/");
+        if (normalized.length() > 1 && normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    private static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+
+    /**
+     * A directory seen by a user of a server
+     */
+    private static final class Key {
+        private final FtpConnectionKey key;
+        private final String path;
+
+        Key(FtpConnectionKey key, String path) {
+            this.key = key;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return key.equals(other.key) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, path);
+        }
+    }
+}
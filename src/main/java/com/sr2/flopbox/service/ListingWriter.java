@@ -0,0 +1,204 @@
+package com.sr2.flopbox.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sr2.flopbox.common.Validators;
+import com.sr2.flopbox.model.ListingEntry;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * Body of a directory listing. The entries are written field by field with a
+ * JsonGenerator, no reflection is involved, and only the fields asked for with
+ * the fields= query param are written. A field whose value is unknown is left
+ * out.
+ *
+ * @author Adrien Holvoet
+ */
+public class ListingWriter implements StreamingOutput {
+    /**
+     * The fields of a ListingEntry, in the order they are written
+     */
+    public enum Field {
+        NAME, TYPE, SIZE, MODIFIED, PERMISSIONS, USER, GROUP, LINK;
+
+        private final String json = name().toLowerCase(Locale.ROOT);
+    }
+
+    // Fields written when the fields= query param is absent
+    public static final EnumSet<Field> DEFAULT_FIELDS = EnumSet.of(Field.NAME, Field.TYPE, Field.SIZE,
+            Field.MODIFIED);
+    // private because it is only used in this class, a JsonFactory is thread safe
+    private static final JsonFactory factory = new JsonFactory();
+    private final ListingEntry[] entries;
+    private final EnumSet<Field> fields;
+
+    /**
+     * Constructor
+     *
+     * @param entries the listing
+     * @param fields  the fields to write
+     */
+    public ListingWriter(ListingEntry[] entries, EnumSet<Field> fields) {
+        this.entries = entries;
+        this.fields = fields;
+    }
+
+    /**
+     * Parse the fields= query param
+     *
+     * @param fields comma separated field names, "all" for every field, null or
+     *               empty for DEFAULT_FIELDS
+     * @return the fields to write
+     * @throws BadRequestException if a field does not exist
+     */
+    public static EnumSet<Field> parseFields(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return DEFAULT_FIELDS;
+        }
+        if (fields.trim().equalsIgnoreCase("all")) {
+            return EnumSet.allOf(Field.class);
+        }
+        EnumSet<Field> parsed = EnumSet.noneOf(Field.class);
+        for (String field : fields.split(",")) {
+            try {
+                parsed.add(Field.valueOf(field.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("Unknown listing field " + field.trim());
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Create a generator writing UTF-8 JSON to the response
+     *
+     * @param output the response
+     * @return the generator, closing it does not close the response
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    static JsonGenerator createGenerator(OutputStream output) throws IOException {
+        JsonGenerator generator = factory.createGenerator(output);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return generator;
+    }
+
+    /**
+     * Write one entry as a JSON object
+     *
+     * @param generator the generator
+     * @param entry     the entry
+     * @param fields    the fields to write
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    static void writeEntry(JsonGenerator generator, ListingEntry entry, EnumSet<Field> fields) throws IOException {
+        generator.writeStartObject();
+        writeFields(generator, entry, fields);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Write the fields of one entry inside an object already started, so that the
+     * caller can add its own fields (the entries of a directory of a tree)
+     *
+     * @param generator the generator
+     * @param entry     the entry
+     * @param fields    the fields to write
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    static void writeFields(JsonGenerator generator, ListingEntry entry, EnumSet<Field> fields) throws IOException {
+        for (Field field : fields) {
+            switch (field) {
+                case SIZE:
+                    writeNumber(generator, field, entry.getSize());
+                    break;
+                case MODIFIED:
+                    writeNumber(generator, field, entry.getModified());
+                    break;
+                default:
+                    writeString(generator, field, text(entry, field));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Weak entity tag of the listing, the hash of the values written to the
+     * response: it changes with the entries, the page and the fields asked for.
+     * The values are hashed as they are, the JSON is only built for the body.
+     *
+     * @return the entity tag
+     */
+    public String getEtag() {
+        Validators.Fingerprint fingerprint = new Validators.Fingerprint();
+        for (Field field : fields) {
+            fingerprint.update(field.ordinal());
+        }
+        for (ListingEntry entry : entries) {
+            for (Field field : fields) {
+                switch (field) {
+                    case SIZE:
+                        fingerprint.update(entry.getSize());
+                        break;
+                    case MODIFIED:
+                        fingerprint.update(entry.getModified());
+                        break;
+                    default:
+                        fingerprint.update(text(entry, field));
+                        break;
+                }
+            }
+        }
+        return fingerprint.toWeakTag();
+    }
+
+    /**
+     * @return the value of a text field of an entry, null if unknown
+     */
+    private static String text(ListingEntry entry, Field field) {
+        switch (field) {
+            case NAME:
+                return entry.getName();
+            case TYPE:
+                return entry.getType();
+            case PERMISSIONS:
+                return entry.getPermissions();
+            case USER:
+                return entry.getUser();
+            case GROUP:
+                return entry.getGroup();
+            case LINK:
+                return entry.getLink();
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try (JsonGenerator generator = createGenerator(output)) {
+            generator.writeStartArray();
+            for (ListingEntry entry : entries) {
+                writeEntry(generator, entry, fields);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static void writeString(JsonGenerator generator, Field field, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(field.json, value);
+        }
+    }
+
+    private static void writeNumber(JsonGenerator generator, Field field, long value) throws IOException {
+        if (value >= 0) {
+            generator.writeNumberField(field.json, value);
+        }
+    }
+}
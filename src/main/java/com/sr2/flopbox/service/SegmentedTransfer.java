@@ -0,0 +1,418 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.model.Credentials;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Segmented download of a large file: the file is split into segments which
+ * are retrieved at the same time over several authenticated connections, each
+ * one starting at the offset of its segment (REST). The segments are either
+ * written in order to a stream (at most parallelism segments are kept in
+ * memory) or written in place in a preallocated local file.
+ * <p>
+ * The thread calling writeTo always takes part in the transfer, the extra
+ * workers only run if the pool and the FtpExecutor have room for them, so the
+ * transfer always makes progress.
+ *
+ * @author Adrien Holvoet
+ */
+public class SegmentedTransfer {
+    // All private because they are only used in this class
+    private static final Logger logger = LogManager.getLogger(SegmentedTransfer.class);
+    private final FtpConnectionKey key;
+    private final boolean passive;
+    private final String path;
+    private final long size;
+    private final long segmentSize;
+    private final int parallelism;
+    private final int count;
+
+    // state shared by the workers, guarded by this
+    private final Map<Integer, byte[]> ready = new HashMap<>();
+    private int claimed;
+    private int written;
+    private boolean ordered;
+    private boolean stopped;
+    private IOException failure;
+
+    /**
+     * Constructor
+     *
+     * @param connection connection of the caller, gives the server, the
+     *                   credentials and the data connection mode to use
+     * @param path       path of the file
+     * @param size       size of the file
+     */
+    SegmentedTransfer(FtpConnection connection, String path, long size) {
+        this.key = connection.getKey();
+        this.passive = connection.getClient()
+                .getDataConnectionMode() == FTPClient.PASSIVE_LOCAL_DATA_CONNECTION_MODE;
+        this.path = path;
+        this.size = size;
+        this.segmentSize = segmentSize(key.getAlias());
+        this.parallelism = parallelism(key.getAlias());
+        this.count = (int) ((size + segmentSize - 1) / segmentSize);
+    }
+
+    /**
+     * Whether a file is worth a segmented download on the given server
+     *
+     * @param alias the ftp server
+     * @param size  size of the file, -1 if unknown
+     * @return true if it has more than one segment and several connections can
+     *         be used
+     */
+    static boolean isSegmentable(String alias, long size) {
+        return parallelism(alias) > 1 && size > segmentSize(alias);
+    }
+
+    private static long segmentSize(String alias) {
+        long size = Long.getLong("flopbox.segment.size." + alias, Constant.SEGMENT_SIZE);
+        // a segment sent to a stream is kept in an array
+        return Math.min(Math.max(Constant.STREAM_BUFFER_SIZE, size), Integer.MAX_VALUE - 8);
+    }
+
+    private static int parallelism(String alias) {
+        return Math.min(Constant.POOL_MAX_PER_SERVER,
+                Integer.getInteger("flopbox.segment.parallelism." + alias, Constant.SEGMENT_PARALLELISM));
+    }
+
+    /**
+     * Write the segments in order into a stream
+     *
+     * @param output stream to write to
+     * @param own    connection of the caller, it is not released but it is
+     *               invalidated if a transfer left it out of sync
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    public void writeTo(OutputStream output, FtpConnection own) throws IOException {
+        synchronized (this) {
+            ordered = true;
+        }
+        startWorkers(null);
+        Worker inline = new Worker(own, true);
+        try {
+            for (int index = 0; index < count; index++) {
+                byte[] segment = take(index, inline);
+                output.write(segment);
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        } finally {
+            stop();
+            inline.release();
+        }
+    }
+
+    /**
+     * Write the segments in place into a local file, the file is created or
+     * truncated and preallocated to the size of the remote file
+     *
+     * @param file local file
+     * @param own  connection of the caller, it is not released but it is
+     *             invalidated if a transfer left it out of sync
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    public void writeTo(File file, FtpConnection own) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(size);
+            FileChannel channel = out.getChannel();
+            List<CompletableFuture<Void>> workers = startWorkers(channel);
+            Worker inline = new Worker(own, true);
+            try {
+                inline.run(channel);
+            } finally {
+                inline.release();
+                for (CompletableFuture<Void> worker : workers) {
+                    // the channel must not be closed while a worker still writes
+                    worker.handle((result, throwable) -> null).join();
+                }
+            }
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the extra workers on the FtpExecutor, the ones which cannot be
+     * started are simply not used
+     *
+     * @param channel local file to write to, null to write to a stream
+     */
+    private List<CompletableFuture<Void>> startWorkers(FileChannel channel) {
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = 1; i < Math.min(parallelism, count); i++) {
+            workers.add(FtpExecutor.getInstance().submit(() -> {
+                Worker worker = new Worker(null, false);
+                try {
+                    worker.run(channel);
+                } catch (IOException e) {
+                    fail(e);
+                } finally {
+                    worker.release();
+                }
+                return null;
+            }));
+        }
+        return workers;
+    }
+
+    /**
+     * Next segment to retrieve. When the segments are written to a stream, the
+     * claims stay within parallelism segments of the one being written.
+     *
+     * @return index of the segment, -1 if there is nothing left to do
+     */
+    private synchronized int claim() throws IOException {
+        while (ordered && !stopped && failure == null && claimed < count && claimed >= written + parallelism) {
+            await();
+        }
+        if (stopped || failure != null || claimed >= count) {
+            return -1;
+        }
+        return claimed++;
+    }
+
+    /**
+     * Wait for a segment to be retrieved, the caller retrieves it itself if no
+     * worker has claimed it yet
+     */
+    private byte[] take(int index, Worker inline) throws IOException {
+        synchronized (this) {
+            while (!ready.containsKey(index) && claimed != index) {
+                if (failure != null) {
+                    throw failure;
+                }
+                await();
+            }
+            if (ready.containsKey(index)) {
+                written = index + 1;
+                notifyAll();
+                return ready.remove(index);
+            }
+            claimed++;
+        }
+        byte[] segment = inline.retrieve(index, null);
+        synchronized (this) {
+            written = index + 1;
+            notifyAll();
+        }
+        return segment;
+    }
+
+    private synchronized void deliver(int index, byte[] segment) {
+        if (!stopped) {
+            ready.put(index, segment);
+            notifyAll();
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    private synchronized void stop() {
+        stopped = true;
+        ready.clear();
+        notifyAll();
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Segmented download of " + path + " interrupted");
+        }
+    }
+
+    /**
+     * Retrieves segments over one connection
+     */
+    private class Worker {
+        private FtpConnection connection;
+        private final boolean inline;
+        private boolean borrowed;
+
+        /**
+         * @param own    connection of the caller, null to borrow one
+         * @param inline true for the worker of the calling thread which waits for a
+         *               connection if needed, an extra worker only uses an
+         *               available one
+         */
+        Worker(FtpConnection own, boolean inline) {
+            this.connection = own;
+            this.inline = inline;
+        }
+
+        /**
+         * Retrieve segments until there is none left, the segments are written in the
+         * channel or handed over to the stream writer
+         */
+        void run(FileChannel channel) throws IOException {
+            while (true) {
+                // a segment is only claimed once there is a connection to retrieve it
+                if (connection == null && !borrowQuietly()) {
+                    return;
+                }
+                int index = claim();
+                if (index < 0) {
+                    return;
+                }
+                try {
+                    byte[] segment = retrieve(index, channel);
+                    if (channel == null) {
+                        deliver(index, segment);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Retrieve a segment from its offset. The transfer is stopped at the end of
+         * the segment, the connection is replaced if it cannot be reused after that.
+         *
+         * @param channel local file to write the segment to, null to return it
+         * @return the segment, null if it has been written in the channel
+         */
+        byte[] retrieve(int index, FileChannel channel) throws IOException {
+            long offset = index * segmentSize;
+            int length = (int) Math.min(segmentSize, size - offset);
+            if (connection == null) {
+                borrow();
+            }
+            FTPClient client = connection.getClient();
+            client.setFileType(FTP.BINARY_FILE_TYPE);
+            client.setRestartOffset(offset);
+            InputStream data = client.retrieveFileStream(path);
+            client.setRestartOffset(0);
+            if (data == null) {
+                throw new IOException("FTP : " + client.getReplyString());
+            }
+            byte[] segment = new byte[channel == null ? length : Math.min(length, Constant.STREAM_BUFFER_SIZE)];
+            try {
+                int done = 0;
+                while (done < length) {
+                    int read = data.read(segment, channel == null ? done : 0,
+                            channel == null ? length - done : Math.min(segment.length, length - done));
+                    if (read == -1) {
+                        throw new EOFException(path + " ended before the end of the segment " + index);
+                    }
+                    if (channel != null) {
+                        ByteBuffer buffer = ByteBuffer.wrap(segment, 0, read);
+                        long position = offset + done;
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                    }
+                    done += read;
+                }
+            } catch (IOException e) {
+                connection.invalidate();
+                throw e;
+            } finally {
+                data.close();
+            }
+            if (!FtpDownload.completeTransfer(client, offset + length == size)) {
+                replace();
+            }
+            return channel == null ? segment : null;
+        }
+
+        /**
+         * Borrow a connection for an extra worker, which is optional
+         *
+         * @return false if no connection could be borrowed
+         */
+        private boolean borrowQuietly() throws IOException {
+            if (inline) {
+                return borrow();
+            }
+            try {
+                return borrow();
+            } catch (IOException e) {
+                // the other workers go on without this one
+                logger.warn("Unable to start a segment worker for " + key + " : " + e.toString());
+                return false;
+            }
+        }
+
+        /**
+         * Borrow a connection, the caller's worker waits for one as it must make
+         * progress while an extra worker only takes an available one
+         *
+         * @return false if no connection is available for an extra worker
+         */
+        private boolean borrow() throws IOException {
+            Credentials credentials = new Credentials(key.getUsername(), key.getPassword());
+            try {
+                connection = inline ? FtpConnectionPool.getInstance().borrow(key.getAlias(), credentials)
+                        : FtpConnectionPool.getInstance().tryBorrow(key.getAlias(), credentials);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Unable to open a ftp connection to download " + path, e);
+            }
+            if (connection == null) {
+                logger.debug("No connection left for a segment worker of " + key);
+                return false;
+            }
+            borrowed = true;
+            if (passive) {
+                connection.getClient().enterLocalPassiveMode();
+            } else {
+                connection.getClient().enterLocalActiveMode();
+            }
+            return true;
+        }
+
+        /**
+         * The connection is out of sync, it is closed and the next segment is
+         * retrieved on a new one
+         */
+        private void replace() {
+            connection.invalidate();
+            release();
+            connection = null;
+        }
+
+        /**
+         * Give back the borrowed connection, the one of the caller is left to it
+         */
+        void release() {
+            if (borrowed) {
+                FtpConnectionPool.getInstance().release(connection);
+                borrowed = false;
+            }
+        }
+    }
+}
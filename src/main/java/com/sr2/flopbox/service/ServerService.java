@@ -176,6 +176,11 @@ public final class ServerService {
 			if (fileContent.get(i).equals(convertServerToTuple(oldServer))) {
 				fileContent.set(i, convertServerToTuple(server));
 				Files.write(path, fileContent, StandardCharsets.UTF_8);
+				// the pooled connections still target the old address
+				FtpConnectionPool.getInstance().evict(alias);
+				ListingCache.getInstance().invalidate(alias);
+				ContentCache.getInstance().invalidate(alias);
+				IndexService.getInstance().drop(alias);
 				return server;
 			}
 		}
@@ -206,6 +211,10 @@ public final class ServerService {
 			if (fileContent.get(i).equals(convertServerToTuple(oldServer))) {
 				fileContent.remove(i);
 				Files.write(path, fileContent, StandardCharsets.UTF_8);
+				FtpConnectionPool.getInstance().evict(alias);
+				ListingCache.getInstance().invalidate(alias);
+				ContentCache.getInstance().invalidate(alias);
+				IndexService.getInstance().drop(alias);
 				return true;
 			}
 		}
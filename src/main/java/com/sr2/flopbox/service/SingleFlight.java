@@ -0,0 +1,157 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.exception.NotAuthorizedException;
+import com.sr2.flopbox.exception.UnexpectedFtpStatusCodeException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coalesces the identical reads run at the same time: the first request for a
+ * (alias, credentials, path) runs the ftp operation, the requests which arrive
+ * while it is running wait for it and get the same result, or the same
+ * exception, without borrowing any ftp connection. A read arriving once the
+ * operation is over runs it again, as does a waiting read when the operation
+ * was interrupted (the request running it was cancelled or timed out).
+ *
+ * @param <V> result of the operation
+ * @author Adrien Holvoet
+ */
+public final class SingleFlight<V> {
+    // All private because they are only used in this class
+    private final ConcurrentHashMap<Key, Flight<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * A ftp operation
+     *
+     * @param <V> its result
+     */
+    @FunctionalInterface
+    public interface Operation<V> {
+        V run() throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException;
+    }
+
+    /**
+     * Run the operation, or wait for the identical one already running
+     *
+     * @param key       server and credentials of the user
+     * @param path      path read
+     * @param operation the operation, only run if no identical one is running
+     * @return the result of the operation
+     * @throws IOException                      thrown if any I/O error occurred,
+     *                                          or if the wait is interrupted
+     *                                          (InterruptedIOException)
+     * @throws UnexpectedFtpStatusCodeException
+     * @throws NotAuthorizedException
+     */
+    public V execute(FtpConnectionKey key, String path, Operation<V> operation)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        Key flight = new Key(key, path);
+        Flight<V> mine = new Flight<>();
+        Flight<V> running;
+        while ((running = flights.putIfAbsent(flight, mine)) != null) {
+            try {
+                return await(running);
+            } catch (InterruptedIOException | CancellationException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                // the operation was interrupted, not this read: run it again
+            }
+        }
+        try {
+            V result = operation.run();
+            // removed first so that a waiter running it again does not find it
+            flights.remove(flight, mine);
+            mine.future.complete(result);
+            return result;
+        } catch (Exception | Error e) {
+            flights.remove(flight, mine);
+            mine.future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @param key  server and credentials of the user
+     * @param path path read
+     * @return number of reads waiting for the operation running on the path, 0
+     *         if none is running
+     */
+    public int getWaiters(FtpConnectionKey key, String path) {
+        Flight<V> running = flights.get(new Key(key, path));
+        return running != null ? running.waiters.get() : 0;
+    }
+
+    private static <V> V await(Flight<V> running)
+            throws IOException, UnexpectedFtpStatusCodeException, NotAuthorizedException {
+        running.waiters.incrementAndGet();
+        try {
+            return running.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the same read");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof UnexpectedFtpStatusCodeException) {
+                throw (UnexpectedFtpStatusCodeException) cause;
+            }
+            if (cause instanceof NotAuthorizedException) {
+                throw (NotAuthorizedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            running.waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * An operation running and the reads waiting for it
+     */
+    private static final class Flight<V> {
+        private final CompletableFuture<V> future = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger();
+    }
+
+    /**
+     * A path seen by a user of a server
+     */
+    private static final class Key {
+        private final FtpConnectionKey key;
+        private final String path;
+
+        Key(FtpConnectionKey key, String path) {
+            this.key = key;
+            this.path = path.replaceAll("/+", "/");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return key.equals(other.key) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, path);
+        }
+    }
+}
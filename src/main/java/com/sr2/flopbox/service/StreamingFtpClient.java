@@ -0,0 +1,169 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.model.ListingEntry;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPCmd;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+import org.apache.commons.net.ftp.FTPListParseEngine;
+import org.apache.commons.net.ftp.parser.DefaultFTPFileEntryParserFactory;
+import org.apache.commons.net.ftp.parser.MLSxEntryParser;
+import org.apache.commons.net.io.SocketInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Locale;
+
+/**
+ * FTPClient of the pooled connections. Unlike listFiles, which reads the whole
+ * listing before parsing it, openListStream gives the data connection of a
+ * listing so that the entries can be parsed one by one as they arrive. The
+ * listings (listFiles, initiateListParsing and openListStream) are read with
+ * MLSD when the capabilities negotiated at connect allow it and with LIST
+ * otherwise.
+ *
+ * @author Adrien Holvoet
+ */
+public class StreamingFtpClient extends FTPClient {
+    // All private because they are only used in this class
+    private static final FTPFileEntryParser machineParser = new MachineListParser();
+    // the system type of a connection never changes
+    private FTPFileEntryParser entryParser;
+    private FtpCapabilities capabilities;
+    private boolean machineListing;
+
+    /**
+     * Use the capabilities of the server instead of sending FEAT on this
+     * connection, the MLSD facts are selected with OPTS MLST
+     *
+     * @param capabilities capabilities of the server, detected once per alias
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    public void negotiate(FtpCapabilities capabilities) throws IOException {
+        this.capabilities = capabilities;
+        this.machineListing = capabilities.isMachineListing();
+        if (machineListing && !capabilities.getFacts().isEmpty()) {
+            // the server keeps its default facts if it refuses them
+            sendCommand("OPTS", "MLST " + String.join(";", capabilities.getFacts()) + ";");
+        }
+    }
+
+    /**
+     * Answered from the negotiated capabilities, FEAT is only sent if there are
+     * none
+     */
+    @Override
+    public boolean hasFeature(String feature) throws IOException {
+        if (capabilities != null) {
+            return capabilities.hasFeature(feature);
+        }
+        return super.hasFeature(feature);
+    }
+
+    /**
+     * Open the data connection of a MLSD or a LIST, the caller must close the
+     * stream and call completePendingCommand once it is read. The entry parser is
+     * ready before the transfer starts
+     *
+     * @param path the directory to list
+     * @return the raw listing, null if the server refused the command
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    public InputStream openListStream(String path) throws IOException {
+        if (machineListing) {
+            Socket socket = _openDataConnection_(FTPCmd.MLSD, path);
+            if (socket != null) {
+                return new SocketInputStream(socket, socket.getInputStream());
+            }
+            if (!FtpStat.isNotImplemented(getReplyCode())) {
+                return null;
+            }
+            // MLST announced but MLSD refused
+            machineListing = false;
+            capabilities.disableMachineListing();
+        }
+        // no command can be sent once the transfer is started
+        getEntryParser();
+        Socket socket = _openDataConnection_(FTPCmd.LIST, getListArguments(path));
+        if (socket == null) {
+            return null;
+        }
+        return new SocketInputStream(socket, socket.getInputStream());
+    }
+
+    /**
+     * Read the whole listing of a directory with MLSD or LIST
+     */
+    @Override
+    public FTPListParseEngine initiateListParsing(String pathname) throws IOException {
+        InputStream data = openListStream(pathname);
+        FTPListParseEngine engine = new FTPListParseEngine(getEntryParser());
+        if (data == null) {
+            // empty listing, the reply code tells why
+            return engine;
+        }
+        try {
+            engine.readServerList(data, getControlEncoding());
+        } finally {
+            data.close();
+        }
+        completePendingCommand();
+        return engine;
+    }
+
+    @Override
+    public FTPFile[] listFiles(String pathname) throws IOException {
+        return initiateListParsing(pathname).getFiles();
+    }
+
+    /**
+     * Parser of the listing lines of this server, the MLSD one or the LIST one
+     * created from its system type (SYST) the first time it is needed
+     *
+     * @return the parser
+     * @throws IOException thrown if any I/O error occurred.
+     */
+    public FTPFileEntryParser getEntryParser() throws IOException {
+        if (machineListing) {
+            return machineParser;
+        }
+        if (entryParser == null) {
+            entryParser = new DefaultFTPFileEntryParserFactory().createFileEntryParser(getSystemType());
+        }
+        return entryParser;
+    }
+
+    /**
+     * Keep what the client needs of a parsed entry
+     *
+     * @param file the parsed line, null if the line is not an entry
+     * @return the entry, null if the line is not an entry
+     */
+    public ListingEntry toEntry(FTPFile file) {
+        ListingEntry entry = ListingEntry.of(file);
+        if (entry != null && machineListing && !capabilities.getFacts().contains("unix.mode")) {
+            // a MLSD entry only has permissions when the server gives unix.mode
+            entry.setPermissions(null);
+        }
+        return entry;
+    }
+
+    /**
+     * MLSD parser which drops the entries of the listed directory (cdir) and of
+     * its parent (pdir), as LIST does not give them
+     */
+    private static final class MachineListParser extends MLSxEntryParser {
+        @Override
+        public FTPFile parseFTPEntry(String entry) {
+            int space = entry.indexOf(' ');
+            if (space > 0) {
+                String facts = ";" + entry.substring(0, space).toLowerCase(Locale.ROOT);
+                if (facts.contains(";type=cdir;") || facts.contains(";type=pdir;")) {
+                    return null;
+                }
+            }
+            return super.parseFTPEntry(entry);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.model.FileMetadata;
+import jakarta.ws.rs.BadRequestException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Changes needed to synchronize a local directory and a remote one, computed
+ * from the manifests (path, size, last modification) of both sides and the
+ * manifests of both sides as they were at the end of the previous
+ * synchronization. A side has changed a path if its entry differs from its
+ * previous one, so a file changed on one side is copied to the other one and a
+ * file deleted on one side is deleted on the other one (or copied back if the
+ * deletions are not wanted). When both sides changed the same file the most
+ * recent one wins and the change is reported as a conflict. Without previous
+ * manifests two files are the same if they have the same size and the same
+ * modification second.
+ *
+ * @author Adrien Holvoet
+ */
+public final class SyncPlan {
+    // All private because they are only used in this class
+    private final List<Change> changes = new ArrayList<>();
+    private long unchanged;
+    private long conflicts;
+
+    /**
+     * Way of a synchronization
+     */
+    public enum Direction {
+        // the local directory becomes a copy of the remote one
+        DOWNLOAD,
+        // the remote directory becomes a copy of the local one
+        UPLOAD,
+        // the changes of each side are applied to the other one
+        BOTH;
+
+        /**
+         * @param value download, upload or both, null for both
+         * @return the direction
+         * @throws BadRequestException if the direction is unknown
+         */
+        public static Direction parse(String value) {
+            if (value == null) {
+                return BOTH;
+            }
+            for (Direction direction : values()) {
+                if (direction.name().equalsIgnoreCase(value)) {
+                    return direction;
+                }
+            }
+            throw new BadRequestException("The direction must be download, upload or both");
+        }
+    }
+
+    /**
+     * What is done to a path
+     */
+    public enum Action {
+        // copied (or created for a directory) from the remote side to the local one
+        DOWNLOAD,
+        // copied (or created for a directory) from the local side to the remote one
+        UPLOAD,
+        DELETE_LOCAL,
+        DELETE_REMOTE
+    }
+
+    /**
+     * A path to synchronize
+     */
+    public static final class Change {
+        private final String path;
+        private final Action action;
+        private final FileMetadata source;
+        private final boolean conflict;
+
+        Change(String path, Action action, FileMetadata source, boolean conflict) {
+            this.path = path;
+            this.action = action;
+            this.source = source;
+            this.conflict = conflict;
+        }
+
+        /**
+         * @return path relative to the synchronized directories, starting with /
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * @return the entry copied, or the entry deleted
+         */
+        public FileMetadata getSource() {
+            return source;
+        }
+
+        public boolean isDirectory() {
+            return source.isDirectory();
+        }
+
+        /**
+         * @return true if both sides changed the path
+         */
+        public boolean isConflict() {
+            return conflict;
+        }
+    }
+
+    private SyncPlan() {
+    }
+
+    /**
+     * Compute the changes
+     *
+     * @param direction  way of the synchronization
+     * @param delete     true to delete the paths deleted on the source side,
+     *                   false to never delete anything
+     * @param remote     entries of the remote side by relative path
+     * @param local      entries of the local side by relative path
+     * @param baseRemote entries of the remote side after the previous
+     *                   synchronization, empty if there was none
+     * @param baseLocal  entries of the local side after the previous
+     *                   synchronization, empty if there was none
+     * @return the plan, its changes sorted by path
+     */
+    public static SyncPlan compute(Direction direction, boolean delete, Map<String, FileMetadata> remote,
+                                   Map<String, FileMetadata> local, Map<String, FileMetadata> baseRemote,
+                                   Map<String, FileMetadata> baseLocal) {
+        SyncPlan plan = new SyncPlan();
+        TreeSet<String> paths = new TreeSet<>(remote.keySet());
+        paths.addAll(local.keySet());
+        paths.addAll(baseRemote.keySet());
+        paths.addAll(baseLocal.keySet());
+        for (String path : paths) {
+            plan.decide(direction, delete, path, remote.get(path), local.get(path),
+                    baseRemote.containsKey(path) || baseLocal.containsKey(path),
+                    !same(remote.get(path), baseRemote.get(path)), !same(local.get(path), baseLocal.get(path)));
+        }
+        plan.keepParents();
+        return plan;
+    }
+
+    /**
+     * @return the changes sorted by path
+     */
+    public List<Change> getChanges() {
+        return Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * @return number of paths already the same on both sides
+     */
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return number of paths changed on both sides
+     */
+    public long getConflicts() {
+        return conflicts;
+    }
+
+    private void decide(Direction direction, boolean delete, String path, FileMetadata remote, FileMetadata local,
+                        boolean synced, boolean remoteChanged, boolean localChanged) {
+        if (!synced) {
+            // never synchronized, whatever exists on a side is new
+            remoteChanged = remote != null;
+            localChanged = local != null;
+        }
+        boolean changed = remoteChanged || localChanged;
+        if (remote != null && local != null && (!changed || inSync(remote, local))) {
+            // the same since the previous synchronization (an upload does not keep the
+            // modification date) or the same change on both sides
+            unchanged++;
+            return;
+        }
+        switch (direction) {
+            case DOWNLOAD:
+                mirror(path, remote, local, Action.DOWNLOAD, Action.DELETE_LOCAL, delete);
+                break;
+            case UPLOAD:
+                mirror(path, local, remote, Action.UPLOAD, Action.DELETE_REMOTE, delete);
+                break;
+            default:
+                if (!changed) {
+                    // only on one side since the previous synchronization, which did not
+                    // delete it
+                    break;
+                }
+                if (remoteChanged && !localChanged) {
+                    propagate(path, remote, local, Action.DOWNLOAD, Action.DELETE_LOCAL, Action.UPLOAD, delete);
+                } else if (localChanged && !remoteChanged) {
+                    propagate(path, local, remote, Action.UPLOAD, Action.DELETE_REMOTE, Action.DOWNLOAD, delete);
+                } else if (remote == null && local != null) {
+                    // deleted on one side, changed on the other one: the change wins
+                    conflict(path, Action.UPLOAD, local);
+                } else if (local == null && remote != null) {
+                    conflict(path, Action.DOWNLOAD, remote);
+                } else if (remote != null) {
+                    boolean remoteWins = remote.getLastModified() >= local.getLastModified();
+                    conflict(path, remoteWins ? Action.DOWNLOAD : Action.UPLOAD, remoteWins ? remote : local);
+                }
+                break;
+        }
+    }
+
+    /**
+     * The target becomes a copy of the source
+     */
+    private void mirror(String path, FileMetadata source, FileMetadata target, Action copy, Action remove,
+                        boolean delete) {
+        if (source != null) {
+            changes.add(new Change(path, copy, source, false));
+        } else if (delete && target != null) {
+            changes.add(new Change(path, remove, target, false));
+        }
+    }
+
+    /**
+     * The change of a side is applied to the other one, a deletion which is not
+     * wanted is undone by copying the path back
+     */
+    private void propagate(String path, FileMetadata changed, FileMetadata other, Action copy, Action remove,
+                           Action copyBack, boolean delete) {
+        if (changed != null) {
+            changes.add(new Change(path, copy, changed, false));
+        } else if (other != null) {
+            changes.add(delete ? new Change(path, remove, other, false) : new Change(path, copyBack, other, false));
+        }
+    }
+
+    private void conflict(String path, Action action, FileMetadata winner) {
+        conflicts++;
+        changes.add(new Change(path, action, winner, true));
+    }
+
+    /**
+     * A directory cannot be deleted on a side where one of its entries is copied:
+     * it is created on the other side instead
+     */
+    private void keepParents() {
+        Map<String, Integer> deletedDirectories = new HashMap<>();
+        for (int i = 0; i < changes.size(); i++) {
+            Change change = changes.get(i);
+            if (change.isDirectory()
+                    && (change.action == Action.DELETE_LOCAL || change.action == Action.DELETE_REMOTE)) {
+                deletedDirectories.put(change.path, i);
+            }
+        }
+        if (deletedDirectories.isEmpty()) {
+            return;
+        }
+        for (Change change : new ArrayList<>(changes)) {
+            if (change.action != Action.DOWNLOAD && change.action != Action.UPLOAD) {
+                continue;
+            }
+            // the source side of the copy keeps the directory, the target side gets it
+            Action removed = change.action == Action.DOWNLOAD ? Action.DELETE_REMOTE : Action.DELETE_LOCAL;
+            for (String parent = FileIndex.parent(change.path); parent.length() > 1;
+                 parent = FileIndex.parent(parent)) {
+                Integer index = deletedDirectories.get(parent);
+                if (index != null && changes.get(index).action == removed) {
+                    Change directory = changes.get(index);
+                    changes.set(index, new Change(parent, change.action, directory.source, directory.conflict));
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a side has not changed an entry since the previous synchronization
+     */
+    private static boolean same(FileMetadata current, FileMetadata previous) {
+        if (current == null || previous == null) {
+            return current == previous;
+        }
+        if (current.isDirectory() || previous.isDirectory()) {
+            return current.isDirectory() == previous.isDirectory();
+        }
+        return current.getSize() == previous.getSize() && current.getLastModified() == previous.getLastModified();
+    }
+
+    /**
+     * Whether the remote and the local entries hold the same file, the ftp
+     * servers give the modification to the second
+     */
+    static boolean inSync(FileMetadata remote, FileMetadata local) {
+        if (remote.isDirectory() || local.isDirectory()) {
+            return remote.isDirectory() == local.isDirectory();
+        }
+        return remote.getSize() == local.getSize() && remote.getLastModified() >= 0
+                && remote.getLastModified() / 1000 == local.getLastModified() / 1000;
+    }
+}
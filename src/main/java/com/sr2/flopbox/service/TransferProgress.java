@@ -0,0 +1,68 @@
+package com.sr2.flopbox.service;
+
+import org.apache.commons.net.io.CopyStreamEvent;
+import org.apache.commons.net.io.CopyStreamListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte accounting of the data connections of a job. It listens to every copy of
+ * the transfer (FTPClient.setCopyStreamListener for the single file commands,
+ * TreeTransfer.setCopyStreamListener for the recursive ones) and calls its
+ * publisher at most once per interval, however many buffers are copied in
+ * between.
+ *
+ * @author Adrien Holvoet
+ */
+final class TransferProgress implements CopyStreamListener {
+    // All private because they are only used in this class
+    private final long interval;
+    private final Runnable publisher;
+    private final AtomicLong bytes = new AtomicLong();
+    // time of the last publication, the first chunk is always published
+    private final AtomicLong published = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param interval  minimum time between two publications (ms)
+     * @param publisher called with the progress to publish, from the thread
+     *                  copying the data
+     */
+    TransferProgress(long interval, Runnable publisher) {
+        this.interval = interval;
+        this.publisher = publisher;
+    }
+
+    @Override
+    public void bytesTransferred(CopyStreamEvent event) {
+        bytesTransferred(event.getTotalBytesTransferred(), event.getBytesTransferred(), event.getStreamSize());
+    }
+
+    /**
+     * Count a chunk copied by one of the data connections
+     *
+     * @param totalBytesTransferred bytes copied so far by this data connection
+     * @param bytesTransferred      bytes of the chunk, 0 for an entry transferred
+     *                              without data (deletion, FXP)
+     * @param streamSize            size of the stream, or
+     *                              CopyStreamEvent.UNKNOWN_STREAM_SIZE
+     */
+    @Override
+    public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+        bytes.addAndGet(bytesTransferred);
+        long now = System.currentTimeMillis();
+        long last = published.get();
+        if (now - last >= interval && published.compareAndSet(last, now)) {
+            publisher.run();
+        }
+    }
+
+    /**
+     * @return bytes copied by all the data connections, including the ones of
+     *         the files not complete yet
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+}
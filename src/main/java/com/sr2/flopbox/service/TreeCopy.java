@@ -0,0 +1,450 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.exception.FtpReplyException;
+import com.sr2.flopbox.model.CopyReport;
+import com.sr2.flopbox.model.TransferReport;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copy of a file or of a directory tree from a ftp server to another one (or
+ * to another path of the same one), nothing is written on the local disk. The
+ * source tree is listed in parallel, the target directories are created one
+ * depth at a time and the files are copied over several pairs of connections,
+ * the largest first.
+ * <p>
+ * A file is copied with FXP when the servers allow it: the target server
+ * listens (PASV), the source one connects to it (PORT) and the data goes from
+ * one server to the other without going through FlopBox. Otherwise the RETR
+ * data connection of the source server is copied into the STOR data connection
+ * of the target one with a fixed size buffer. A pair of servers which refuses
+ * FXP once is relayed from then on.
+ *
+ * @author Adrien Holvoet
+ */
+public class TreeCopy extends TreeTransfer {
+    // All private because they are only used in this class
+    private static final Logger logger = LogManager.getLogger(TreeCopy.class);
+    // (source alias, target alias) of the pairs of servers which refused FXP
+    private static final Set<String> relayedPairs = ConcurrentHashMap.newKeySet();
+    private static final Pattern HOST_PORT = Pattern
+            .compile("(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3})");
+    private final FtpConnectionKey target;
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final Set<String> failedDirectories = ConcurrentHashMap.newKeySet();
+    private final AtomicLong fxp = new AtomicLong();
+    private final AtomicLong relayed = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param connection connection of the caller, gives the source server, the
+     *                   credentials and the data connection mode to use
+     * @param target     target server and the credentials to use on it
+     */
+    public TreeCopy(FtpConnection connection, FtpConnectionKey target) {
+        // a copy on the same server holds two of its connections at once
+        super(connection, connection.getKey().getAlias().equals(target.getAlias()) ? 2 : 1);
+        this.target = target;
+    }
+
+    /**
+     * Copy the file or the tree
+     *
+     * @param source     path of the file or directory to copy
+     * @param directory  true if the source is a directory
+     * @param size       size of the source file, -1 if unknown
+     * @param targetPath path of the copy on the target server, the entries of
+     *                   an existing directory are kept
+     * @return CopyReport with the number of files, directories and bytes copied,
+     *         how the files were copied and the entries which failed
+     * @throws IOException thrown if the copy is cancelled
+     */
+    public CopyReport copy(String source, boolean directory, long size, String targetPath) throws IOException {
+        TransferReport transfer = run(source, new RecursiveAction() {
+            @Override
+            protected void compute() {
+                if (!directory) {
+                    expect(1, size);
+                    copyFile(new Entry(source, targetPath, false, size));
+                    return;
+                }
+                entries.add(new Entry(source, targetPath, true, 0));
+                new ListTask(source, targetPath).invoke();
+
+                Map<Integer, List<Entry>> levels = new TreeMap<>();
+                List<Entry> files = new ArrayList<>();
+                for (Entry entry : entries) {
+                    if (entry.directory) {
+                        levels.computeIfAbsent(entry.target.split("/").length, k -> new ArrayList<>()).add(entry);
+                    } else {
+                        files.add(entry);
+                    }
+                }
+                for (List<Entry> level : levels.values()) {
+                    forEachParallel(level, TreeCopy.this::makeDirectory);
+                }
+                expect(files.size(), files.stream().mapToLong(entry -> entry.size).sum());
+                files.sort(Comparator.comparingLong((Entry entry) -> entry.size).reversed());
+                forEachParallel(files, TreeCopy.this::copyFile);
+            }
+        });
+        CopyReport report = new CopyReport(transfer);
+        report.setToAlias(target.getAlias());
+        report.setToPath(targetPath);
+        report.setFxp(fxp.get());
+        report.setRelayed(relayed.get());
+        return report;
+    }
+
+    /**
+     * A source file or directory and the path of its copy
+     */
+    private static class Entry {
+        private final String source;
+        private final String target;
+        private final String targetParent;
+        private final boolean directory;
+        private final long size;
+        // set once a FXP transfer of the file stalled, it is relayed from then on
+        private volatile boolean stalled;
+
+        Entry(String source, String target, boolean directory, long size) {
+            this.source = source;
+            this.target = target;
+            this.targetParent = target.contains("/") ? target.substring(0, target.lastIndexOf('/')) : "";
+            this.directory = directory;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Lists a source directory and forks the listings of its subdirectories
+     */
+    private class ListTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String source;
+        private final String target;
+
+        ListTask(String source, String target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            if (isCancelled()) {
+                return;
+            }
+            FTPFile[] list;
+            try {
+                list = withRetry(connection -> {
+                    FTPClient client = connection.getClient();
+                    FTPFile[] files = client.listFiles(source);
+                    if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                        throw new FtpReplyException(client);
+                    }
+                    return files;
+                });
+            } catch (IOException e) {
+                fail(source, e);
+                return;
+            }
+            List<ListTask> tasks = new ArrayList<>();
+            for (FTPFile file : list) {
+                String name = file != null ? file.getName() : null;
+                if (name == null || name.equals(".") || name.equals("..")) {
+                    continue;
+                }
+                String sourcePath = source + "/" + name;
+                String targetPath = target + "/" + name;
+                if (file.isDirectory()) {
+                    entries.add(new Entry(sourcePath, targetPath, true, 0));
+                    tasks.add(new ListTask(sourcePath, targetPath));
+                } else if (file.isFile()) {
+                    entries.add(new Entry(sourcePath, targetPath, false, file.getSize()));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Create a target directory, an existing one is kept. The entries of a
+     * directory which could not be created are skipped.
+     */
+    private void makeDirectory(Entry directory) {
+        if (failedDirectories.contains(directory.targetParent)) {
+            failedDirectories.add(directory.target);
+            return;
+        }
+        try {
+            withRetry(target, connection -> {
+                FTPClient client = connection.getClient();
+                if (!client.makeDirectory(directory.target) && !client.changeWorkingDirectory(directory.target)) {
+                    throw new FtpReplyException(client);
+                }
+                return null;
+            });
+            directories.incrementAndGet();
+        } catch (IOException e) {
+            failedDirectories.add(directory.target);
+            fail(directory.target, e);
+        }
+    }
+
+    /**
+     * Copy a file with a connection of each server
+     */
+    private void copyFile(Entry file) {
+        if (failedDirectories.contains(file.targetParent)) {
+            fail(file.source, new IOException("The parent directory could not be created"));
+            return;
+        }
+        try {
+            long copied = copyWithBothConnections(file);
+            files.incrementAndGet();
+            bytes.addAndGet(copied);
+            transferred();
+        } catch (IOException e) {
+            fail(file.source, e);
+        }
+    }
+
+    /**
+     * Run the copy of a file with a connection of the source server and one of
+     * the target server. Only one of them is waited for, while holding nothing,
+     * and the other is taken if it is free right away: waiting for the second
+     * one while holding the first would deadlock two copies filling the pool of
+     * a server between them (two copies on the same server, or one in each
+     * direction). The server waited for alternates so that both sides get their
+     * turn, until POOL_BORROW_TIMEOUT.
+     */
+    private long copyWithBothConnections(Entry file) throws IOException {
+        long deadline = System.currentTimeMillis() + Constant.POOL_BORROW_TIMEOUT;
+        for (int attempt = 1;; attempt++) {
+            Long copied = attempt % 2 == 1
+                    ? withRetry(from -> copyFile(from, tryBorrow(target), false, file))
+                    : withRetry(target, to -> copyFile(tryBorrow(getKey()), to, true, file));
+            if (copied != null) {
+                return copied;
+            }
+            if (isCancelled()) {
+                throw new InterruptedIOException("The copy was cancelled");
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                throw new IOException("Too many simultaneous connections to the ftp servers " + getAlias()
+                        + " and " + target.getAlias());
+            }
+            try {
+                // randomized so that the copies competing for the pool do not
+                // retry in step
+                Thread.sleep(ThreadLocalRandom.current().nextLong(1, 20));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a ftp connection");
+            }
+        }
+    }
+
+    /**
+     * Copy a file with the connection waited for and the one taken right away,
+     * the latter is given back to the pool here
+     *
+     * @param sourceTaken true if the connection taken right away is the source
+     *                    one
+     * @return the size copied, null if the connection taken right away was not
+     *         free
+     */
+    private Long copyFile(FtpConnection from, FtpConnection to, boolean sourceTaken, Entry file)
+            throws IOException {
+        FtpConnection taken = sourceTaken ? from : to;
+        if (taken == null) {
+            return null;
+        }
+        try {
+            return copyFile(from.getClient(), to, file);
+        } catch (IOException e) {
+            if (!(e instanceof FtpReplyException)) {
+                taken.invalidate();
+            }
+            throw e;
+        } finally {
+            FtpConnectionPool.getInstance().release(taken);
+        }
+    }
+
+    /**
+     * Copy a file with FXP if the servers allow it and its size is known (it
+     * bounds the wait), through FlopBox otherwise. Both connections are still
+     * usable when a FtpReplyException is thrown.
+     */
+    private long copyFile(FTPClient from, FtpConnection to, Entry file) throws IOException {
+        if (!from.setFileType(FTP.BINARY_FILE_TYPE)) {
+            throw new FtpReplyException(from);
+        }
+        if (!to.getClient().setFileType(FTP.BINARY_FILE_TYPE)) {
+            throw new FtpReplyException(to.getClient());
+        }
+        String pair = getAlias() + "\n" + target.getAlias();
+        if (Constant.COPY_FXP && !relayedPairs.contains(pair) && file.size >= 0 && !file.stalled) {
+            long copied = fxp(from, to, file, pair);
+            if (copied >= 0) {
+                fxp.incrementAndGet();
+                return copied;
+            }
+        }
+        long copied = relay(from, to.getClient(), file);
+        relayed.incrementAndGet();
+        return copied;
+    }
+
+    /**
+     * Server to server copy: the target server listens and the source one sends
+     * the file to it
+     *
+     * @return the size of the file, -1 if the servers refused the data connection
+     *         between them and nothing was transferred
+     */
+    private long fxp(FTPClient from, FtpConnection to, Entry file, String pair) throws IOException {
+        FTPClient client = to.getClient();
+        InetAddress address = null;
+        int port = -1;
+        if (client.pasv() == FTPReply.ENTERING_PASSIVE_MODE) {
+            Matcher matcher = HOST_PORT.matcher(client.getReplyString());
+            if (matcher.find()) {
+                address = listeningAddress(client, matcher);
+                port = Integer.parseInt(matcher.group(5)) * 256 + Integer.parseInt(matcher.group(6));
+            }
+        }
+        if (address == null || !FTPReply.isPositiveCompletion(from.port(address, port))) {
+            refuseFxp(pair, address == null ? client : from);
+            return -1;
+        }
+        if (!FTPReply.isPositivePreliminary(client.stor(file.target))) {
+            throw new FtpReplyException(client);
+        }
+        if (!FTPReply.isPositivePreliminary(from.retr(file.source))) {
+            // the target server waits for a data connection which will never come
+            to.invalidate();
+            if (from.getReplyCode() == FTPReply.CANNOT_OPEN_DATA_CONNECTION) {
+                refuseFxp(pair, from);
+                throw new IOException("FTP : the servers cannot connect to each other, " + from.getReplyString());
+            }
+            throw new FtpReplyException(from);
+        }
+        long deadline = System.currentTimeMillis() + Constant.COPY_FXP_DELAY
+                + file.size * 1000 / Math.max(1, Constant.COPY_FXP_MIN_RATE);
+        boolean retrieved;
+        try {
+            retrieved = FTPReply.isPositiveCompletion(awaitReply(from, deadline));
+            if (!FTPReply.isPositiveCompletion(awaitReply(client, deadline))) {
+                throw new FtpReplyException(client);
+            }
+        } catch (SocketTimeoutException e) {
+            if (isCancelled()) {
+                throw e;
+            }
+            // both transfers are left pending, the connections are closed
+            file.stalled = true;
+            throw new IOException("The FXP transfer of " + file.source + " stalled, the file is relayed");
+        }
+        if (!retrieved) {
+            throw new FtpReplyException(from);
+        }
+        return file.size;
+    }
+
+    /**
+     * Address given by a PASV reply, the one of the control connection if the
+     * server gives a private address while it is reached through a public one
+     */
+    private static InetAddress listeningAddress(FTPClient client, Matcher matcher) throws IOException {
+        InetAddress address = InetAddress.getByName(matcher.group(1) + "." + matcher.group(2) + "."
+                + matcher.group(3) + "." + matcher.group(4));
+        InetAddress control = client.getRemoteAddress();
+        if (address.isAnyLocalAddress() || (address.isSiteLocalAddress() && !control.isSiteLocalAddress())) {
+            return control;
+        }
+        return address;
+    }
+
+    private void refuseFxp(String pair, FTPClient client) {
+        if (relayedPairs.add(pair)) {
+            logger.info("FXP refused from " + getAlias() + " to " + target.getAlias() + ", the copies are relayed : "
+                    + client.getReplyString().trim());
+        }
+    }
+
+    /**
+     * Wait for the end of a FXP transfer, the control connection is silent as
+     * long as the data flows
+     *
+     * @param deadline time after which the transfer is taken as stalled
+     * @throws SocketTimeoutException if the copy is cancelled or the deadline
+     *                                passed
+     */
+    private int awaitReply(FTPClient client, long deadline) throws IOException {
+        while (true) {
+            try {
+                return client.getReply();
+            } catch (SocketTimeoutException e) {
+                if (isCancelled() || System.currentTimeMillis() >= deadline) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the RETR data connection of the source server into the STOR data
+     * connection of the target one
+     */
+    private long relay(FTPClient from, FTPClient to, Entry file) throws IOException {
+        InputStream in = from.retrieveFileStream(file.source);
+        if (in == null) {
+            throw new FtpReplyException(from);
+        }
+        long copied;
+        try {
+            copied = store(to, file.target, in);
+        } catch (FtpReplyException refused) {
+            // the source connection stays usable once its transfer is aborted
+            in.close();
+            from.completePendingCommand();
+            throw refused;
+        } finally {
+            in.close();
+        }
+        if (!from.completePendingCommand()) {
+            throw new FtpReplyException(from);
+        }
+        return copied;
+    }
+}
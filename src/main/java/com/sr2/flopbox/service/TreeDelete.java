@@ -0,0 +1,153 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.exception.FtpReplyException;
+import com.sr2.flopbox.model.TransferReport;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parallel delete of a remote directory tree. Each directory is listed by its
+ * own task which forks the tasks of its entries, the files are deleted over
+ * several connections and the RMD of a directory is only sent once all of its
+ * entries are gone. An entry which cannot be deleted keeps its parent
+ * directories, the rest of the tree is still deleted.
+ *
+ * @author Adrien Holvoet
+ */
+public class TreeDelete extends TreeTransfer {
+
+    /**
+     * Constructor
+     *
+     * @param connection connection of the caller, gives the server, the
+     *                   credentials and the data connection mode to use
+     */
+    public TreeDelete(FtpConnection connection) {
+        super(connection);
+    }
+
+    /**
+     * Delete the tree
+     *
+     * @param path      remote path of the directory or file to delete
+     * @param directory true if the path is a directory
+     * @return TransferReport with the number of files and directories deleted and
+     *         the entries which could not be deleted
+     * @throws IOException thrown if the delete is cancelled
+     */
+    public TransferReport delete(String path, boolean directory) throws IOException {
+        return run(path, directory ? new DirectoryTask(path) : new FileTask(path));
+    }
+
+    /**
+     * Deletes the entries of a directory then the directory itself, gives true if
+     * the directory is gone
+     */
+    private class DirectoryTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+
+        DirectoryTask(String path) {
+            this.path = path;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (isCancelled()) {
+                return false;
+            }
+            FTPFile[] entries;
+            try {
+                entries = withRetry(connection -> {
+                    FTPClient client = connection.getClient();
+                    FTPFile[] list = client.listFiles(path);
+                    if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                        throw new FtpReplyException(client);
+                    }
+                    return list;
+                });
+            } catch (IOException e) {
+                fail(path, e);
+                return false;
+            }
+
+            List<RecursiveTask<Boolean>> tasks = new ArrayList<>();
+            for (FTPFile entry : entries) {
+                String name = entry.getName();
+                if (name == null || name.equals(".") || name.equals("..")) {
+                    // skip parent directory and the directory itself
+                    continue;
+                }
+                String entryPath = path.endsWith("/") ? path + name : path + "/" + name;
+                if (!entry.isDirectory()) {
+                    expect(1, 0);
+                }
+                tasks.add(entry.isDirectory() ? new DirectoryTask(entryPath) : new FileTask(entryPath));
+            }
+            boolean empty = true;
+            for (RecursiveTask<Boolean> task : invokeAll(tasks)) {
+                empty &= task.join();
+            }
+            if (!empty || isCancelled()) {
+                // the failures of the entries are already reported
+                return false;
+            }
+            try {
+                withRetry(connection -> {
+                    FTPClient client = connection.getClient();
+                    if (!client.removeDirectory(path)) {
+                        throw new FtpReplyException(client);
+                    }
+                    return null;
+                });
+                directories.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                fail(path, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Deletes a file, gives true if the file is gone
+     */
+    private class FileTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+
+        FileTask(String path) {
+            this.path = path;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (isCancelled()) {
+                return false;
+            }
+            try {
+                withRetry(connection -> {
+                    FTPClient client = connection.getClient();
+                    if (!client.deleteFile(path)) {
+                        throw new FtpReplyException(client);
+                    }
+                    return null;
+                });
+                files.incrementAndGet();
+                transferred();
+                return true;
+            } catch (IOException e) {
+                fail(path, e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.CheckUtils;
+import com.sr2.flopbox.model.TransferReport;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel download of a remote directory tree into a local directory. Each
+ * directory is listed by its own task which creates the local directory before
+ * forking the tasks of its entries, so a file is always written in an existing
+ * directory. The idle workers steal the pending listings and files of the busy
+ * ones.
+ *
+ * @author Adrien Holvoet
+ */
+public class TreeDownload extends TreeTransfer {
+    // All private because they are only used in this class
+    private final boolean segmented;
+    private volatile Boolean restSupported;
+
+    /**
+     * Constructor
+     *
+     * @param connection connection of the caller, gives the server, the
+     *                   credentials and the data connection mode to use
+     * @param segmented  true to download the large files with a
+     *                   SegmentedTransfer
+     */
+    public TreeDownload(FtpConnection connection, boolean segmented) {
+        super(connection);
+        this.segmented = segmented;
+    }
+
+    /**
+     * Download the tree
+     *
+     * @param remoteDir      path of the remote directory
+     * @param downloadFolder local directory, the remote path is recreated in it
+     * @return TransferReport with the number of files, directories and bytes
+     *         downloaded and the entries which failed
+     * @throws IOException thrown if the download is cancelled
+     */
+    public TransferReport download(String remoteDir, String downloadFolder) throws IOException {
+        return run(remoteDir, new DirectoryTask(remoteDir, new File(downloadFolder + remoteDir)));
+    }
+
+    /**
+     * Lists a remote directory and forks the tasks of its entries
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String remoteDir;
+        private final File localDir;
+
+        DirectoryTask(String remoteDir, File localDir) {
+            this.remoteDir = remoteDir;
+            this.localDir = localDir;
+        }
+
+        @Override
+        protected void compute() {
+            if (isCancelled()) {
+                return;
+            }
+            FTPFile[] entries;
+            try {
+                if (!localDir.isDirectory() && !localDir.mkdirs()) {
+                    throw new IOException("Unable to create the local directory " + localDir);
+                }
+                entries = withConnection(connection -> {
+                    FTPClient client = connection.getClient();
+                    FTPFile[] list = client.listFiles(remoteDir);
+                    if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                        throw new IOException("FTP : " + client.getReplyString());
+                    }
+                    return list;
+                });
+            } catch (IOException e) {
+                fail(remoteDir, e);
+                return;
+            }
+            directories.incrementAndGet();
+
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for (FTPFile entry : entries) {
+                String name = entry.getName();
+                if (name == null || name.equals(".") || name.equals("..")) {
+                    // skip parent directory and the directory itself
+                    continue;
+                }
+                String remotePath = remoteDir.endsWith("/") ? remoteDir + name : remoteDir + "/" + name;
+                File localPath = new File(localDir, name);
+                if (entry.isDirectory()) {
+                    tasks.add(new DirectoryTask(remotePath, localPath));
+                } else {
+                    expect(1, entry.getSize());
+                    tasks.add(new FileTask(remotePath, localPath, entry.getSize()));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Downloads a file in its local directory
+     */
+    private class FileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String remotePath;
+        private final File localFile;
+        private final long size;
+
+        FileTask(String remotePath, File localFile, long size) {
+            this.remotePath = remotePath;
+            this.localFile = localFile;
+            this.size = size;
+        }
+
+        @Override
+        protected void compute() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                long written = withConnection(this::retrieve);
+                files.incrementAndGet();
+                bytes.addAndGet(written);
+                transferred();
+            } catch (IOException e) {
+                if (e instanceof InterruptedIOException) {
+                    // cut by the cancellation
+                    localFile.delete();
+                }
+                fail(remotePath, e);
+            }
+        }
+
+        private long retrieve(FtpConnection connection) throws IOException {
+            FTPClient client = connection.getClient();
+            if (segmented && SegmentedTransfer.isSegmentable(getAlias(), size) && isRestSupported(client)) {
+                new SegmentedTransfer(connection, remotePath, size).writeTo(localFile, connection);
+                return size;
+            }
+            if (CheckUtils.isImage(localFile)) {
+                client.setFileType(FTP.BINARY_FILE_TYPE);
+            } else {
+                client.setFileType(FTP.ASCII_FILE_TYPE);
+            }
+            InputStream data = client.retrieveFileStream(remotePath);
+            if (data == null) {
+                throw new IOException("FTP : " + client.getReplyString());
+            }
+            long written;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(localFile))) {
+                written = copy(data, out);
+            } finally {
+                data.close();
+            }
+            if (!client.completePendingCommand()) {
+                throw new IOException("FTP : " + client.getReplyString());
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Whether the server can restart a transfer at an offset, probed once with a
+     * harmless REST 0
+     */
+    private boolean isRestSupported(FTPClient client) throws IOException {
+        if (restSupported == null) {
+            restSupported = FTPReply.isPositiveIntermediate(client.rest("0"));
+        }
+        return restSupported;
+    }
+}
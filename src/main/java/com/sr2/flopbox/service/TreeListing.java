@@ -0,0 +1,189 @@
+package com.sr2.flopbox.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sr2.flopbox.exception.FtpReplyException;
+import com.sr2.flopbox.model.ListingEntry;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Body of a directory tree expanded down to a given depth. The directories are
+ * listed in parallel over pooled connections (at most parallelism at once) as
+ * soon as the tree is started, while the response is written depth first: a
+ * directory is written as soon as its own listing is there, the listings of
+ * the next directories keep coming meanwhile. A directory already written is
+ * forgotten. The listings go through the ListingCache like the list endpoint.
+ *
+ * @author Adrien Holvoet
+ */
+public class TreeListing extends TreeTransfer implements StreamingOutput, Closeable {
+    // All private because they are only used in this class
+    private final ListingCache listingCache = ListingCache.getInstance();
+    private final Node root;
+    private final EnumSet<ListingWriter.Field> fields;
+
+    /**
+     * Constructor
+     *
+     * @param connection connection of the caller, gives the server, the
+     *                   credentials and the data connection mode to use
+     * @param path       path of the root directory
+     * @param depth      number of levels listed, 1 for the entries of the root
+     *                   only
+     * @param fields     the fields of the entries to write
+     */
+    public TreeListing(FtpConnection connection, String path, int depth, EnumSet<ListingWriter.Field> fields) {
+        super(connection);
+        this.root = new Node(path, depth);
+        this.fields = fields;
+    }
+
+    /**
+     * Start listing the tree in the background, the tree is stopped once written
+     * or closed
+     */
+    public void start() {
+        submit(root);
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try (JsonGenerator generator = ListingWriter.createGenerator(output)) {
+            generator.writeStartObject();
+            generator.writeStringField("path", root.path);
+            writeChildren(generator, root);
+            generator.writeEndObject();
+        } finally {
+            this.close();
+        }
+    }
+
+    /**
+     * Stop the listings still running, can be called several times
+     */
+    @Override
+    public void close() {
+        finish();
+    }
+
+    /**
+     * Write the entries of a directory, or the reason why it could not be listed,
+     * waiting for its listing if needed
+     */
+    private void writeChildren(JsonGenerator generator, Node node) throws IOException {
+        try {
+            node.listed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Listing of " + node.path + " cancelled");
+        }
+        if (node.error != null) {
+            generator.writeStringField("error", node.error);
+            return;
+        }
+        ListingEntry[] entries = node.entries;
+        Node[] children = node.children;
+        // written only once, what is below is not needed anymore
+        node.entries = null;
+        node.children = null;
+        generator.writeArrayFieldStart("entries");
+        for (int i = 0; i < entries.length; i++) {
+            generator.writeStartObject();
+            ListingWriter.writeFields(generator, entries[i], fields);
+            if (children[i] != null) {
+                writeChildren(generator, children[i]);
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.flush();
+    }
+
+    /**
+     * A directory of the tree, lists itself then forks the listing of its
+     * subdirectories if the depth allows it
+     */
+    private class Node extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final int depth;
+        private final CountDownLatch listed = new CountDownLatch(1);
+        // set before listed is released
+        private volatile ListingEntry[] entries;
+        private volatile Node[] children;
+        private volatile String error;
+
+        Node(String path, int depth) {
+            this.path = path;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            List<Node> subdirectories = new ArrayList<>();
+            try {
+                if (isCancelled()) {
+                    error = "Listing cancelled";
+                    return;
+                }
+                ListingEntry[] list = list();
+                Node[] nodes = new Node[list.length];
+                for (int i = 0; i < list.length; i++) {
+                    // the links are not followed, they could loop
+                    if (depth > 1 && list[i].isDirectory()) {
+                        String name = list[i].getName();
+                        nodes[i] = new Node(path.endsWith("/") ? path + name : path + "/" + name, depth - 1);
+                        subdirectories.add(nodes[i]);
+                    }
+                }
+                entries = list;
+                children = nodes;
+            } catch (IOException e) {
+                fail(path, e);
+                error = e.getMessage() != null ? e.getMessage().trim() : e.toString();
+            } catch (RuntimeException e) {
+                fail(path, e);
+                error = e.toString();
+            } finally {
+                listed.countDown();
+            }
+            invokeAll(subdirectories);
+        }
+
+        private ListingEntry[] list() throws IOException {
+            ListingCache.Listing cached = listingCache.get(getKey(), path);
+            if (cached != null) {
+                return cached.getEntries();
+            }
+            return withRetry(connection -> {
+                StreamingFtpClient client = connection.getClient();
+                FTPFile[] list = client.listFiles(path);
+                if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                    throw new FtpReplyException(client);
+                }
+                List<ListingEntry> listing = new ArrayList<>(list.length);
+                for (FTPFile file : list) {
+                    ListingEntry entry = client.toEntry(file);
+                    if (entry != null) {
+                        listing.add(entry);
+                    }
+                }
+                ListingEntry[] result = listing.toArray(new ListingEntry[0]);
+                listingCache.put(getKey(), path, result);
+                return result;
+            });
+        }
+    }
+}
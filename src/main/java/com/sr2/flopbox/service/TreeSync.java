@@ -0,0 +1,663 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.exception.FtpReplyException;
+import com.sr2.flopbox.model.FileMetadata;
+import com.sr2.flopbox.model.SyncChange;
+import com.sr2.flopbox.model.SyncReport;
+import com.sr2.flopbox.model.TransferReport;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Incremental synchronization of a local directory and a remote one. The
+ * remote tree is listed in parallel and the local one walked to build the
+ * manifests (path, size, last modification) of both sides, the SyncPlan
+ * compares them with the manifests written at the end of the previous
+ * synchronization of the same directories, and only the paths it gives are
+ * transferred, over several connections, the largest files first. An
+ * unchanged tree costs its listings and no transfer.
+ * <p>
+ * The files are transferred in binary mode to a temporary name and renamed
+ * once complete, so an interrupted transfer never looks like a change. A
+ * downloaded file gets the modification date of the remote one. A directory
+ * which cannot be read is left out of the synchronization, its entries are
+ * never taken for deleted.
+ *
+ * @author Adrien Holvoet
+ */
+public class TreeSync extends TreeTransfer {
+    // All private because they are only used in this class
+    private static final Logger logger = LogManager.getLogger(TreeSync.class);
+    private static final String PART = ".flopbox-part";
+    // one synchronization of the same directories at a time, they share their manifests
+    private static final Map<String, ReentrantLock> running = new ConcurrentHashMap<>();
+    private final SyncPlan.Direction direction;
+    private final boolean delete;
+    private String remoteDir;
+    private File localDir;
+    private final Queue<FileMetadata> remoteEntries = new ConcurrentLinkedQueue<>();
+    private final Set<String> unreadable = ConcurrentHashMap.newKeySet();
+    private final Set<String> failedDirectories = ConcurrentHashMap.newKeySet();
+    // relative paths of the files uploaded, their remote entries are read again once
+    // all of them are stored
+    private final Set<String> uploadedFiles = ConcurrentHashMap.newKeySet();
+    private Map<String, FileMetadata> baseRemote;
+    private Map<String, FileMetadata> baseLocal;
+    // the entries of both sides once synchronized, the manifests of the next run
+    private final Map<String, FileMetadata> syncedRemote = new ConcurrentHashMap<>();
+    private final Map<String, FileMetadata> syncedLocal = new ConcurrentHashMap<>();
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong deletedLocal = new AtomicLong();
+    private final AtomicLong deletedRemote = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param connection connection of the caller, gives the server, the
+     *                   credentials and the data connection mode to use
+     * @param direction  way of the synchronization
+     * @param delete     true to delete the paths deleted on the source side
+     */
+    public TreeSync(FtpConnection connection, SyncPlan.Direction direction, boolean delete) {
+        super(connection);
+        this.direction = direction;
+        this.delete = delete;
+    }
+
+    /**
+     * Synchronize the directories, the manifests are written for the next run
+     * once the transfers are over
+     *
+     * @param remoteDir path of the remote directory, it must exist
+     * @param localDir  local directory, it must exist
+     * @return SyncReport with the changes, the totals and the paths which failed
+     * @throws IOException thrown if the synchronization is cancelled
+     */
+    public SyncReport sync(String remoteDir, File localDir) throws IOException {
+        this.remoteDir = remoteDir;
+        this.localDir = localDir.getAbsoluteFile();
+        String id = id();
+        ReentrantLock lock = running.computeIfAbsent(id, k -> new ReentrantLock());
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Synchronization of " + remoteDir + " cancelled");
+        }
+        try {
+            File remoteManifest = new File(Constant.SYNC_DIR, id + ".remote");
+            File localManifest = new File(Constant.SYNC_DIR, id + ".local");
+            baseRemote = load(remoteManifest);
+            baseLocal = load(localManifest);
+            SyncPlan[] plan = new SyncPlan[1];
+            TransferReport transfer = run(remoteDir, new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    new ListTask(remoteDir, "").invoke();
+                    Map<String, FileMetadata> local = walk();
+                    Map<String, FileMetadata> remote = new HashMap<>();
+                    for (FileMetadata entry : remoteEntries) {
+                        remote.put(entry.getPath(), entry);
+                    }
+                    plan[0] = SyncPlan.compute(direction, delete, readable(remote), readable(local),
+                            readable(baseRemote), readable(baseLocal));
+                    syncedRemote.putAll(remote);
+                    syncedLocal.putAll(local);
+                    // what could not be read keeps its previous state
+                    for (String path : unreadable) {
+                        restoreTree(path);
+                    }
+                    apply(plan[0].getChanges());
+                    relistUploaded();
+                }
+            });
+            FileIndex.build(new ArrayList<>(syncedRemote.values())).write(remoteManifest);
+            FileIndex.build(new ArrayList<>(syncedLocal.values())).write(localManifest);
+            return report(transfer, plan[0]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lists a remote directory into the remote manifest and forks the listings of
+     * its subdirectories
+     */
+    private class ListTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final String relative;
+
+        ListTask(String path, String relative) {
+            this.path = path;
+            this.relative = relative;
+        }
+
+        @Override
+        protected void compute() {
+            if (isCancelled()) {
+                return;
+            }
+            FTPFile[] entries;
+            try {
+                entries = list(path);
+            } catch (IOException e) {
+                unreadable.add(relative);
+                fail(path, e);
+                return;
+            }
+            List<ListTask> tasks = new ArrayList<>();
+            for (FTPFile entry : entries) {
+                String name = entry != null ? entry.getName() : null;
+                if (name == null || name.equals(".") || name.equals("..") || name.endsWith(PART)) {
+                    continue;
+                }
+                String child = relative + "/" + name;
+                if (entry.isDirectory()) {
+                    remoteEntries.add(new FileMetadata(child, true, -1, -1));
+                    tasks.add(new ListTask(remote(child), child));
+                } else if (entry.isFile()) {
+                    remoteEntries.add(file(child, entry));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * List a remote directory, the source of every remote entry of the manifests
+     */
+    private FTPFile[] list(String path) throws IOException {
+        return withRetry(connection -> {
+            FTPClient client = connection.getClient();
+            FTPFile[] list = client.listFiles(path);
+            if (!FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                throw new FtpReplyException(client);
+            }
+            return list;
+        });
+    }
+
+    private static FileMetadata file(String path, FTPFile entry) {
+        long lastModified = entry.getTimestamp() != null ? entry.getTimestamp().getTimeInMillis() : -1;
+        return new FileMetadata(path, false, entry.getSize(), lastModified);
+    }
+
+    /**
+     * Record the uploaded files as the next listing will give them. A server
+     * without MLSD lists the modification in local time to the minute (or the
+     * day), so an entry read another way (MDTM) would look changed by the next
+     * synchronization. One listing per directory holding uploaded files.
+     */
+    private void relistUploaded() {
+        Map<String, List<String>> byParent = new HashMap<>();
+        for (String path : uploadedFiles) {
+            byParent.computeIfAbsent(FileIndex.parent(path), k -> new ArrayList<>()).add(path);
+        }
+        forEachParallel(new ArrayList<>(byParent.keySet()), parent -> {
+            String relative = parent.equals("/") ? "" : parent;
+            String directory = relative.isEmpty() ? remoteDir : remote(relative);
+            try {
+                for (FTPFile entry : list(directory)) {
+                    String child = entry != null && entry.getName() != null ? relative + "/" + entry.getName() : null;
+                    if (child != null && entry.isFile() && uploadedFiles.contains(child)) {
+                        syncedRemote.put(child, file(child, entry));
+                    }
+                }
+            } catch (IOException e) {
+                // the entries keep an unknown modification, the files are stored again
+                // by the next synchronization
+                logger.warn("Unable to list " + directory + " after the upload : " + e.toString());
+            }
+        });
+    }
+
+    /**
+     * Walk the local directory, the symbolic links are not followed
+     *
+     * @return the local manifest by relative path
+     */
+    private Map<String, FileMetadata> walk() {
+        Map<String, FileMetadata> entries = new HashMap<>();
+        Path root = localDir.toPath();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(root)) {
+                        String path = relative(dir);
+                        entries.put(path, new FileMetadata(path, true, -1, -1));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && !file.getFileName().toString().endsWith(PART)) {
+                        String path = relative(file);
+                        entries.put(path, new FileMetadata(path, false, attrs.size(),
+                                attrs.lastModifiedTime().toMillis()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    unreadable.add(file.equals(root) ? "" : relative(file));
+                    fail(file.toString(), e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            unreadable.add("");
+            fail(localDir.toString(), e);
+        }
+        return entries;
+    }
+
+    /**
+     * Create the directories (parents first), transfer the files (largest
+     * first), then delete the files and the directories (children first)
+     */
+    private void apply(List<SyncPlan.Change> changes) {
+        List<SyncPlan.Change> localDirectories = new ArrayList<>();
+        Map<Integer, List<SyncPlan.Change>> remoteDirectories = new TreeMap<>();
+        List<SyncPlan.Change> files = new ArrayList<>();
+        List<SyncPlan.Change> deletedFiles = new ArrayList<>();
+        List<SyncPlan.Change> deletedDirectories = new ArrayList<>();
+        for (SyncPlan.Change change : changes) {
+            boolean deletion = change.getAction() == SyncPlan.Action.DELETE_LOCAL
+                    || change.getAction() == SyncPlan.Action.DELETE_REMOTE;
+            if (deletion) {
+                (change.isDirectory() ? deletedDirectories : deletedFiles).add(change);
+            } else if (!change.isDirectory()) {
+                files.add(change);
+            } else if (change.getAction() == SyncPlan.Action.DOWNLOAD) {
+                localDirectories.add(change);
+            } else {
+                int depth = change.getPath().split("/").length;
+                remoteDirectories.computeIfAbsent(depth, k -> new ArrayList<>()).add(change);
+            }
+        }
+
+        for (SyncPlan.Change change : localDirectories) {
+            makeLocalDirectory(change);
+        }
+        for (List<SyncPlan.Change> level : remoteDirectories.values()) {
+            forEachParallel(level, this::makeRemoteDirectory);
+        }
+        expect(files.size(), files.stream().mapToLong(change -> change.getSource().getSize()).sum());
+        files.sort(Comparator.comparingLong((SyncPlan.Change change) -> change.getSource().getSize()).reversed());
+        forEachParallel(files, change -> {
+            if (change.getAction() == SyncPlan.Action.DOWNLOAD) {
+                download(change);
+            } else {
+                upload(change);
+            }
+        });
+        forEachParallel(deletedFiles, this::remove);
+        // sorted by path, the children come after their directory
+        for (int i = deletedDirectories.size() - 1; i >= 0 && !isCancelled(); i--) {
+            remove(deletedDirectories.get(i));
+        }
+    }
+
+    private void makeLocalDirectory(SyncPlan.Change change) {
+        String path = change.getPath();
+        File directory = local(path);
+        if (directory.isDirectory() || directory.mkdirs()) {
+            directories.incrementAndGet();
+            downloaded.incrementAndGet();
+            synced(path, change.getSource(), new FileMetadata(path, true, -1, -1));
+        } else {
+            failedDirectories.add(path);
+            restore(path);
+            fail(path, new IOException("Unable to create the local directory " + directory));
+        }
+    }
+
+    /**
+     * Create a remote directory, an existing one is kept
+     */
+    private void makeRemoteDirectory(SyncPlan.Change change) {
+        String path = change.getPath();
+        if (isUnder(path, failedDirectories)) {
+            failedDirectories.add(path);
+            restore(path);
+            return;
+        }
+        try {
+            withRetry(connection -> {
+                FTPClient client = connection.getClient();
+                if (!client.makeDirectory(remote(path)) && !client.changeWorkingDirectory(remote(path))) {
+                    throw new FtpReplyException(client);
+                }
+                return null;
+            });
+            directories.incrementAndGet();
+            uploaded.incrementAndGet();
+            synced(path, new FileMetadata(path, true, -1, -1), change.getSource());
+        } catch (IOException e) {
+            failedDirectories.add(path);
+            restore(path);
+            fail(path, e);
+        }
+    }
+
+    /**
+     * Retrieve a remote file to a temporary local file renamed once complete
+     */
+    private void download(SyncPlan.Change change) {
+        String path = change.getPath();
+        if (isUnder(path, failedDirectories)) {
+            restore(path);
+            return;
+        }
+        File target = local(path);
+        File part = new File(target.getParentFile(), target.getName() + PART);
+        try {
+            long written = withRetry(connection -> {
+                FTPClient client = connection.getClient();
+                if (!client.setFileType(FTP.BINARY_FILE_TYPE)) {
+                    throw new FtpReplyException(client);
+                }
+                InputStream data = client.retrieveFileStream(remote(path));
+                if (data == null) {
+                    throw new FtpReplyException(client);
+                }
+                long length;
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(part))) {
+                    length = copy(data, out);
+                } finally {
+                    data.close();
+                }
+                if (!client.completePendingCommand()) {
+                    throw new FtpReplyException(client);
+                }
+                return length;
+            });
+            Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            if (change.getSource().getLastModified() >= 0) {
+                target.setLastModified(change.getSource().getLastModified());
+            }
+            files.incrementAndGet();
+            bytes.addAndGet(written);
+            downloaded.incrementAndGet();
+            synced(path, change.getSource(), new FileMetadata(path, false, target.length(), target.lastModified()));
+        } catch (IOException e) {
+            part.delete();
+            restore(path);
+            fail(path, e);
+        }
+    }
+
+    /**
+     * Store a local file under a temporary remote name renamed once complete
+     */
+    private void upload(SyncPlan.Change change) {
+        String path = change.getPath();
+        if (isUnder(path, failedDirectories)) {
+            restore(path);
+            return;
+        }
+        File source = local(path);
+        // what is stored, the file may have changed since the walk
+        FileMetadata stored = new FileMetadata(path, false, source.length(), source.lastModified());
+        try {
+            withRetry(connection -> {
+                FTPClient client = connection.getClient();
+                if (!client.setFileType(FTP.BINARY_FILE_TYPE)) {
+                    throw new FtpReplyException(client);
+                }
+                String target = remote(path);
+                try (InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+                    store(client, target + PART, in);
+                }
+                if (!client.rename(target + PART, target)) {
+                    // some servers do not replace an existing file
+                    client.deleteFile(target);
+                    if (!client.rename(target + PART, target)) {
+                        throw new FtpReplyException(client);
+                    }
+                }
+                return null;
+            });
+            files.incrementAndGet();
+            bytes.addAndGet(stored.getSize());
+            uploaded.incrementAndGet();
+            // the remote entry is read by relistUploaded
+            synced(path, new FileMetadata(path, false, stored.getSize(), -1), stored);
+            uploadedFiles.add(path);
+        } catch (IOException e) {
+            restore(path);
+            fail(path, e);
+        }
+    }
+
+    /**
+     * Delete a file or an empty directory on one side
+     */
+    private void remove(SyncPlan.Change change) {
+        String path = change.getPath();
+        try {
+            if (change.getAction() == SyncPlan.Action.DELETE_LOCAL) {
+                Files.delete(local(path).toPath());
+                deletedLocal.incrementAndGet();
+            } else {
+                withRetry(connection -> {
+                    FTPClient client = connection.getClient();
+                    boolean removed = change.isDirectory() ? client.removeDirectory(remote(path))
+                            : client.deleteFile(remote(path));
+                    if (!removed) {
+                        throw new FtpReplyException(client);
+                    }
+                    return null;
+                });
+                deletedRemote.incrementAndGet();
+            }
+            synced(path, null, null);
+        } catch (IOException e) {
+            restore(path);
+            fail(path, e);
+        }
+    }
+
+    /**
+     * Record the entries of both sides once a path is synchronized, null if it
+     * is deleted
+     */
+    private void synced(String path, FileMetadata remote, FileMetadata local) {
+        put(syncedRemote, path, remote);
+        put(syncedLocal, path, local);
+    }
+
+    /**
+     * Keep the previous state of a path which failed, so that it is tried again
+     * by the next synchronization
+     */
+    private void restore(String path) {
+        synced(path, baseRemote.get(path), baseLocal.get(path));
+    }
+
+    /**
+     * Keep the previous state of an unreadable directory and of its entries
+     */
+    private void restoreTree(String directory) {
+        syncedRemote.keySet().removeIf(path -> isWithin(path, directory));
+        syncedLocal.keySet().removeIf(path -> isWithin(path, directory));
+        for (String path : baseRemote.keySet()) {
+            if (isWithin(path, directory)) {
+                syncedRemote.put(path, baseRemote.get(path));
+            }
+        }
+        for (String path : baseLocal.keySet()) {
+            if (isWithin(path, directory)) {
+                syncedLocal.put(path, baseLocal.get(path));
+            }
+        }
+    }
+
+    private static void put(Map<String, FileMetadata> synced, String path, FileMetadata entry) {
+        if (entry == null) {
+            synced.remove(path);
+        } else {
+            synced.put(path, entry);
+        }
+    }
+
+    /**
+     * The entries of a manifest which are not in an unreadable directory
+     */
+    private Map<String, FileMetadata> readable(Map<String, FileMetadata> manifest) {
+        if (unreadable.isEmpty()) {
+            return manifest;
+        }
+        Map<String, FileMetadata> readable = new HashMap<>(manifest);
+        for (String directory : unreadable) {
+            readable.keySet().removeIf(path -> isWithin(path, directory));
+        }
+        return readable;
+    }
+
+    /**
+     * @return true if the path is in one of the directories
+     */
+    private static boolean isUnder(String path, Set<String> directories) {
+        for (String parent = FileIndex.parent(path); parent.length() > 1; parent = FileIndex.parent(parent)) {
+            if (directories.contains(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param directory relative path of a directory, "" for the synchronized
+     *                  directory itself
+     * @return true if the path is the directory or one of its entries
+     */
+    private static boolean isWithin(String path, String directory) {
+        return directory.isEmpty() || path.equals(directory) || path.startsWith(directory + "/");
+    }
+
+    private String remote(String path) {
+        return remoteDir.endsWith("/") ? remoteDir + path.substring(1) : remoteDir + path;
+    }
+
+    private File local(String path) {
+        return new File(localDir, path.substring(1));
+    }
+
+    private String relative(Path path) {
+        return "/" + localDir.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Manifests of the previous synchronization, empty if there was none
+     */
+    private static Map<String, FileMetadata> load(File file) {
+        Map<String, FileMetadata> manifest = new HashMap<>();
+        if (!file.isFile()) {
+            return manifest;
+        }
+        try {
+            for (FileMetadata entry : FileIndex.read(file).records()) {
+                manifest.put(entry.getPath(), entry);
+            }
+        } catch (IOException e) {
+            // synchronized as the first time: nothing is deleted
+            logger.warn("Unable to read the manifest " + file + " : " + e.toString());
+            manifest.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Name of the manifests of the directories for the user
+     */
+    private String id() {
+        String pair = getAlias() + "\n" + getKey().getUsername() + "\n" + remoteDir + "\n" + localDir.getPath();
+        try {
+            StringBuilder id = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(pair.getBytes(StandardCharsets.UTF_8))) {
+                id.append(String.format("%02x", b));
+            }
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private SyncReport report(TransferReport transfer, SyncPlan plan) {
+        SyncReport report = new SyncReport(transfer);
+        report.setLocalPath(localDir.getPath());
+        report.setDirection(direction.name().toLowerCase());
+        report.setDownloaded(downloaded.get());
+        report.setUploaded(uploaded.get());
+        report.setDeletedLocal(deletedLocal.get());
+        report.setDeletedRemote(deletedRemote.get());
+        if (plan != null) {
+            report.setUnchanged(plan.getUnchanged());
+            report.setConflicts(plan.getConflicts());
+            List<SyncChange> changes = new ArrayList<>();
+            for (SyncPlan.Change change : plan.getChanges()) {
+                if (changes.size() == Constant.SYNC_REPORT_LIMIT) {
+                    break;
+                }
+                changes.add(new SyncChange(change.getPath(), name(change.getAction()), change.isDirectory(),
+                        change.getSource().getSize(), change.isConflict()));
+            }
+            report.setChanges(changes);
+        }
+        return report;
+    }
+
+    /**
+     * @return download, upload, deleteLocal or deleteRemote
+     */
+    private static String name(SyncPlan.Action action) {
+        String[] words = action.name().toLowerCase().split("_");
+        return words.length == 1 ? words[0]
+                : words[0] + Character.toUpperCase(words[1].charAt(0)) + words[1].substring(1);
+    }
+}
@@ -0,0 +1,525 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.common.Constant;
+import com.sr2.flopbox.common.StreamUtils;
+import com.sr2.flopbox.exception.FtpReplyException;
+import com.sr2.flopbox.model.Credentials;
+import com.sr2.flopbox.model.TransferFailure;
+import com.sr2.flopbox.model.TransferReport;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.io.CopyStreamEvent;
+import org.apache.commons.net.io.CopyStreamListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Base of the recursive operations on a directory tree (download, upload,
+ * delete). The tree is walked by tasks running on a work-stealing
+ * ForkJoinPool owned by the operation, each ftp command borrows a connection
+ * from the FtpConnectionPool and at most parallelism connections are used at
+ * once. A failure on an entry is recorded in the report and the rest of the
+ * tree goes on.
+ *
+ * @author Adrien Holvoet
+ */
+public abstract class TreeTransfer {
+    // All private because they are only used in this class
+    private static final Logger logger = LogManager.getLogger(TreeTransfer.class);
+    private final FtpConnectionKey key;
+    private final boolean passive;
+    private final int parallelism;
+    private final Semaphore permits;
+    private final Queue<TransferFailure> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicLong totalFiles = new AtomicLong();
+    private final AtomicLong totalBytes = new AtomicLong();
+    // bytes of the files being copied, counted in bytes once their file is done
+    private final AtomicLong copying = new AtomicLong();
+    private volatile boolean cancelled;
+    private volatile ForkJoinPool pool;
+    private volatile String path;
+    private volatile long started;
+    private volatile CopyStreamListener listener;
+
+    // protected because the subclasses count what they transfer
+    protected final AtomicLong files = new AtomicLong();
+    protected final AtomicLong directories = new AtomicLong();
+    protected final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param connection connection of the caller, gives the server, the
+     *                   credentials and the data connection mode to use
+     */
+    protected TreeTransfer(FtpConnection connection) {
+        this(connection, 1);
+    }
+
+    /**
+     * Constructor of the operations whose commands hold several connections of
+     * the server at once
+     *
+     * @param connection  connection of the caller, gives the server, the
+     *                    credentials and the data connection mode to use
+     * @param connections number of connections of the server held by a
+     *                    command, the parallelism is divided by it so that the
+     *                    commands never wait for each other's connections
+     */
+    protected TreeTransfer(FtpConnection connection, int connections) {
+        this(connection.getKey(),
+                connection.getClient().getDataConnectionMode() == FTPClient.PASSIVE_LOCAL_DATA_CONNECTION_MODE,
+                connections);
+    }
+
+    /**
+     * Constructor used by the operations run in the background, without a
+     * request connection
+     *
+     * @param key     server and credentials to use
+     * @param passive true for the passive data connection mode
+     */
+    protected TreeTransfer(FtpConnectionKey key, boolean passive) {
+        this(key, passive, 1);
+    }
+
+    private TreeTransfer(FtpConnectionKey key, boolean passive, int connections) {
+        this.key = key;
+        this.passive = passive;
+        this.parallelism = Math.max(1, Math.min(Constant.POOL_MAX_PER_SERVER / connections,
+                Integer.getInteger("flopbox.transfer.parallelism." + key.getAlias(), Constant.TRANSFER_PARALLELISM)));
+        this.permits = new Semaphore(parallelism);
+    }
+
+    /**
+     * An ftp command run with a borrowed connection
+     *
+     * @param <T> result type
+     */
+    protected interface FtpCall<T> {
+        T call(FtpConnection connection) throws IOException;
+    }
+
+    /**
+     * Run the root task on a dedicated ForkJoinPool and wait for the whole tree
+     *
+     * @param path remote path of the tree
+     * @param root task walking the tree
+     * @return TransferReport with the totals and the failures
+     * @throws IOException thrown if the caller is interrupted (request cancelled)
+     *                     or if the root task raised an I/O error
+     */
+    protected TransferReport run(String path, ForkJoinTask<?> root) throws IOException {
+        this.path = path;
+        try {
+            submit(root).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer of " + path + " cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            finish();
+        }
+        return progress();
+    }
+
+    /**
+     * What the operation did so far, can be called from any thread while it runs
+     *
+     * @return TransferReport with the totals so far, the time elapsed since the
+     *         start and the failures
+     */
+    public TransferReport progress() {
+        TransferReport report = new TransferReport(path, files.get(), bytes.get() + copying.get());
+        report.setDirectories(directories.get());
+        report.setElapsed(started > 0 ? System.currentTimeMillis() - started : 0);
+        report.setFailures(new ArrayList<>(failures));
+        return report;
+    }
+
+    /**
+     * @return number of files the operation has to transfer, it grows while the
+     *         tree is listed
+     */
+    public long getTotalFiles() {
+        return totalFiles.get();
+    }
+
+    /**
+     * @return number of bytes the operation has to transfer, it grows while the
+     *         tree is listed
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Listen to the data copied by the operation, the chunks of all its data
+     * connections are given to the same listener, their total is not the total of
+     * the operation
+     *
+     * @param listener the listener, null for none
+     */
+    public void setCopyStreamListener(CopyStreamListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Tell the listener that an entry was transferred without its data going
+     * through FlopBox (deletion, FXP, segmented download)
+     */
+    protected void transferred() {
+        CopyStreamListener current = listener;
+        if (current != null) {
+            current.bytesTransferred(0, 0, CopyStreamEvent.UNKNOWN_STREAM_SIZE);
+        }
+    }
+
+    /**
+     * Count files found to transfer, to give the progress of the operation
+     *
+     * @param files number of files
+     * @param bytes their size in bytes
+     */
+    protected void expect(long files, long bytes) {
+        totalFiles.addAndGet(files);
+        totalBytes.addAndGet(Math.max(0, bytes));
+    }
+
+    /**
+     * Copy a data connection from or to a file, the bytes are shown by progress
+     * while they are copied and the copy stops at the next buffer once the
+     * operation is cancelled. The caller still counts the file once it is done.
+     *
+     * @param in  stream to read until its end
+     * @param out stream to write to, it is not closed
+     * @return the number of bytes copied
+     * @throws IOException thrown if any I/O error occurred, InterruptedIOException
+     *                     if the operation was cancelled during the copy
+     */
+    protected long copy(InputStream in, OutputStream out) throws IOException {
+        ProgressInputStream counted = new ProgressInputStream(in);
+        try {
+            return StreamUtils.copy(counted, out);
+        } finally {
+            copying.addAndGet(-counted.count);
+        }
+    }
+
+    /**
+     * Store a stream at a remote path with copy. A file cut by a cancellation is
+     * deleted because the server cannot tell it from a complete one.
+     *
+     * @param client     connection to store with, in the right file type
+     * @param remotePath path of the file
+     * @param in         content of the file, it is not closed
+     * @return the number of bytes stored
+     * @throws IOException thrown if any I/O error occurred, FtpReplyException if
+     *                     the server refused the file
+     */
+    protected long store(FTPClient client, String remotePath, InputStream in) throws IOException {
+        OutputStream out = client.storeFileStream(remotePath);
+        if (out == null) {
+            throw new FtpReplyException(client);
+        }
+        long stored;
+        try {
+            stored = copy(in, out);
+        } catch (InterruptedIOException e) {
+            out.close();
+            if (client.completePendingCommand()) {
+                client.deleteFile(remotePath);
+            }
+            throw e;
+        } finally {
+            out.close();
+        }
+        if (!client.completePendingCommand()) {
+            throw new FtpReplyException(client);
+        }
+        return stored;
+    }
+
+    /**
+     * Start the root task on a dedicated ForkJoinPool without waiting for it,
+     * finish must be called once the tree is done with
+     *
+     * @param root task walking the tree
+     * @return the running root task
+     */
+    protected ForkJoinTask<?> submit(ForkJoinTask<?> root) {
+        started = System.currentTimeMillis();
+        pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("tree-transfer-" + key.getAlias() + "-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        return pool.submit(root);
+    }
+
+    /**
+     * Stop the tree, the tasks not started yet give up. Can be called several
+     * times
+     */
+    protected void finish() {
+        cancelled = true;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Run an ftp command with a connection borrowed from the pool, the connection
+     * is closed instead of reused if the command raised an I/O error other than a
+     * refusal of the server (FtpReplyException)
+     *
+     * @param call the command
+     * @param <T>  result type
+     * @return the result of the command
+     * @throws IOException thrown if any I/O error occurred or if no connection
+     *                     could be borrowed
+     */
+    protected <T> T withConnection(FtpCall<T> call) throws IOException {
+        return withConnection(key, call);
+    }
+
+    /**
+     * Run an ftp command like withConnection on another server than the one of
+     * the operation, the connection takes one of the permits of the operation
+     *
+     * @param key  server and credentials to use
+     * @param call the command
+     * @param <T>  result type
+     * @return the result of the command
+     * @throws IOException thrown if any I/O error occurred or if no connection
+     *                     could be borrowed
+     */
+    protected <T> T withConnection(FtpConnectionKey key, FtpCall<T> call) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a ftp connection");
+        }
+        FtpConnection connection = null;
+        try {
+            connection = borrow(key);
+            return call.call(connection);
+        } catch (IOException e) {
+            if (connection != null && !(e instanceof FtpReplyException)) {
+                connection.invalidate();
+            }
+            throw e;
+        } finally {
+            FtpConnectionPool.getInstance().release(connection);
+            permits.release();
+        }
+    }
+
+    /**
+     * Run an ftp command like withConnection and try it again on a fresh
+     * connection after a transient failure, at most Constant.TRANSFER_RETRIES
+     * times. A permanent refusal (5xx) is not retried.
+     *
+     * @param call the command
+     * @param <T>  result type
+     * @return the result of the command
+     * @throws IOException the error of the last attempt
+     */
+    protected <T> T withRetry(FtpCall<T> call) throws IOException {
+        return withRetry(key, call);
+    }
+
+    /**
+     * Run an ftp command like withRetry on another server than the one of the
+     * operation
+     *
+     * @param key  server and credentials to use
+     * @param call the command
+     * @param <T>  result type
+     * @return the result of the command
+     * @throws IOException the error of the last attempt
+     */
+    protected <T> T withRetry(FtpConnectionKey key, FtpCall<T> call) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return withConnection(key, call);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                boolean permanent = e instanceof FtpReplyException && ((FtpReplyException) e).isPermanent();
+                if (permanent || attempt > Constant.TRANSFER_RETRIES || isCancelled()) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(Constant.TRANSFER_RETRY_DELAY * attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry");
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply an action to every item with parallelism workers taking the items from
+     * a shared queue in the list order, so the first items are started first
+     * whatever the worker running them. Must be called from a task of the tree.
+     *
+     * @param items  the items, in the order they must be started
+     * @param action the action, it records its own failures
+     * @param <T>    item type
+     */
+    protected <T> void forEachParallel(List<T> items, Consumer<T> action) {
+        Queue<T> queue = new ConcurrentLinkedQueue<>(items);
+        List<RecursiveAction> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, items.size()); i++) {
+            workers.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    T item;
+                    while (!isCancelled() && (item = queue.poll()) != null) {
+                        action.accept(item);
+                    }
+                }
+            });
+        }
+        ForkJoinTask.invokeAll(workers);
+    }
+
+    /**
+     * Record an entry which could not be transferred
+     *
+     * @param path remote path of the entry
+     * @param e    the reason
+     */
+    protected void fail(String path, Exception e) {
+        logger.warn("Unable to transfer " + path + " on " + key + " : " + e.toString());
+        failures.add(new TransferFailure(path, e.getMessage() != null ? e.getMessage().trim() : e.toString()));
+    }
+
+    /**
+     * @return true once the operation is over or cancelled, the tasks not started
+     *         yet must give up
+     */
+    protected boolean isCancelled() {
+        return cancelled;
+    }
+
+    protected String getAlias() {
+        return key.getAlias();
+    }
+
+    protected FtpConnectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Borrow a connection from the pool in the data connection mode of the
+     * operation, it must be given back with FtpConnectionPool.release
+     *
+     * @param key server and credentials, those of the operation or of another
+     *            server it writes to
+     * @return the connection
+     * @throws IOException thrown if any I/O error occurred or if no connection
+     *                     could be borrowed
+     */
+    protected FtpConnection borrow(FtpConnectionKey key) throws IOException {
+        return borrow(key, true);
+    }
+
+    /**
+     * Borrow a connection like borrow only if one is available right away, used
+     * by the commands which already hold another connection and must not wait
+     * for this one
+     *
+     * @param key server and credentials
+     * @return the connection, null if the limits of the pool are reached
+     * @throws IOException thrown if any I/O error occurred
+     */
+    protected FtpConnection tryBorrow(FtpConnectionKey key) throws IOException {
+        return borrow(key, false);
+    }
+
+    private FtpConnection borrow(FtpConnectionKey key, boolean wait) throws IOException {
+        FtpConnectionPool connectionPool = FtpConnectionPool.getInstance();
+        Credentials credentials = new Credentials(key.getUsername(), key.getPassword());
+        FtpConnection connection;
+        try {
+            connection = wait ? connectionPool.borrow(key.getAlias(), credentials)
+                    : connectionPool.tryBorrow(key.getAlias(), credentials);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        if (connection == null) {
+            return null;
+        }
+        if (passive) {
+            connection.getClient().enterLocalPassiveMode();
+        } else {
+            connection.getClient().enterLocalActiveMode();
+        }
+        return connection;
+    }
+
+    /**
+     * Input stream counting what is read in the progress of the operation, giving
+     * each chunk to the listener and failing once the operation is cancelled
+     */
+    private class ProgressInputStream extends FilterInputStream {
+        private long count;
+
+        ProgressInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (isCancelled()) {
+                throw new InterruptedIOException("Transfer of " + path + " cancelled");
+            }
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+                copying.addAndGet(read);
+                CopyStreamListener current = listener;
+                if (current != null) {
+                    current.bytesTransferred(count, read, CopyStreamEvent.UNKNOWN_STREAM_SIZE);
+                }
+            }
+            return read;
+        }
+    }
+}
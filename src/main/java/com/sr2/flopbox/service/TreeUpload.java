@@ -0,0 +1,169 @@
+package com.sr2.flopbox.service;
+
+import com.sr2.flopbox.exception.FtpReplyException;
+import com.sr2.flopbox.model.TransferReport;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel upload of a local directory tree into a remote directory. The local
+ * tree is walked first, then the remote directory skeleton is created one depth
+ * at a time (the MKD of a depth are sent at once over several connections, a
+ * parent always exists before its children) and finally the files are stored
+ * over several connections, the largest first so that a big file does not end
+ * the upload alone. Files are stored by absolute path in binary mode, no CWD
+ * nor content type detection per file.
+ *
+ * @author Adrien Holvoet
+ */
+public class TreeUpload extends TreeTransfer {
+    // All private because they are only used in this class
+    private final Set<String> failedDirectories = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor
+     *
+     * @param connection connection of the caller, gives the server, the
+     *                   credentials and the data connection mode to use
+     */
+    public TreeUpload(FtpConnection connection) {
+        super(connection);
+    }
+
+    /**
+     * Upload the tree
+     *
+     * @param remoteDir path of the remote directory created for the local
+     *                  directory
+     * @param localDir  local directory to upload
+     * @return TransferReport with the number of files, directories and bytes
+     *         uploaded and the entries which failed
+     * @throws IOException thrown if the upload is cancelled
+     */
+    public TransferReport upload(String remoteDir, File localDir) throws IOException {
+        return run(remoteDir, new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<List<Entry>> levels = new ArrayList<>();
+                List<Entry> files = new ArrayList<>();
+                walk(localDir, remoteDir, 0, levels, files);
+                expect(files.size(), files.stream().mapToLong(entry -> entry.size).sum());
+
+                for (List<Entry> level : levels) {
+                    forEachParallel(level, TreeUpload.this::makeDirectory);
+                }
+                Collections.sort(files, Comparator.comparingLong((Entry entry) -> entry.size).reversed());
+                forEachParallel(files, TreeUpload.this::storeFile);
+            }
+        });
+    }
+
+    /**
+     * A local file or directory and its remote path
+     */
+    private static class Entry {
+        private final File local;
+        private final String remotePath;
+        private final String remoteParent;
+        private final long size;
+
+        Entry(File local, String remotePath, String remoteParent) {
+            this.local = local;
+            this.remotePath = remotePath;
+            this.remoteParent = remoteParent;
+            this.size = local.isFile() ? local.length() : 0;
+        }
+    }
+
+    /**
+     * Collect the directories by depth and the files of a local directory, the
+     * symbolic links to directories are not followed
+     */
+    private void walk(File localDir, String remoteDir, int depth, List<List<Entry>> levels, List<Entry> files) {
+        if (levels.size() == depth) {
+            levels.add(new ArrayList<>());
+        }
+        String remoteParent = remoteDir.contains("/") ? remoteDir.substring(0, remoteDir.lastIndexOf('/')) : "";
+        levels.get(depth).add(new Entry(localDir, remoteDir, remoteParent));
+
+        File[] children = localDir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String remotePath = remoteDir + "/" + child.getName();
+            // a link to a directory is not followed, it could point to an ancestor
+            if (Files.isDirectory(child.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                walk(child, remotePath, depth + 1, levels, files);
+            } else if (child.isFile()) {
+                files.add(new Entry(child, remotePath, remoteDir));
+            }
+        }
+    }
+
+    /**
+     * Create a remote directory, an existing one is kept. The entries of a
+     * directory which could not be created are skipped.
+     */
+    private void makeDirectory(Entry directory) {
+        if (failedDirectories.contains(directory.remoteParent)) {
+            failedDirectories.add(directory.remotePath);
+            return;
+        }
+        try {
+            withRetry(connection -> {
+                FTPClient client = connection.getClient();
+                if (!client.makeDirectory(directory.remotePath)
+                        && !client.changeWorkingDirectory(directory.remotePath)) {
+                    throw new FtpReplyException(client);
+                }
+                return null;
+            });
+            directories.incrementAndGet();
+        } catch (IOException e) {
+            failedDirectories.add(directory.remotePath);
+            fail(directory.remotePath, e);
+        }
+    }
+
+    /**
+     * Store a local file at its remote path, a file whose remote directory could
+     * not be created is reported as a failure
+     */
+    private void storeFile(Entry file) {
+        if (failedDirectories.contains(file.remoteParent)) {
+            fail(file.remotePath, new IOException("The parent directory could not be created"));
+            return;
+        }
+        try {
+            long stored = withRetry(connection -> {
+                FTPClient client = connection.getClient();
+                if (!client.setFileType(FTP.BINARY_FILE_TYPE)) {
+                    throw new FtpReplyException(client);
+                }
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file.local))) {
+                    return store(client, file.remotePath, in);
+                }
+            });
+            files.incrementAndGet();
+            bytes.addAndGet(stored);
+        } catch (IOException e) {
+            fail(file.remotePath, e);
+        }
+    }
+}
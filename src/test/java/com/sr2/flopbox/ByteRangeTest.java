@@ -0,0 +1,103 @@
+package com.sr2.flopbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sr2.flopbox.common.ByteRange;
+
+public class ByteRangeTest {
+	private static final long SIZE = 1000;
+	private static final long LAST_MODIFIED = 1445412480000L;
+
+	@Test
+	public void parse_shouldReturnNull_whenHeaderIsNull() {
+		List<ByteRange> ranges = ByteRange.parse(null, SIZE);
+
+		assertNull(ranges);
+	}
+
+	@Test
+	public void parse_shouldReturnNull_whenHeaderIsMalformed() {
+		assertNull(ByteRange.parse("bytes=abc", SIZE));
+		assertNull(ByteRange.parse("bytes=10-5", SIZE));
+		assertNull(ByteRange.parse("items=0-10", SIZE));
+	}
+
+	@Test
+	public void parse_shouldReturnTheRange_whenRangeIsInTheFile() {
+		List<ByteRange> ranges = ByteRange.parse("bytes=0-99", SIZE);
+
+		assertEquals(1, ranges.size());
+		assertEquals("bytes 0-99/1000", ranges.get(0).toContentRange(SIZE));
+		assertEquals(100, ranges.get(0).getLength());
+	}
+
+	@Test
+	public void parse_shouldClampTheLastByte_whenRangeGoesPastTheEnd() {
+		List<ByteRange> open = ByteRange.parse("bytes=900-", SIZE);
+		List<ByteRange> past = ByteRange.parse("bytes=900-5000", SIZE);
+
+		assertEquals(999, open.get(0).getLast());
+		assertEquals(999, past.get(0).getLast());
+	}
+
+	@Test
+	public void parse_shouldReturnTheLastBytes_whenRangeIsASuffix() {
+		List<ByteRange> ranges = ByteRange.parse("bytes=-100", SIZE);
+
+		assertEquals(900, ranges.get(0).getFirst());
+		assertEquals(999, ranges.get(0).getLast());
+	}
+
+	@Test
+	public void parse_shouldReturnEmptyList_whenNoRangeIsSatisfiable() {
+		List<ByteRange> ranges = ByteRange.parse("bytes=1000-1100", SIZE);
+
+		assertTrue(ranges.isEmpty());
+	}
+
+	@Test
+	public void parse_shouldReturnEmptyList_whenOpenRangeStartsAfterTheEnd() {
+		List<ByteRange> ranges = ByteRange.parse("bytes=5000-", SIZE);
+
+		assertTrue(ranges.isEmpty());
+	}
+
+	@Test
+	public void parse_shouldSortAndMergeRanges_whenRangesOverlap() {
+		List<ByteRange> ranges = ByteRange.parse("bytes=500-599, 0-9, 5-19, 20-29", SIZE);
+
+		assertEquals(2, ranges.size());
+		assertEquals(0, ranges.get(0).getFirst());
+		assertEquals(29, ranges.get(0).getLast());
+		assertEquals(500, ranges.get(1).getFirst());
+	}
+
+	@Test
+	public void isIfRangeSatisfied_shouldReturnTrue_whenDateIsTheLastModification() {
+		boolean satisfied = ByteRange.isIfRangeSatisfied("Wed, 21 Oct 2015 07:28:00 GMT", LAST_MODIFIED, null);
+
+		assertTrue(satisfied);
+	}
+
+	@Test
+	public void isIfRangeSatisfied_shouldReturnFalse_whenFileChanged() {
+		boolean satisfied = ByteRange.isIfRangeSatisfied("Wed, 21 Oct 2015 07:28:00 GMT", LAST_MODIFIED + 60000,
+				null);
+
+		assertFalse(satisfied);
+	}
+
+	@Test
+	public void isIfRangeSatisfied_shouldReturnFalse_whenEntityTagIsWeak() {
+		boolean satisfied = ByteRange.isIfRangeSatisfied("W/\"abc\"", LAST_MODIFIED, "\"abc\"");
+
+		assertFalse(satisfied);
+	}
+}
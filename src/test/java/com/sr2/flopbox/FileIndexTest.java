@@ -0,0 +1,106 @@
+package com.sr2.flopbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sr2.flopbox.model.FileMetadata;
+import com.sr2.flopbox.service.FileIndex;
+
+import jakarta.ws.rs.BadRequestException;
+
+public class FileIndexTest {
+	private FileIndex index;
+
+	@Before
+	public void setUp() {
+		List<FileMetadata> records = new ArrayList<>();
+		records.add(new FileMetadata("/", true, -1, -1));
+		records.add(new FileMetadata("/docs", true, -1, 1000));
+		records.add(new FileMetadata("/docs/report.pdf", false, 5000, 2000));
+		records.add(new FileMetadata("/docs/notes.txt", false, 10, 3000));
+		records.add(new FileMetadata("/music", true, -1, 1000));
+		for (int i = 0; i < 100; i++) {
+			records.add(new FileMetadata("/music/track" + i + ".mp3", false, 1000L * i, 4000 + i));
+		}
+		index = FileIndex.build(records);
+	}
+
+	@Test
+	public void search_shouldReturnTheSubtree_whenPrefixIsGiven() {
+		List<FileMetadata> found = index.search(query("/docs", null, null, null), 10);
+
+		assertEquals(3, found.size());
+		assertEquals("/docs", found.get(0).getPath());
+		assertEquals("/docs/notes.txt", found.get(1).getPath());
+		assertEquals("/docs/report.pdf", found.get(2).getPath());
+	}
+
+	@Test
+	public void search_shouldMatchTheName_whenGlobHasNoSlash() {
+		List<FileMetadata> found = index.search(query(null, "*.txt", null, null), 10);
+
+		assertEquals(1, found.size());
+		assertEquals(10, found.get(0).getSize());
+		assertEquals(3000, found.get(0).getLastModified());
+	}
+
+	@Test
+	public void search_shouldMatchThePath_whenGlobHasASlash() {
+		assertEquals(100, index.search(query(null, "music/track*.mp3", null, null), 1000).size());
+		assertEquals(10, index.search(query(null, "**/track?.mp3", null, null), 1000).size());
+		assertEquals(0, index.search(query(null, "track*.pdf", null, null), 1000).size());
+	}
+
+	@Test
+	public void search_shouldTakeABracketAfterTheOpeningOne_asPartOfTheSet() {
+		assertEquals(1, index.search(query(null, "[!]x]otes.txt", null, null), 10).size());
+		assertEquals(0, index.search(query(null, "[!]x", null, null), 10).size());
+		assertEquals(1, index.search(query(null, "track[]9].mp3", null, null), 10).size());
+	}
+
+	@Test(expected = BadRequestException.class)
+	public void query_shouldRejectAnInvalidGlob() {
+		query(null, "track[9-0].mp3", null, null);
+	}
+
+	@Test
+	public void search_shouldFilterBySize() {
+		List<FileMetadata> found = index.search(query("/music", null, 50000L, 52000L), 1000);
+
+		assertEquals(3, found.size());
+		assertEquals("/music/track50.mp3", found.get(0).getPath());
+	}
+
+	@Test
+	public void search_shouldReturnOneMoreThanTheLimit_whenThereAreMore() {
+		assertEquals(11, index.search(query("/music/", null, null, null), 10).size());
+	}
+
+	@Test
+	public void readWrite_shouldGiveTheSameIndex() throws IOException {
+		File file = File.createTempFile("flopbox", ".idx");
+		try {
+			index.write(file);
+			FileIndex read = FileIndex.read(file);
+
+			assertEquals(index.size(), read.size());
+			assertEquals(index.search(query("/music/track9", null, null, null), 100).size(),
+					read.search(query("/music/track9", null, null, null), 100).size());
+			assertTrue(file.length() < index.size() * 20);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static FileIndex.Query query(String prefix, String glob, Long minSize, Long maxSize) {
+		return new FileIndex.Query(prefix, glob, null, minSize, maxSize, null, null);
+	}
+}
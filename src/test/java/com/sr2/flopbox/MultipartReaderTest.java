@@ -0,0 +1,100 @@
+package com.sr2.flopbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sr2.flopbox.common.MultipartReader;
+import com.sr2.flopbox.common.StreamUtils;
+
+public class MultipartReaderTest {
+	private static final String BOUNDARY = "XyZ";
+
+	@Test
+	public void nextPart_shouldReturnHeadersAndBodyOfEachPart_whenBodyIsCorrect() throws IOException {
+		String body = "preamble\r\n--XyZ\r\nContent-Disposition: form-data; name=\"field\"\r\n\r\nvalue\r\n"
+				+ "--XyZ\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n\r\ncontent\r\n"
+				+ "--XyZ--\r\n";
+		MultipartReader reader = new MultipartReader(toStream(body), BOUNDARY);
+
+		Map<String, String> field = reader.nextPart();
+		String fieldValue = read(reader.partBody());
+		Map<String, String> file = reader.nextPart();
+		String fileContent = read(reader.partBody());
+		Map<String, String> end = reader.nextPart();
+
+		assertEquals("form-data; name=\"field\"", field.get("content-disposition"));
+		assertEquals("value", fieldValue);
+		assertEquals("a.txt", MultipartReader.getParameter(file.get("content-disposition"), "filename"));
+		assertEquals("content", fileContent);
+		assertNull(end);
+	}
+
+	@Test
+	public void partBody_shouldKeepBytesLookingLikeTheDelimiter_whenTheyAreNotTheDelimiter() throws IOException {
+		String content = "line\r\n--XyA\r\n--Xy";
+		String body = "--XyZ\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a\"\r\n\r\n" + content
+				+ "\r\n--XyZ--";
+		MultipartReader reader = new MultipartReader(toStream(body), BOUNDARY);
+
+		reader.nextPart();
+		String fileContent = read(reader.partBody());
+
+		assertEquals(content, fileContent);
+	}
+
+	@Test
+	public void nextPart_shouldSkipUnreadBody_whenPartIsNotRead() throws IOException {
+		String body = "--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nskipped\r\n"
+				+ "--XyZ\r\nContent-Disposition: form-data; name=\"b\"\r\n\r\nread\r\n--XyZ--";
+		MultipartReader reader = new MultipartReader(toStream(body), BOUNDARY);
+
+		reader.nextPart();
+		Map<String, String> second = reader.nextPart();
+
+		assertEquals("form-data; name=\"b\"", second.get("content-disposition"));
+		assertEquals("read", read(reader.partBody()));
+	}
+
+	@Test(expected = EOFException.class)
+	public void partBody_shouldThrowEOFException_whenClosingBoundaryIsMissing() throws IOException {
+		String body = "--XyZ\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a\"\r\n\r\ntruncated";
+		MultipartReader reader = new MultipartReader(toStream(body), BOUNDARY);
+
+		reader.nextPart();
+		read(reader.partBody());
+	}
+
+	@Test
+	public void getParameter_shouldReturnUnquotedValue_whenParameterExists() {
+		String boundary = MultipartReader.getParameter("multipart/form-data; boundary=\"abc\"", "boundary");
+
+		assertEquals("abc", boundary);
+	}
+
+	@Test
+	public void getParameter_shouldReturnNull_whenParameterDoesNotExist() {
+		String boundary = MultipartReader.getParameter("multipart/form-data", "boundary");
+
+		assertNull(boundary);
+	}
+
+	private static InputStream toStream(String body) {
+		return new ByteArrayInputStream(body.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamUtils.copy(in, out);
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,136 @@
+package com.sr2.flopbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.sr2.flopbox.model.Credentials;
+import com.sr2.flopbox.service.FtpConnectionKey;
+import com.sr2.flopbox.service.SingleFlight;
+
+public class SingleFlightTest {
+	private static final FtpConnectionKey KEY = new FtpConnectionKey("local", new Credentials("user", "pass"));
+
+	@Test
+	public void execute_shouldRunOnce_whenTheSameReadIsRunning() throws Exception {
+		SingleFlight<String> flight = new SingleFlight<>();
+		AtomicInteger runs = new AtomicInteger();
+		CountDownLatch running = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Future<String> first = executor.submit(() -> flight.execute(KEY, "/dir", () -> {
+				runs.incrementAndGet();
+				running.countDown();
+				awaitWaiter(flight, "/dir");
+				return "listing";
+			}));
+			running.await();
+			Future<String> second = executor.submit(() -> flight.execute(KEY, "//dir", () -> {
+				runs.incrementAndGet();
+				return "other";
+			}));
+			Future<String> other = executor.submit(() -> flight.execute(KEY, "/other", () -> {
+				runs.incrementAndGet();
+				return "other";
+			}));
+			assertEquals("other", other.get(5, TimeUnit.SECONDS));
+
+			assertEquals("listing", first.get(5, TimeUnit.SECONDS));
+			assertEquals("listing", second.get(5, TimeUnit.SECONDS));
+			assertEquals(2, runs.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void execute_shouldRunAgain_onceTheReadIsOver() throws Exception {
+		SingleFlight<Integer> flight = new SingleFlight<>();
+		AtomicInteger runs = new AtomicInteger();
+
+		flight.execute(KEY, "/file", runs::incrementAndGet);
+		flight.execute(KEY, "/file", runs::incrementAndGet);
+
+		assertEquals(2, runs.get());
+	}
+
+	@Test
+	public void execute_shouldThrowTheSameException_toEveryWaiter() throws Exception {
+		SingleFlight<String> flight = new SingleFlight<>();
+		CountDownLatch running = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> first = executor.submit(() -> flight.execute(KEY, "/file", () -> {
+				running.countDown();
+				awaitWaiter(flight, "/file");
+				throw new IOException("connection lost");
+			}));
+			running.await();
+			Future<String> second = executor.submit(() -> flight.execute(KEY, "/file", () -> "never run"));
+
+			for (Future<String> future : Arrays.asList(first, second)) {
+				try {
+					future.get(5, TimeUnit.SECONDS);
+					fail("the read should have failed");
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof IOException);
+					assertEquals("connection lost", e.getCause().getMessage());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void execute_shouldRunTheReadAgain_whenTheLeaderIsCancelled() throws Exception {
+		SingleFlight<String> flight = new SingleFlight<>();
+		CountDownLatch running = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<String> first = executor.submit(() -> flight.execute(KEY, "/file", () -> {
+				running.countDown();
+				// the request of the leader times out while the other one waits
+				try {
+					new CountDownLatch(1).await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("cancelled");
+				}
+				return "never returned";
+			}));
+			running.await();
+			Future<String> second = executor.submit(() -> flight.execute(KEY, "/file", () -> "read again"));
+			awaitWaiter(flight, "/file");
+			first.cancel(true);
+
+			assertEquals("read again", second.get(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Wait until a read waits for the operation running on the path
+	 */
+	private static void awaitWaiter(SingleFlight<?> flight, String path) throws IOException {
+		while (flight.getWaiters(KEY, path) == 0) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException();
+			}
+			Thread.yield();
+		}
+	}
+}
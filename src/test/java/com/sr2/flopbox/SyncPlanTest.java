@@ -0,0 +1,116 @@
+package com.sr2.flopbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.sr2.flopbox.model.FileMetadata;
+import com.sr2.flopbox.service.SyncPlan;
+import com.sr2.flopbox.service.SyncPlan.Action;
+import com.sr2.flopbox.service.SyncPlan.Direction;
+
+public class SyncPlanTest {
+	private static final Map<String, FileMetadata> NONE = Collections.emptyMap();
+	// Wed, 21 Oct 2015 07:28:00 GMT
+	private static final long DATE = 1445412480000L;
+
+	@Test
+	public void compute_shouldCopyWhatDiffers_withoutPreviousManifests() {
+		Map<String, FileMetadata> remote = manifest(file("/same", 10, DATE), file("/remote", 20, DATE),
+				file("/changed", 30, DATE));
+		Map<String, FileMetadata> local = manifest(file("/same", 10, DATE + 400), file("/local", 5, DATE),
+				file("/changed", 31, DATE));
+
+		SyncPlan plan = SyncPlan.compute(Direction.BOTH, true, remote, local, NONE, NONE);
+
+		assertEquals("/changed=DOWNLOAD /local=UPLOAD /remote=DOWNLOAD", describe(plan));
+		assertEquals(1, plan.getUnchanged());
+		assertEquals(1, plan.getConflicts());
+	}
+
+	@Test
+	public void compute_shouldDeleteOnTheTarget_onlyWhenAsked() {
+		Map<String, FileMetadata> remote = manifest(file("/kept", 10, DATE));
+		Map<String, FileMetadata> local = manifest(file("/kept", 10, DATE), file("/extra", 5, DATE));
+
+		assertEquals("/extra=DELETE_LOCAL",
+				describe(SyncPlan.compute(Direction.DOWNLOAD, true, remote, local, NONE, NONE)));
+		assertEquals("", describe(SyncPlan.compute(Direction.DOWNLOAD, false, remote, local, NONE, NONE)));
+		assertEquals("/extra=UPLOAD",
+				describe(SyncPlan.compute(Direction.UPLOAD, false, remote, local, NONE, NONE)));
+	}
+
+	@Test
+	public void compute_shouldPropagateADeletion_orCopyTheFileBack() {
+		// the upload of the previous synchronization did not keep the date
+		Map<String, FileMetadata> baseRemote = manifest(file("/a", 10, DATE + 60000), file("/b", 10, DATE));
+		Map<String, FileMetadata> baseLocal = manifest(file("/a", 10, DATE), file("/b", 10, DATE));
+		Map<String, FileMetadata> remote = manifest(file("/a", 10, DATE + 60000));
+		Map<String, FileMetadata> local = manifest(file("/a", 10, DATE), file("/b", 10, DATE));
+
+		assertEquals("/b=DELETE_LOCAL",
+				describe(SyncPlan.compute(Direction.BOTH, true, remote, local, baseRemote, baseLocal)));
+		SyncPlan plan = SyncPlan.compute(Direction.BOTH, false, remote, local, baseRemote, baseLocal);
+		assertEquals("/b=UPLOAD", describe(plan));
+		assertEquals(1, plan.getUnchanged());
+		assertEquals(0, plan.getConflicts());
+	}
+
+	@Test
+	public void compute_shouldKeepTheMostRecentFile_whenBothSidesChangedIt() {
+		Map<String, FileMetadata> base = manifest(file("/a", 10, DATE), file("/b", 10, DATE));
+		Map<String, FileMetadata> remote = manifest(file("/a", 11, DATE + 2000));
+		Map<String, FileMetadata> local = manifest(file("/a", 12, DATE + 1000), file("/b", 12, DATE + 1000));
+
+		SyncPlan plan = SyncPlan.compute(Direction.BOTH, true, remote, local, base, base);
+
+		// a deletion loses against a change
+		assertEquals("/a=DOWNLOAD /b=UPLOAD", describe(plan));
+		assertEquals(2, plan.getConflicts());
+		assertTrue(plan.getChanges().get(0).isConflict());
+	}
+
+	@Test
+	public void compute_shouldCreateTheDirectory_whenOneOfItsFilesIsCopied() {
+		Map<String, FileMetadata> base = manifest(directory("/dir"), file("/dir/a", 10, DATE),
+				file("/dir/b", 10, DATE));
+		Map<String, FileMetadata> remote = manifest(directory("/dir"), file("/dir/a", 11, DATE + 1000),
+				file("/dir/b", 10, DATE));
+
+		SyncPlan plan = SyncPlan.compute(Direction.BOTH, true, remote, NONE, base, base);
+
+		assertEquals("/dir=DOWNLOAD /dir/a=DOWNLOAD /dir/b=DELETE_REMOTE", describe(plan));
+		assertFalse(plan.getChanges().get(2).isConflict());
+	}
+
+	private static String describe(SyncPlan plan) {
+		StringBuilder description = new StringBuilder();
+		for (SyncPlan.Change change : plan.getChanges()) {
+			description.append(description.length() > 0 ? " " : "").append(change.getPath()).append('=')
+					.append(change.getAction());
+		}
+		return description.toString();
+	}
+
+	private static Map<String, FileMetadata> manifest(FileMetadata... entries) {
+		Map<String, FileMetadata> manifest = new HashMap<>();
+		for (FileMetadata entry : entries) {
+			manifest.put(entry.getPath(), entry);
+		}
+		return manifest;
+	}
+
+	private static FileMetadata file(String path, long size, long lastModified) {
+		return new FileMetadata(path, false, size, lastModified);
+	}
+
+	private static FileMetadata directory(String path) {
+		return new FileMetadata(path, true, -1, -1);
+	}
+}
@@ -0,0 +1,82 @@
+package com.sr2.flopbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.sr2.flopbox.common.TarOutputStream;
+
+public class TarOutputStreamTest {
+
+	@Test
+	public void putFile_shouldWriteAHeaderAndPaddedContent() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TarOutputStream tar = new TarOutputStream(out);
+		tar.putFile("dir/a.txt", 5, 1000000);
+		tar.write("hello".getBytes(StandardCharsets.US_ASCII));
+		assertEquals(0, tar.closeEntry());
+		tar.finish();
+
+		byte[] archive = out.toByteArray();
+		assertEquals(4 * 512, archive.length);
+		assertEquals("dir/a.txt", field(archive, 0, 100));
+		assertEquals("00000000005", field(archive, 124, 12));
+		assertEquals("ustar", field(archive, 257, 6));
+		assertEquals("hello", new String(archive, 512, 5, StandardCharsets.US_ASCII));
+		assertEquals(checksum(archive), Long.parseLong(field(archive, 148, 8).trim(), 8));
+	}
+
+	@Test
+	public void closeEntry_shouldPadAndCut_whenTheContentHasNotTheAnnouncedSize() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TarOutputStream tar = new TarOutputStream(out);
+		tar.putFile("short", 10, -1);
+		tar.write(new byte[] { 1, 2, 3 });
+		assertEquals(7, tar.closeEntry());
+		tar.putFile("long", 2, -1);
+		tar.write(new byte[] { 1, 2, 3 });
+		assertEquals(0, tar.closeEntry());
+		tar.finish();
+
+		assertEquals(6 * 512, out.size());
+	}
+
+	@Test
+	public void putFile_shouldWriteAPaxHeader_whenTheNameIsLong() throws IOException {
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 30; i++) {
+			name.append("dir").append(i).append('/');
+		}
+		name.append("file.txt");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TarOutputStream tar = new TarOutputStream(out);
+		tar.putFile(name.toString(), 0, -1);
+		tar.finish();
+
+		byte[] archive = out.toByteArray();
+		assertEquals('x', archive[156]);
+		String record = new String(archive, 512, 512, StandardCharsets.UTF_8).trim();
+		assertTrue(record.endsWith("path=" + name));
+		assertEquals(record.length() + 1, Integer.parseInt(record.substring(0, record.indexOf(' '))));
+		assertEquals('0', archive[1024 + 156]);
+	}
+
+	private static String field(byte[] archive, int offset, int length) {
+		String value = new String(archive, offset, length, StandardCharsets.US_ASCII);
+		int end = value.indexOf('\0');
+		return end >= 0 ? value.substring(0, end) : value;
+	}
+
+	private static long checksum(byte[] archive) {
+		long sum = 0;
+		for (int i = 0; i < 512; i++) {
+			sum += i >= 148 && i < 156 ? ' ' : archive[i] & 0xFF;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,85 @@
+package com.sr2.flopbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.sr2.flopbox.common.Validators;
+
+public class ValidatorsTest {
+	// Wed, 21 Oct 2015 07:28:00 GMT
+	private static final long DATE = 1445412480000L;
+
+	@Test
+	public void etag_shouldBeNull_whenSizeOrDateIsUnknown() {
+		assertEquals("\"400-" + Long.toHexString(DATE) + "\"", Validators.etag(1024, DATE));
+		assertNull(Validators.etag(-1, DATE));
+		assertNull(Validators.etag(1024, -1));
+	}
+
+	@Test
+	public void matches_shouldCompareWeakly() {
+		String etag = Validators.etag(1024, DATE);
+
+		assertTrue(Validators.matches("\"other\", " + etag, etag));
+		assertTrue(Validators.matches("W/" + etag, etag));
+		assertTrue(Validators.matches("*", etag));
+		assertFalse(Validators.matches("\"other\"", etag));
+		assertFalse(Validators.matches(etag, null));
+	}
+
+	@Test
+	public void weak_shouldMarkTheTagOnce() {
+		String etag = Validators.etag(1024, DATE);
+
+		assertEquals("W/" + etag, Validators.weak(etag));
+		assertEquals("W/" + etag, Validators.weak(Validators.weak(etag)));
+		assertNull(Validators.weak(null));
+		assertTrue(Validators.matches(etag, Validators.weak(etag)));
+	}
+
+	@Test
+	public void isNotModified_shouldUseTheDate_whenThereIsNoEntityTag() {
+		assertTrue(Validators.isNotModified(null, "Wed, 21 Oct 2015 07:28:00 GMT", null, DATE + 500));
+		assertFalse(Validators.isNotModified(null, "Wed, 21 Oct 2015 07:27:59 GMT", null, DATE));
+		assertFalse(Validators.isNotModified(null, "yesterday", null, DATE));
+		// If-None-Match wins over If-Modified-Since
+		assertFalse(Validators.isNotModified("\"other\"", "Wed, 21 Oct 2015 07:28:00 GMT", "\"tag\"", DATE));
+	}
+
+	@Test
+	public void fingerprint_shouldDependOnTheBytes() throws IOException {
+		assertEquals(fingerprint("[{\"name\":\"a\"}]"), fingerprint("[{\"name\":\"a\"}]"));
+		assertFalse(fingerprint("[{\"name\":\"a\"}]").equals(fingerprint("[{\"name\":\"b\"}]")));
+		assertTrue(fingerprint("[]").startsWith("W/\""));
+	}
+
+	@Test
+	public void fingerprint_shouldNotConfuseConsecutiveValues() {
+		Validators.Fingerprint first = new Validators.Fingerprint();
+		first.update("ab");
+		first.update("c");
+		Validators.Fingerprint second = new Validators.Fingerprint();
+		second.update("a");
+		second.update("bc");
+		Validators.Fingerprint unknown = new Validators.Fingerprint();
+		unknown.update((String) null);
+		Validators.Fingerprint empty = new Validators.Fingerprint();
+		empty.update("");
+
+		assertFalse(first.toWeakTag().equals(second.toWeakTag()));
+		assertFalse(unknown.toWeakTag().equals(empty.toWeakTag()));
+	}
+
+	private static String fingerprint(String body) throws IOException {
+		Validators.Fingerprint fingerprint = new Validators.Fingerprint();
+		fingerprint.write(body.getBytes(StandardCharsets.UTF_8));
+		return fingerprint.toWeakTag();
+	}
+}
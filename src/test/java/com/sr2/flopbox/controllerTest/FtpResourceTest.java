@@ -139,11 +139,13 @@ public class FtpResourceTest {
     }
 
     @Test
-    public void getRepositoryGET_shouldGet204_whenRepoDoesExist() {
+    public void getRepositoryGET_shouldGet200AndReport_whenRepoDoesExist() {
         String repoToDownload = "/ubuntu/pool/universe/0/0xffff";
         Response response = target.path(alias + "/repositories" + repoToDownload).queryParam("downloadFolder", TMP_DIR).queryParam("mode", "passive").request().get();
+        String entity = response.readEntity(String.class);
 
-        assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertTrue(entity.contains("\"path\":\"" + repoToDownload + "\""));
         assertTrue(new File(TMP_DIR + repoToDownload).exists());
     }
 